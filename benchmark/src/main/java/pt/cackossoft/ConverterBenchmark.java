@@ -0,0 +1,72 @@
+package pt.cackossoft;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * New name computed by each converter (getNewFilePath_*, through getNewFilePath), for files of the kind that the
+ * converter expects. Each invocation analyses a new MediaFile of the corpus, without the metadata cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConverterBenchmark {
+    /**
+     * Index of the converter (in MediaConverter.fConverters)
+     */
+    @Param({ "0", "1", "2", "3", "4", "5", "6" })
+    public int converter;
+
+    private FixtureCorpus fCorpus;
+    private MediaConverter fMediaConverter;
+    private String fConverter;
+    private List<Path> fFiles;
+    private int fNext;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        fCorpus = new FixtureCorpus(600);
+        fMediaConverter = new MediaConverter();
+        fConverter = fMediaConverter.configure(new BatchOptions(new String[] { "--converter=" + converter,
+                "--regex=^(img|mvi)_", "--text=photo-", "--minutes=90",
+                "--bulkFile=" + fCorpus.getBulkFile(), "--bulkPrefix=" + FixtureCorpus.BULK_PREFIX,
+                "--report=" + fCorpus.getFolder().resolve("report.txt") }));
+        switch (converter) {
+            case 0:
+            case 4: fFiles = fCorpus.getTimestamped(); break;
+            case 5: fFiles = fCorpus.getSamsung(); break;
+            case 6: fFiles = fCorpus.getBulk(); break;
+            default: fFiles = fCorpus.getOriginals(); break;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fCorpus.delete();
+    }
+
+    @Benchmark
+    public String getNewFilePath() throws IOException {
+        MediaFile f = FixtureCorpus.newMediaFile(fFiles.get(fNext++ % fFiles.size()));
+        return fMediaConverter.getNewFilePath(f, fConverter);
+    }
+}
@@ -0,0 +1,279 @@
+package pt.cackossoft;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Synthetic media files used by the benchmarks, generated in a temporary folder (so the benchmarks run offline).
+ * The corpus is always the same (fixed seed): photos (JPEG with Exif, both byte orders, known and unknown camera
+ * models) and movies (QuickTime and AVI) with their original camera names, the same media already renamed with a timestamp
+ * prefix, Samsung style names, and the files of a bulk renaming (with its TSV file).
+ */
+final class FixtureCorpus {
+    static final String BULK_PREFIX = "Exame_";
+
+    private static final String[][] CAMERAS = {
+            { "Canon", "Canon DIGITAL IXUS 70" },           // Known camera models (fKnownCameraModelIDs)
+            { "NIKON CORPORATION", "NIKON D3200" },
+            { "WIKO                           ", "HIGHWAY                        " },
+            { "Apple", "iPhone 12 Pro" },                   // Unknown camera models
+            { "SAMSUNG", "GT-I9300" },
+            { "OLYMPUS IMAGING CORP.", "E-M10MarkII" } };
+    private static final long SECONDS_1904_TO_1970 = 2082844800L;
+
+    private final Path fFolder;
+    private final List<Path> fOriginals = new ArrayList<>();    // Photos and movies with their camera names
+    private final List<Path> fPhotos = new ArrayList<>();       // The JPEG files among fOriginals
+    private final List<Path> fTimestamped = new ArrayList<>();  // "yyyyMMdd_HHmmss-camera-name" files
+    private final List<Path> fSamsung = new ArrayList<>();      // "[prefix_]yyyyMMdd_HHmmss" files
+    private final List<Path> fBulk = new ArrayList<>();         // Files of the bulk renaming
+    private final Path fBulkFile;
+
+    /**
+     * Generates the corpus in a new temporary folder
+     * @param aFilesPerKind number of files of each kind
+     * @throws IOException if the files cannot be written
+     */
+    FixtureCorpus(int aFilesPerKind) throws IOException {
+        fFolder = Files.createTempDirectory("media-converter-benchmark");
+        Random lRandom = new Random(42);
+        long lStart = 1388534400000L;   // 2014-01-01
+        StringBuilder lBulkLines = new StringBuilder();
+        for (int i = 0; i < aFilesPerKind; ++i) {
+            String[] lCamera = CAMERAS[i % CAMERAS.length];
+            long lTimestamp = lStart + (lRandom.nextInt(365 * 24 * 3600)) * 1000L;
+            String lDateTime = String.format("%tY:%<tm:%<td %<tH:%<tM:%<tS", lTimestamp);
+            String lPrefix = String.format("%tY%<tm%<td_%<tH%<tM%<tS", lTimestamp);
+            ByteOrder lOrder = i % 2 == 0 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+            int lPayload = 16 * 1024 + lRandom.nextInt(240 * 1024);
+            if (i % 8 == 7) {
+                fOriginals.add(write(String.format("MVI_%04d.AVI", i), createAvi(lCamera[0].trim() + " " + lCamera[1].trim(), lTimestamp, lPayload)));
+            } else if (i % 4 == 3) {
+                fOriginals.add(write(String.format("MVI_%04d.MOV", i), createMovie(lCamera[0], lCamera[1], lTimestamp, lPayload)));
+            } else {
+                Path lPhoto = write(String.format("IMG_%04d.JPG", i), createJpeg(lCamera[0], lCamera[1], lDateTime, lOrder, lPayload));
+                fOriginals.add(lPhoto);
+                fPhotos.add(lPhoto);
+            }
+            byte[] lJpeg = createJpeg(lCamera[0], lCamera[1], lDateTime, lOrder, 1024);
+            fTimestamped.add(write(String.format("%s-camera-img_%04d.jpg", lPrefix, i), lJpeg));
+            fSamsung.add(write(String.format(i % 2 == 0 ? "%s.jpg" : "IMG_%s.jpg", lPrefix), lJpeg));
+            String lOldName = String.format("%06d", i);
+            fBulk.add(write(BULK_PREFIX + lOldName + ".pdf", new byte[1024]));
+            lBulkLines.append(lOldName).append('\t').append(String.format("T%03d", i % 40)).append('\t')
+                      .append(i % 3 == 0 ? "Jos\u00e9 da Concei\u00e7\u00e3o Ara\u00fajo" : "Maria Silva").append('\n');
+        }
+        fBulkFile = fFolder.resolve("bulk.tsv");
+        Files.write(fBulkFile, lBulkLines.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    Path getFolder() {
+        return fFolder;
+    }
+
+    List<Path> getOriginals() {
+        return fOriginals;
+    }
+
+    List<Path> getPhotos() {
+        return fPhotos;
+    }
+
+    List<Path> getTimestamped() {
+        return fTimestamped;
+    }
+
+    List<Path> getSamsung() {
+        return fSamsung;
+    }
+
+    List<Path> getBulk() {
+        return fBulk;
+    }
+
+    Path getBulkFile() {
+        return fBulkFile;
+    }
+
+    /**
+     * Deletes the corpus folder
+     * @throws IOException if a file cannot be deleted
+     */
+    void delete() throws IOException {
+        deleteTree(fFolder);
+    }
+
+    /**
+     * Deletes a folder and everything in it
+     * @param aFolder the folder
+     * @throws IOException if a file cannot be deleted
+     */
+    static void deleteTree(Path aFolder) throws IOException {
+        Files.walkFileTree(aFolder, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path aFile, BasicFileAttributes aAttributes) throws IOException {
+                Files.delete(aFile);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path aDir, IOException e) throws IOException {
+                Files.delete(aDir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Creates the MediaFile of a corpus file (a new one each time, since MediaFile keeps the metadata read)
+     * @param aPath the corpus file
+     * @return the processing context of the file
+     * @throws IOException if the file attributes cannot be read
+     */
+    static MediaFile newMediaFile(Path aPath) throws IOException {
+        return new MediaFile(aPath, Files.readAttributes(aPath, BasicFileAttributes.class));
+    }
+
+    private Path write(String aName, byte[] aContent) throws IOException {
+        return Files.write(fFolder.resolve(aName), aContent);
+    }
+
+    /**
+     * Creates a JPEG file with an Exif APP1 segment (IFD0 Make/Model, Exif SubIFD DateTimeOriginal), a comment and
+     * a scan of aPayload bytes
+     */
+    private static byte[] createJpeg(String aMake, String aModel, String aDateTime, ByteOrder aOrder, int aPayload) {
+        byte[] lMake = ascii(aMake);
+        byte[] lModel = ascii(aModel);
+        byte[] lDateTime = ascii(aDateTime);
+        int lData = 8 + 2 + 3 * 12 + 4;
+        int lExifIfd = lData + lMake.length + lModel.length;
+        int lExifData = lExifIfd + 2 + 12 + 4;
+        ByteBuffer lTiff = ByteBuffer.allocate(lExifData + lDateTime.length).order(aOrder);
+        lTiff.put(ascii(ByteOrder.LITTLE_ENDIAN == aOrder ? "II" : "MM"), 0, 2).putShort((short) 42).putInt(8);
+        lTiff.putShort((short) 3);
+        putEntry(lTiff, 0x010F, 2, lMake.length, lData);
+        putEntry(lTiff, 0x0110, 2, lModel.length, lData + lMake.length);
+        putEntry(lTiff, 0x8769, 4, 1, lExifIfd);
+        lTiff.putInt(0).put(lMake).put(lModel);
+        lTiff.putShort((short) 1);
+        putEntry(lTiff, 0x9003, 2, lDateTime.length, lExifData);
+        lTiff.putInt(0).put(lDateTime);
+
+        byte[] lComment = ascii("benchmark");
+        ByteBuffer lJpeg = ByteBuffer.allocate(2 + 4 + 6 + lTiff.capacity() + 4 + lComment.length + 10 + aPayload + 2);
+        lJpeg.putShort((short) 0xFFD8);
+        lJpeg.putShort((short) 0xFFE1).putShort((short) (2 + 6 + lTiff.capacity())).put(ascii("Exif\0\0"), 0, 6).put(lTiff.array());
+        lJpeg.putShort((short) 0xFFFE).putShort((short) (2 + lComment.length)).put(lComment);
+        lJpeg.putShort((short) 0xFFDA).putShort((short) 8).put(new byte[] { 1, 1, 0, 0, 0x3F, 0 });
+        for (int i = 0; i < aPayload; ++i) {
+            lJpeg.put((byte) 0x11);
+        }
+        lJpeg.putShort((short) 0xFFD9);
+        return lJpeg.array();
+    }
+
+    private static void putEntry(ByteBuffer aTiff, int aTag, int aFormat, int aCount, int aValue) {
+        aTiff.putShort((short) aTag).putShort((short) aFormat).putInt(aCount).putInt(aValue);
+    }
+
+    /**
+     * Creates a QuickTime file: ftyp, mdat with aPayload bytes, and moov with mvhd (creation time) and udta
+     * ((c)mak, (c)mod)
+     */
+    private static byte[] createMovie(String aMake, String aModel, long aTimestamp, int aPayload) {
+        byte[] lMake = aMake.trim().getBytes(StandardCharsets.UTF_8);
+        byte[] lModel = aModel.trim().getBytes(StandardCharsets.UTF_8);
+        int lMvhd = 8 + 100;
+        int lUdta = 8 + (8 + 4 + lMake.length) + (8 + 4 + lModel.length);
+        ByteBuffer lMovie = ByteBuffer.allocate(20 + 8 + aPayload + 8 + lMvhd + lUdta);
+        lMovie.putInt(20).put(ascii("ftyp"), 0, 4).put(ascii("qt  "), 0, 4).putInt(0).put(ascii("qt  "), 0, 4);
+        lMovie.putInt(8 + aPayload).put(ascii("mdat"), 0, 4);
+        lMovie.position(lMovie.position() + aPayload);
+        lMovie.putInt(8 + lMvhd + lUdta).put(ascii("moov"), 0, 4);
+        lMovie.putInt(lMvhd).put(ascii("mvhd"), 0, 4).putInt(0).putInt((int) (aTimestamp / 1000 + SECONDS_1904_TO_1970));
+        lMovie.position(lMovie.position() + lMvhd - 16);
+        lMovie.putInt(lUdta).put(ascii("udta"), 0, 4);
+        lMovie.putInt(8 + 4 + lMake.length).put(new byte[] { (byte) 0xA9, 'm', 'a', 'k' }).putShort((short) lMake.length).putShort((short) 0x55C4).put(lMake);
+        lMovie.putInt(8 + 4 + lModel.length).put(new byte[] { (byte) 0xA9, 'm', 'o', 'd' }).putShort((short) lModel.length).putShort((short) 0x55C4).put(lModel);
+        return lMovie.array();
+    }
+
+    /**
+     * Creates an AVI file: RIFF AVI with LIST hdrl (avih, IDIT capture date), LIST INFO (ISFT software, which the
+     * cameras use for their name) and LIST movi with aPayload bytes
+     */
+    static byte[] createAvi(String aSoftware, long aTimestamp, int aPayload) {
+        byte[] lDate = ascii(String.format(Locale.ENGLISH, "%ta %<tb %<td %<tH:%<tM:%<tS %<tY", aTimestamp));
+        byte[] lSoftware = ascii(aSoftware);
+        int lDateChunk = 8 + lDate.length + (lDate.length & 1);
+        int lSoftwareChunk = 8 + lSoftware.length + (lSoftware.length & 1);
+        int lHdrl = 4 + (8 + 56) + lDateChunk;
+        int lInfo = 4 + lSoftwareChunk;
+        int lMovi = 4 + aPayload + (aPayload & 1);
+        ByteBuffer lAvi = ByteBuffer.allocate(12 + 8 + lHdrl + 8 + lInfo + 8 + lMovi).order(ByteOrder.LITTLE_ENDIAN);
+        lAvi.put(ascii("RIFF"), 0, 4).putInt(lAvi.capacity() - 8).put(ascii("AVI "), 0, 4);
+        lAvi.put(ascii("LIST"), 0, 4).putInt(lHdrl).put(ascii("hdrl"), 0, 4);
+        lAvi.put(ascii("avih"), 0, 4).putInt(56).position(lAvi.position() + 56);
+        lAvi.put(ascii("IDIT"), 0, 4).putInt(lDate.length).put(lDate).position(lAvi.position() + (lDate.length & 1));
+        lAvi.put(ascii("LIST"), 0, 4).putInt(lInfo).put(ascii("INFO"), 0, 4);
+        lAvi.put(ascii("ISFT"), 0, 4).putInt(lSoftware.length).put(lSoftware).position(lAvi.position() + (lSoftware.length & 1));
+        lAvi.put(ascii("LIST"), 0, 4).putInt(lMovi).put(ascii("movi"), 0, 4);
+        return lAvi.array();
+    }
+
+    /**
+     * Creates a Canon CR3 file: ftyp (brand "crx "), moov with the Canon uuid box (CMT1: IFD0 Make/Model, whose Exif
+     * SubIFD pointer is not into its own TIFF data; CMT2: Exif SubIFD DateTimeOriginal) and mvhd, and mdat with
+     * aPayload bytes
+     */
+    static byte[] createCr3(String aMake, String aModel, String aDateTime, int aPayload) {
+        byte[] lMake = ascii(aMake);
+        byte[] lModel = ascii(aModel);
+        byte[] lDateTime = ascii(aDateTime);
+        int lData = 8 + 2 + 3 * 12 + 4;
+        ByteBuffer lIfd0 = ByteBuffer.allocate(lData + lMake.length + lModel.length).order(ByteOrder.LITTLE_ENDIAN);
+        lIfd0.put(ascii("II"), 0, 2).putShort((short) 42).putInt(8);
+        lIfd0.putShort((short) 3);
+        putEntry(lIfd0, 0x010F, 2, lMake.length, lData);
+        putEntry(lIfd0, 0x0110, 2, lModel.length, lData + lMake.length);
+        putEntry(lIfd0, 0x8769, 4, 1, 0x10000);
+        lIfd0.putInt(0).put(lMake).put(lModel);
+        lData = 8 + 2 + 12 + 4;
+        ByteBuffer lExifSubIfd = ByteBuffer.allocate(lData + lDateTime.length).order(ByteOrder.LITTLE_ENDIAN);
+        lExifSubIfd.put(ascii("II"), 0, 2).putShort((short) 42).putInt(8);
+        lExifSubIfd.putShort((short) 1);
+        putEntry(lExifSubIfd, 0x9003, 2, lDateTime.length, lData);
+        lExifSubIfd.putInt(0).put(lDateTime);
+
+        int lUuid = 8 + 16 + (8 + lIfd0.capacity()) + (8 + lExifSubIfd.capacity());
+        int lMvhd = 8 + 100;
+        ByteBuffer lCr3 = ByteBuffer.allocate(24 + 8 + lUuid + lMvhd + 8 + aPayload);
+        lCr3.putInt(24).put(ascii("ftyp"), 0, 4).put(ascii("crx "), 0, 4).putInt(1).put(ascii("crx "), 0, 4).put(ascii("isom"), 0, 4);
+        lCr3.putInt(8 + lUuid + lMvhd).put(ascii("moov"), 0, 4);
+        lCr3.putInt(lUuid).put(ascii("uuid"), 0, 4).putLong(0x85C0B687820F11E0L).putLong(0x8111F4CE462B6A48L);
+        lCr3.putInt(8 + lIfd0.capacity()).put(ascii("CMT1"), 0, 4).put(lIfd0.array());
+        lCr3.putInt(8 + lExifSubIfd.capacity()).put(ascii("CMT2"), 0, 4).put(lExifSubIfd.array());
+        lCr3.putInt(lMvhd).put(ascii("mvhd"), 0, 4).position(lCr3.position() + lMvhd - 8);
+        lCr3.putInt(8 + aPayload).put(ascii("mdat"), 0, 4);
+        return lCr3.array();
+    }
+
+    /**
+     * @return the ISO 8859-1 bytes of a text, ended by a null character
+     */
+    private static byte[] ascii(String aText) {
+        return (aText + "\0").getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
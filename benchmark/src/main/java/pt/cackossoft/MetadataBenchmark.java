@@ -0,0 +1,71 @@
+package pt.cackossoft;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metadata reads of the synthetic photos (full metadata-extractor parse, and the format sniffing and EXIF header fast
+ * path of the conversion), and the lookup of the known camera models.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetadataBenchmark {
+    private static final String[] CAMERA_MODELS = { "Canon Canon DIGITAL IXUS 70", "CanonMVI06", "NIKON CORPORATION NIKON D3200",
+            "WIKO                            HIGHWAY                        ", "Apple iPhone 12 Pro", "SAMSUNG GT-I9300", "null null" };
+
+    private FixtureCorpus fCorpus;
+    private MediaConverter fMediaConverter;
+    private List<Path> fPhotos;
+    private int fNext;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        fCorpus = new FixtureCorpus(400);
+        fMediaConverter = new MediaConverter();
+        fPhotos = fCorpus.getPhotos();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fCorpus.delete();
+    }
+
+    @Benchmark
+    public Object getExifMetadataValue() throws IOException {
+        MediaFile f = FixtureCorpus.newMediaFile(fPhotos.get(fNext++ % fPhotos.size()));
+        fMediaConverter.getExifMetadataValue(f);
+        return f.exifMetadata;
+    }
+
+    @Benchmark
+    public Object readFileMetadata() throws IOException {
+        MediaFile f = FixtureCorpus.newMediaFile(fPhotos.get(fNext++ % fPhotos.size()));
+        fMediaConverter.readFileMetadata(f);
+        return f.timestamp;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public String getKnownCameraModel() {
+        return fMediaConverter.getKnownCameraModel(CAMERA_MODELS[fNext++ % CAMERA_MODELS.length]);
+    }
+}
@@ -0,0 +1,80 @@
+package pt.cackossoft;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renames of a burst of photos taken in the same second: all files get the same new name, so each name collides
+ * with all the previous ones (and with the files left by a previous run). As in a run of the converter, the names
+ * are reserved first (the plan) and the files are moved to them afterwards (the apply). Each invocation renames a
+ * whole folder, created again before it, with a new RenameEngine (so the folder is listed again).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class RenameBenchmark {
+    private static final String NEW_NAME = "20140723_101112-canon_ixus70_101.jpg";
+
+    /**
+     * Number of files renamed to the same name
+     */
+    @Param({ "100", "1000" })
+    public int files;
+
+    private Path fFolder;
+    private Path[] fFiles;
+    private RenameEngine fRenameEngine;
+
+    @Setup(Level.Invocation)
+    public void setUp() throws IOException {
+        fFolder = Files.createTempDirectory("media-converter-rename");
+        fFiles = new Path[files];
+        for (int i = 0; i < files; ++i) {
+            fFiles[i] = Files.createFile(fFolder.resolve(String.format("IMG_%04d.JPG", i)));
+        }
+        for (int i = 0; i < files / 10; ++i) {  // Left by a previous run
+            Files.createFile(fFolder.resolve(String.format("20140723_101112-canon_ixus70_101-%d.jpg", 2 * i + 1)));
+        }
+        fRenameEngine = new RenameEngine();
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() throws IOException {
+        FixtureCorpus.deleteTree(fFolder);
+    }
+
+    @Benchmark
+    public int reserveAndMove() {
+        Path lNewName = fFolder.resolve(NEW_NAME);
+        Path[] lTargets = new Path[fFiles.length];
+        for (int i = 0; i < fFiles.length; ++i) {
+            lTargets[i] = fRenameEngine.reserve(lNewName);
+        }
+        int lRenamed = 0;
+        for (int i = 0; i < fFiles.length; ++i) {
+            if (RenameEngine.Status.RENAMED == RenameEngine.move(fFiles[i], lTargets[i])) {
+                ++lRenamed;
+            }
+        }
+        return lRenamed;
+    }
+}
@@ -0,0 +1,96 @@
+package pt.cackossoft;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Order of the event index when the timeline is sorted in more runs than are merged at the same time (MAX_FAN_IN),
+ * so that intermediate merge passes are needed
+ */
+public class EventTimelineTest {
+    private static final long START = 1388534400000L;  // 2014-01-01
+    private static final long HOUR = 3600 * 1000L;
+
+    private Path fFolder;
+    private Path fIndexFile;
+
+    @Before
+    public void setUp() throws IOException {
+        fFolder = Files.createTempDirectory("media-converter-events");
+        fIndexFile = fFolder.resolve("events.tsv");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FixtureCorpus.deleteTree(fFolder);
+    }
+
+    @Test
+    public void orderAcrossManyRuns() throws IOException {
+        // 20 events of 50 files, 10 days apart, each file 1 minute after the previous one, added in random order
+        List<Integer> lFiles = new ArrayList<>();
+        for (int i = 0; i < 1000; ++i) {
+            lFiles.add(i);
+        }
+        Collections.shuffle(lFiles, new Random(42));
+        int lEvents;
+        try (EventTimeline lTimeline = new EventTimeline(fIndexFile, 2 * 3600, 0, 10)) {     // 100 runs
+            for (int i : lFiles) {
+                lTimeline.add(Paths.get("photo" + i + ".jpg"), getTimestamp(i), 0 == i % 2 ? "canon" : null);
+            }
+            lTimeline.add(Paths.get("no-timestamp.jpg"), null, "canon");
+            assertEquals(1000, lTimeline.size());
+            lEvents = lTimeline.write(fIndexFile);
+        }
+        assertEquals(20, lEvents);
+
+        List<String> lLines = Files.readAllLines(fIndexFile, StandardCharsets.UTF_8);
+        assertEquals(1000, lLines.size());
+        for (int i = 0; i < lLines.size(); ++i) {
+            String[] lFields = lLines.get(i).split("\t");
+            assertEquals(NameTransformer.formatTimestamp(getTimestamp(i - i % 50)), lFields[0]);
+            assertEquals(NameTransformer.formatTimestamp(getTimestamp(i)), lFields[1]);
+            assertEquals(0 == i % 2 ? "canon" : "-", lFields[2]);
+            assertEquals("photo" + i + ".jpg", lFields[3]);
+        }
+        // The run files and their folder were deleted
+        try (DirectoryStream<Path> lStream = Files.newDirectoryStream(fFolder)) {
+            for (Path lPath : lStream) {
+                assertTrue(lPath.toString(), lPath.equals(fIndexFile));
+            }
+        }
+    }
+
+    @Test
+    public void longEventIsCut() throws IOException {
+        try (EventTimeline lTimeline = new EventTimeline(fIndexFile, 2 * 3600, 3 * 3600, 1)) {
+            for (int i = 0; i < 8; ++i) {
+                lTimeline.add(Paths.get("trip" + i + ".jpg"), new Date(START + i * HOUR), "canon");
+            }
+            assertEquals(2, lTimeline.write(fIndexFile));   // 0-3 h, then 4-7 h
+        }
+    }
+
+    /**
+     * @return the timestamp of the file of the given number: 50 files per event, 1 minute apart
+     */
+    private static Date getTimestamp(int aFile) {
+        return new Date(START + (aFile / 50) * 240 * HOUR + (aFile % 50) * 60 * 1000L);
+    }
+}
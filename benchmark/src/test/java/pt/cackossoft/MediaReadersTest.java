@@ -0,0 +1,126 @@
+package pt.cackossoft;
+
+import com.drew.imaging.ImageMetadataReader;
+import com.drew.imaging.ImageProcessingException;
+import com.drew.metadata.Metadata;
+import com.drew.metadata.exif.ExifIFD0Directory;
+import com.drew.metadata.exif.ExifSubIFDDirectory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The fast path readers (ExifHeaderReader, MovieMetadataReader) against the full metadata-extractor parse, on the
+ * synthetic corpus of the benchmarks.
+ */
+public class MediaReadersTest {
+    private static FixtureCorpus corpus;
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        corpus = new FixtureCorpus(24);
+    }
+
+    @AfterClass
+    public static void tearDown() throws IOException {
+        corpus.delete();
+    }
+
+    @Test
+    public void exifHeaderMatchesMetadataExtractor() throws IOException, ImageProcessingException {
+        for (Path lPhoto : corpus.getPhotos()) {
+            ExifHeaderReader.Result lResult = ExifHeaderReader.read(lPhoto);
+            assertNotNull(lPhoto.toString(), lResult);
+            Metadata lMetadata = ImageMetadataReader.readMetadata(lPhoto.toFile());
+            ExifIFD0Directory lIfd0 = lMetadata.getDirectory(ExifIFD0Directory.class);
+            assertEquals(lPhoto.toString(), lMetadata.getDirectory(ExifSubIFDDirectory.class).getDate(ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL), lResult.timestamp);
+            assertEquals(lPhoto.toString(), lIfd0.getDescription(ExifIFD0Directory.TAG_MAKE) + " " + lIfd0.getDescription(ExifIFD0Directory.TAG_MODEL), lResult.cameraModel);
+        }
+    }
+
+    /**
+     * metadata-extractor 2.6.4 does not read QuickTime nor AVI files, so each movie is checked against the photo
+     * generated with the same camera and timestamp (its "yyyyMMdd_HHmmss-camera-img_NNNN.jpg" file)
+     */
+    @Test
+    public void movieMetadataMatchesMetadataExtractor() throws IOException, ImageProcessingException, ParseException {
+        int lAvis = 0;
+        for (int i = 0; i < corpus.getOriginals().size(); ++i) {
+            Path lMovie = corpus.getOriginals().get(i);
+            boolean lAvi = lMovie.getFileName().toString().endsWith(".AVI");
+            if (!lAvi && !lMovie.getFileName().toString().endsWith(".MOV")) {
+                continue;
+            }
+            Map<String, String> lValues = MovieMetadataReader.read(lMovie);
+            Path lPhoto = corpus.getTimestamped().get(i);
+            Date lTimestamp = new SimpleDateFormat("yyyyMMdd_HHmmss").parse(lPhoto.getFileName().toString().substring(0, 15));
+            assertEquals(lMovie.toString(), lTimestamp, NameTransformer.parseMediaTimestamp(lValues.get(lAvi ? "Mastered date" : "Encoded date")));
+            ExifIFD0Directory lIfd0 = ImageMetadataReader.readMetadata(lPhoto.toFile()).getDirectory(ExifIFD0Directory.class);
+            assertEquals(lMovie.toString(), lIfd0.getDescription(ExifIFD0Directory.TAG_MAKE).trim() + " " + lIfd0.getDescription(ExifIFD0Directory.TAG_MODEL).trim(),
+                    lValues.get(lAvi ? "Writing application" : "Camera model"));
+            if (lAvi) {
+                ++lAvis;
+            }
+        }
+        assertEquals(3, lAvis);
+    }
+
+    /**
+     * The RIFF size is little-endian: 0x01000000 read as big-endian would be 1, and no chunk would be read
+     */
+    @Test
+    public void aviRiffSizeIsLittleEndian() throws IOException, ParseException {
+        Date lTimestamp = new SimpleDateFormat("yyyyMMdd_HHmmss").parse("20140723_101112");
+        int lPayload = 0x01000000 + 8 - FixtureCorpus.createAvi("CanonMVI06", lTimestamp.getTime(), 0).length;
+        byte[] lAvi = FixtureCorpus.createAvi("CanonMVI06", lTimestamp.getTime(), lPayload);
+        assertEquals(0x01000000, ByteBuffer.wrap(lAvi, 4, 4).order(ByteOrder.LITTLE_ENDIAN).getInt());
+        Path lFile = Files.write(corpus.getFolder().resolve("MVI_LARGE.AVI"), lAvi);
+        try {
+            Map<String, String> lValues = MovieMetadataReader.read(lFile);
+            assertEquals(lTimestamp, NameTransformer.parseMediaTimestamp(lValues.get("Mastered date")));
+            assertEquals("CanonMVI06", lValues.get("Writing application"));
+        } finally {
+            Files.delete(lFile);
+        }
+    }
+
+    /**
+     * A CR3 file is ISO BMFF, but a photo: its EXIF is read from the CMT1 and CMT2 boxes of its Canon box (and it is
+     * not read as a movie)
+     */
+    @Test
+    public void cr3IsReadAsPhoto() throws IOException, ParseException {
+        byte[] lCr3 = FixtureCorpus.createCr3("Canon", "Canon EOS R5", "2014:07:23 10:11:12", 4096);
+        Path lFile = Files.write(corpus.getFolder().resolve("IMG_0001.CR3"), lCr3);
+        try {
+            try (SeekableByteChannel lChannel = MediaChannels.open(lFile)) {
+                MediaFormat lFormat = MediaFormat.read(lChannel);
+                assertEquals(MediaFormat.CR3, lFormat);
+                assertTrue(lFormat.isPhoto() && lFormat.hasExifHeader() && !lFormat.isMovie());
+            }
+            ExifHeaderReader.Result lResult = ExifHeaderReader.read(lFile);
+            assertNotNull(lResult);
+            assertEquals(new SimpleDateFormat("yyyyMMdd_HHmmss").parse("20140723_101112"), lResult.timestamp);
+            assertEquals("Canon Canon EOS R5", lResult.cameraModel);
+            assertEquals("2014:07:23 10:11:12", new String(lCr3, (int) lResult.dateTimeOriginalPosition, 19, StandardCharsets.ISO_8859_1));
+        } finally {
+            Files.delete(lFile);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package pt.cackossoft;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Merge of the metadata cache saved by two runs that were open at the same time (e.g. two processes)
+ */
+public class MetadataCacheTest {
+    private Path fFolder;
+    private String fCacheFile;
+
+    @Before
+    public void setUp() throws IOException {
+        fFolder = Files.createTempDirectory("media-converter-cache").toAbsolutePath();
+        fCacheFile = fFolder.resolve("cache").toString();
+        Files.createDirectories(fFolder.resolve("photos"));
+        for (String lName : new String[] { "a.jpg", "b.jpg", "c.jpg" }) {
+            Files.write(fFolder.resolve("photos").resolve(lName), lName.getBytes("US-ASCII"));
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FixtureCorpus.deleteTree(fFolder);
+    }
+
+    @Test
+    public void mergeOfTwoRuns() throws IOException, InterruptedException {
+        String lPhotos = fFolder.resolve("photos").toString();
+        MetadataCache lFirst = new MetadataCache(fCacheFile, lPhotos, false);
+        MetadataCache lSecond = new MetadataCache(fCacheFile, lPhotos, false);
+        lFirst.put(newMediaFile("a.jpg", 1000, "Canon IXUS"));
+        lFirst.put(newMediaFile("c.jpg", 2000, "Canon IXUS"));
+        Thread.sleep(5);    // The entries of the second run are used later
+        lSecond.put(newMediaFile("b.jpg", 3000, null));
+        lSecond.put(newMediaFile("c.jpg", 4000, "NIKON D3200"));
+        lFirst.save(false);
+        lSecond.save(false);
+
+        MetadataCache lCache = new MetadataCache(fCacheFile, lPhotos, false);
+        MediaFile f = getMediaFile(lCache, "a.jpg");
+        assertEquals(new Date(1000), f.timestamp);
+        assertEquals("Canon IXUS", f.cameraModel);
+        f = getMediaFile(lCache, "b.jpg");
+        assertEquals(new Date(3000), f.timestamp);
+        assertNull(f.cameraModel);
+        f = getMediaFile(lCache, "c.jpg");     // Both runs have it: the one used last wins
+        assertEquals(new Date(4000), f.timestamp);
+        assertEquals("NIKON D3200", f.cameraModel);
+
+        // The first run saves again, without overwriting the newer entry of the second run
+        lFirst.save(false);
+        f = getMediaFile(new MetadataCache(fCacheFile, lPhotos, false), "c.jpg");
+        assertEquals("NIKON D3200", f.cameraModel);
+    }
+
+    @Test
+    public void renameIsMerged() throws IOException {
+        String lPhotos = fFolder.resolve("photos").toString();
+        MetadataCache lFirst = new MetadataCache(fCacheFile, lPhotos, false);
+        lFirst.put(newMediaFile("a.jpg", 1000, "Canon IXUS"));
+        lFirst.save(false);
+
+        MetadataCache lSecond = new MetadataCache(fCacheFile, lPhotos, false);
+        Files.move(fFolder.resolve("photos").resolve("a.jpg"), fFolder.resolve("photos").resolve("d.jpg"));
+        lSecond.rename(fFolder.resolve("photos").resolve("a.jpg").toString(), fFolder.resolve("photos").resolve("d.jpg").toString());
+        lSecond.save(false);
+
+        MetadataCache lCache = new MetadataCache(fCacheFile, lPhotos, false);
+        assertEquals("Canon IXUS", getMediaFile(lCache, "d.jpg").cameraModel);
+        Files.write(fFolder.resolve("photos").resolve("a.jpg"), "a.jpg".getBytes("US-ASCII"));
+        assertFalse(lCache.get(FixtureCorpus.newMediaFile(fFolder.resolve("photos").resolve("a.jpg"))));
+    }
+
+    /**
+     * A damaged entry (here, a path that is not valid modified UTF-8) is handled as a truncated file: the entries before
+     * it are kept, and the next save rewrites the file
+     */
+    @Test
+    public void damagedTailIsDropped() throws IOException {
+        String lPhotos = fFolder.resolve("photos").toString();
+        MetadataCache lFirst = new MetadataCache(fCacheFile, lPhotos, false);
+        lFirst.put(newMediaFile("a.jpg", 1000, "Canon IXUS"));
+        lFirst.save(false);
+        try (FileChannel lChannel = FileChannel.open(Paths.get(fCacheFile), StandardOpenOption.WRITE)) {
+            lChannel.position(lChannel.size() - 1);     // Over the end marker
+            lChannel.write(ByteBuffer.wrap(new byte[] { 1, 0, 2, (byte) 0xC0, 0x20 }));
+        }
+
+        MetadataCache lSecond = new MetadataCache(fCacheFile, lPhotos, false);
+        assertEquals("Canon IXUS", getMediaFile(lSecond, "a.jpg").cameraModel);
+        lSecond.put(newMediaFile("b.jpg", 2000, "NIKON D3200"));
+        lSecond.save(false);
+
+        MetadataCache lCache = new MetadataCache(fCacheFile, lPhotos, false);
+        assertEquals("Canon IXUS", getMediaFile(lCache, "a.jpg").cameraModel);
+        assertEquals("NIKON D3200", getMediaFile(lCache, "b.jpg").cameraModel);
+    }
+
+    private MediaFile newMediaFile(String aName, long aTimestamp, String aCameraModel) throws IOException {
+        MediaFile f = FixtureCorpus.newMediaFile(fFolder.resolve("photos").resolve(aName));
+        f.timestamp = new Date(aTimestamp);
+        f.cameraModel = aCameraModel;
+        return f;
+    }
+
+    private MediaFile getMediaFile(MetadataCache aCache, String aName) throws IOException {
+        MediaFile f = FixtureCorpus.newMediaFile(fFolder.resolve("photos").resolve(aName));
+        assertTrue(aName, aCache.get(f));
+        return f;
+    }
+}
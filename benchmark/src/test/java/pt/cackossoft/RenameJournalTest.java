@@ -0,0 +1,99 @@
+package pt.cackossoft;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Round trip of a rename journal, and recovery of an interrupted run (batch begun but not committed, torn last record)
+ */
+public class RenameJournalTest {
+    private static final byte RENAMED = RenameJournal.getState(RenameEngine.Status.RENAMED);
+    private static final byte FAILED = RenameJournal.getState(RenameEngine.Status.FAILED);
+
+    private Path fFolder;
+    private Path fJournalFile;
+
+    @Before
+    public void setUp() throws IOException {
+        fFolder = Files.createTempDirectory("media-converter-journal");
+        fJournalFile = fFolder.resolve("plan.journal");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FixtureCorpus.deleteTree(fFolder);
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        try (RenameJournal lJournal = new RenameJournal(fJournalFile)) {
+            lJournal.begin(0, 3);
+            lJournal.commit(0, new byte[] { RENAMED, FAILED, RENAMED });
+            lJournal.begin(3, 2000);    // Beyond the initial capacity of the states
+            byte[] lStates = new byte[2000];
+            lStates[1999] = RENAMED;
+            lJournal.commit(3, lStates);
+        }
+        try (RenameJournal lJournal = new RenameJournal(fJournalFile)) {
+            assertEquals(RENAMED, lJournal.getState(0));
+            assertEquals(FAILED, lJournal.getState(1));
+            assertEquals(RENAMED, lJournal.getState(2));
+            assertEquals(RenameJournal.NOT_STARTED, lJournal.getState(3));
+            assertEquals(RENAMED, lJournal.getState(2002));
+            assertEquals(RenameJournal.NOT_STARTED, lJournal.getState(5000));
+        }
+    }
+
+    @Test
+    public void interruptedBatchIsPending() throws IOException {
+        try (RenameJournal lJournal = new RenameJournal(fJournalFile)) {
+            lJournal.begin(0, 2);
+            lJournal.commit(0, new byte[] { RENAMED, RENAMED });
+            lJournal.begin(2, 2);   // Interrupted: never committed
+        }
+        try (RenameJournal lJournal = new RenameJournal(fJournalFile)) {
+            assertEquals(RENAMED, lJournal.getState(1));
+            assertEquals(RenameJournal.PENDING, lJournal.getState(2));
+            assertEquals(RenameJournal.PENDING, lJournal.getState(3));
+            assertEquals(RenameJournal.NOT_STARTED, lJournal.getState(4));
+        }
+    }
+
+    @Test
+    public void tornRecordIsDiscarded() throws IOException {
+        try (RenameJournal lJournal = new RenameJournal(fJournalFile)) {
+            lJournal.begin(0, 2);
+            lJournal.commit(0, new byte[] { RENAMED, FAILED });
+            lJournal.begin(2, 3);
+            lJournal.commit(2, new byte[] { RENAMED, RENAMED, RENAMED });
+        }
+        long lSize = Files.size(fJournalFile);
+        try (FileChannel lChannel = FileChannel.open(fJournalFile, StandardOpenOption.WRITE)) {
+            lChannel.truncate(lSize - 1);   // The last state of the last commit was not written
+        }
+        try (RenameJournal lJournal = new RenameJournal(fJournalFile)) {
+            assertEquals(FAILED, lJournal.getState(1));
+            assertEquals(RenameJournal.PENDING, lJournal.getState(2));
+            assertEquals(RenameJournal.PENDING, lJournal.getState(4));
+            lJournal.commit(2, new byte[] { FAILED, FAILED, FAILED });     // Appended after the last complete record
+        }
+        assertEquals(lSize, Files.size(fJournalFile));
+        try (FileChannel lChannel = FileChannel.open(fJournalFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            lChannel.write(ByteBuffer.wrap(new byte[] { 2, 0, 0 }));    // Torn record header
+        }
+        try (RenameJournal lJournal = new RenameJournal(fJournalFile)) {
+            assertEquals(FAILED, lJournal.getState(4));
+        }
+        assertEquals(lSize, Files.size(fJournalFile));
+    }
+}
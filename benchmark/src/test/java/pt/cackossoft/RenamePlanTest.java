@@ -0,0 +1,113 @@
+package pt.cackossoft;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Round trip of a rename plan, and resume of a plan from a checkpoint (the tail written after it is discarded)
+ */
+public class RenamePlanTest {
+    private Path fFolder;
+    private Path fPlanFile;
+
+    @Before
+    public void setUp() throws IOException {
+        fFolder = Files.createTempDirectory("media-converter-plan").toAbsolutePath();
+        fPlanFile = fFolder.resolve("plan");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        FixtureCorpus.deleteTree(fFolder);
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        Path lSubfolder = fFolder.resolve("sub");
+        try (RenamePlan.Writer lWriter = new RenamePlan.Writer(fPlanFile, fFolder.toString(), true)) {
+            lWriter.add(fFolder.resolve("IMG_0001.JPG"), fFolder.resolve("20140723_101112-canon-img_0001.jpg"));
+            lWriter.add(fFolder.resolve("IMG_0002.JPG"), fFolder.resolve("20140723_111112-canon-img_0002.jpg"), "2014:07:23 10:11:12", "2014:07:23 11:11:12", 1406110272000L);
+            lWriter.add(lSubfolder.resolve("MVI_0003.MOV"), fFolder.resolve("2014").resolve("20140724_080000-canon-mvi_0003.mov"));
+            assertEquals(3, lWriter.size());
+            lWriter.commit();
+        }
+        assertFalse(Files.exists(RenamePlan.Writer.getTempFile(fPlanFile)));
+        try (RenamePlan.Reader lReader = new RenamePlan.Reader(fPlanFile)) {
+            assertEquals(fFolder.toString(), lReader.getFolder());
+            assertTrue(lReader.isRecursive());
+            assertEntry(lReader.next(), 0, fFolder.resolve("IMG_0001.JPG"), fFolder.resolve("20140723_101112-canon-img_0001.jpg"), null, null, -1);
+            assertEntry(lReader.next(), 1, fFolder.resolve("IMG_0002.JPG"), fFolder.resolve("20140723_111112-canon-img_0002.jpg"),
+                    "2014:07:23 10:11:12", "2014:07:23 11:11:12", 1406110272000L);
+            assertEntry(lReader.next(), 2, lSubfolder.resolve("MVI_0003.MOV"), fFolder.resolve("2014").resolve("20140724_080000-canon-mvi_0003.mov"), null, null, -1);
+            assertNull(lReader.next());
+        }
+    }
+
+    @Test
+    public void resumeFromCheckpoint() throws IOException {
+        long lCheckpoint;
+        try (RenamePlan.Writer lWriter = new RenamePlan.Writer(fPlanFile, fFolder.toString(), false)) {
+            lWriter.add(fFolder.resolve("a.jpg"), fFolder.resolve("a1.jpg"));
+            lWriter.add(fFolder.resolve("b.jpg"), fFolder.resolve("b1.jpg"));
+            lCheckpoint = lWriter.checkpoint();
+            lWriter.add(fFolder.resolve("c.jpg"), fFolder.resolve("c1.jpg"));   // Lost: written after the checkpoint
+        }
+        try (FileChannel lChannel = FileChannel.open(RenamePlan.Writer.getTempFile(fPlanFile), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            lChannel.write(ByteBuffer.wrap(new byte[] { 2, 0 }));     // Torn record, from a crash
+        }
+        try (RenamePlan.Writer lWriter = new RenamePlan.Writer(fPlanFile, lCheckpoint, 2)) {
+            lWriter.add(fFolder.resolve("d.jpg"), fFolder.resolve("d1.jpg"));
+            assertEquals(3, lWriter.size());
+            lWriter.commit();
+        }
+        try (RenamePlan.Reader lReader = new RenamePlan.Reader(fPlanFile)) {
+            assertEntry(lReader.next(), 0, fFolder.resolve("a.jpg"), fFolder.resolve("a1.jpg"), null, null, -1);
+            assertEntry(lReader.next(), 1, fFolder.resolve("b.jpg"), fFolder.resolve("b1.jpg"), null, null, -1);
+            assertEntry(lReader.next(), 2, fFolder.resolve("d.jpg"), fFolder.resolve("d1.jpg"), null, null, -1);
+            assertNull(lReader.next());
+        }
+    }
+
+    @Test
+    public void truncatedPlanIsRejected() throws IOException {
+        try (RenamePlan.Writer lWriter = new RenamePlan.Writer(fPlanFile, fFolder.toString(), false)) {
+            lWriter.add(fFolder.resolve("a.jpg"), fFolder.resolve("a1.jpg"));
+            lWriter.add(fFolder.resolve("b.jpg"), fFolder.resolve("b1.jpg"));
+            lWriter.commit();
+        }
+        try (FileChannel lChannel = FileChannel.open(fPlanFile, StandardOpenOption.WRITE)) {
+            lChannel.truncate(lChannel.size() - 4);     // The END record and part of the last rename
+        }
+        try (RenamePlan.Reader lReader = new RenamePlan.Reader(fPlanFile)) {
+            assertEntry(lReader.next(), 0, fFolder.resolve("a.jpg"), fFolder.resolve("a1.jpg"), null, null, -1);
+            lReader.next();
+            fail("The truncated plan was read");
+        } catch (IOException e) {
+            assertEquals("Rename plan is truncated", e.getMessage());
+        }
+    }
+
+    private static void assertEntry(RenamePlan.Entry aEntry, int aIndex, Path aSource, Path aTarget, String aExifTimestamp,
+                                    String aNewExifTimestamp, long aLastModified) {
+        assertEquals(aIndex, aEntry.index);
+        assertEquals(aSource, aEntry.source);
+        assertEquals(aTarget, aEntry.target);
+        assertEquals(aExifTimestamp, aEntry.exifTimestamp);
+        assertEquals(aNewExifTimestamp, aEntry.newExifTimestamp);
+        assertEquals(aLastModified, aEntry.lastModified);
+    }
+}
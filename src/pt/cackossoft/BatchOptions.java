@@ -0,0 +1,166 @@
+package pt.cackossoft;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Parameters of a batch (headless) run, given as "--key=value" arguments and/or in a configuration file
+ * ("--config=file", in the java.util.Properties format). Arguments override the values of the configuration file.
+ */
+class BatchOptions {
+    static final String USAGE = "Usage: --folder=<folder> --converter=<number or name>[,<number or name>...] [options]\n"
+            + "       --action=<apply|undo> [--plan=<file>] [--threads=<number>] [--cache=<file>] [--metrics=<file>]\n"
+            + "       --action=<stats|audit> --catalog=<file> [--report=<file>]\n"
+            + "       --action=extract --archive=<zip file> --folder=<folder> --converter=<number or name> [options]\n"
+            + "       --help\n"
+            + "  --config=<file>          properties file with any of these options (without \"--\"); the spaces of a key\n"
+            + "                           are escaped there, e.g. camera.Canon\\ Canon\\ DIGITAL\\ IXUS\\ 70=ixus70\n"
+            + "  --regex=<regex>          regex to be replaced/removed (converters 2 and 3)\n"
+            + "  --text=<text>            text to replace the regex for (converter 3)\n"
+            + "  --minutes=<minutes>      minutes to be added to each file timestamp (converter 4)\n"
+            + "  --shiftExif=<true|false> also shift the EXIF timestamp of the photos, in place (converter 4, default: false)\n"
+            + "  --bulkFile=<file>        file with the bulk renaming (converter 6)\n"
+            + "  --bulkPrefix=<prefix>    prefix of the bulk renaming filenames (converter 6)\n"
+            + "  --bulkMapped=<true|false> memory-map the bulk renaming file (default: true above 64 MB)\n"
+            + "  --camera.<model>=<name>  name to give to a camera model (default: its registered name, or the model in lowercase)\n"
+            + "  --cameras=<file>         camera registry file (default: ~/.media-converter.cameras, empty for none)\n"
+            + "  --report=<file>          file where the discrepancies are written (converter 0 and audit, default: stdout)\n"
+            + "  --namePatterns=<list>    name patterns whose timestamp is trusted, e.g. IMG_yyyyMMdd_HHmmss* (comma-separated)\n"
+            + "  --nameTimestamps=<true|false> trust the timestamp of the names of the phones (e.g. IMG_20140101_120000.jpg, default: true)\n"
+            + "  --threads=<number>       number of files analysed at the same time\n"
+            + "  --recursive=<true|false> whether the subfolders are also converted (default: true)\n"
+            + "  --organize=<folder>      move the files whose (new) name starts by a timestamp into a tree in this folder\n"
+            + "  --layout=<layout>        folders of that tree, with yyyy, MM, dd and camera (default: yyyy/MM)\n"
+            + "  --copyStreams=<number>   files copied at the same time when moved to another filesystem (default: 2)\n"
+            + "  --cache=<file>           metadata cache file (default: ~/.media-converter.cache, empty to disable)\n"
+            + "  --action=<action>        run (plan and apply, default), plan (only), apply or undo (the renames of the plan),\n"
+            + "                           or watch (convert the new files of the folder as they arrive, until stopped),\n"
+            + "                           or stats/audit (files per camera per month, or misnamed files, from the catalog)\n"
+            + "                           or extract (the files of --archive to --folder, with their new names)\n"
+            + "  --settle=<seconds>       seconds a new file must stay unchanged before it is converted (watch, default: 5)\n"
+            + "  --plan=<file>            rename plan file (default: ~/.media-converter.plan; its journal is <file>.journal)\n"
+            + "  --duplicates=<action>    a file identical to the one with its new name is: skip (not renamed, default),\n"
+            + "                           report (renamed with a number appended) or off (not checked)\n"
+            + "  --metrics=<file>         JSON summary of the run (default: <plan file>.metrics.json, empty for none)\n"
+            + "  --catalog=<file>         catalog of the media files, written by each scan (default: none)\n"
+            + "  --events=<file>          event index of the media files (files grouped by capture time), written by each scan\n"
+            + "                           (default: none)\n"
+            + "  --eventGap=<minutes>     shortest gap between two events (default: 120)\n"
+            + "  --eventMaxSpan=<hours>   longest event, a longer one is cut (default: 0, no limit)\n"
+            + "  --eventRunSize=<number>  files sorted in memory at the same time for the event index (default: 100000)\n";
+
+    private static final String CAMERA_PREFIX = "camera.";
+    private static final String HELP = "help";
+    // The options of USAGE (besides the camera.<model> ones): any other is rejected, so a typo never falls back to a default
+    private static final String[] KEYS = { "folder", "converter", "action", "archive", "config", "regex", "text", "minutes"
+            , "shiftExif", "bulkFile", "bulkPrefix", "bulkMapped", "cameras", "report", "namePatterns", "nameTimestamps"
+            , "threads", "recursive", "organize", "layout", "copyStreams", "cache", "settle", "plan", "duplicates"
+            , "metrics", "catalog", "events", "eventGap", "eventMaxSpan", "eventRunSize", HELP };
+
+    private final Properties fOptions = new Properties();
+
+    /**
+     * Parses the batch arguments, reading the configuration file if there is one
+     * @param args the program arguments, all as "--key=value"
+     * @throws IOException if the configuration file cannot be read
+     * @throws IllegalArgumentException if an argument is not as "--key=value" (or "--help"), or is not a known option
+     */
+    BatchOptions(String[] args) throws IOException {
+        Properties lArguments = new Properties();
+        for (String lArgument : args) {
+            if (("--" + HELP).equals(lArgument)) {
+                lArguments.setProperty(HELP, "");
+                continue;
+            }
+            int lIndexValue = lArgument.indexOf('=');
+            if (!lArgument.startsWith("--") || lIndexValue < 0) {
+                throw new IllegalArgumentException("Invalid argument: " + lArgument);
+            }
+            lArguments.setProperty(lArgument.substring(2, lIndexValue), lArgument.substring(lIndexValue + 1));
+        }
+        String lConfigFilename = lArguments.getProperty("config");
+        if (null != lConfigFilename) {
+            try (Reader lReader = new InputStreamReader(new FileInputStream(lConfigFilename), StandardCharsets.UTF_8)) {
+                fOptions.load(lReader);
+            }
+        }
+        fOptions.putAll(lArguments);
+        for (String lKey : fOptions.stringPropertyNames()) {
+            if (!lKey.startsWith(CAMERA_PREFIX) && !Arrays.asList(KEYS).contains(lKey)) {
+                throw new IllegalArgumentException("Unknown option: " + lKey);
+            }
+        }
+    }
+
+    /**
+     * @return whether the usage was asked for ("--help")
+     */
+    boolean isHelp() {
+        return null != fOptions.getProperty(HELP);
+    }
+
+    /**
+     * Returns the value of an option
+     * @param aKey the option name
+     * @param aDefault the value if the option was not given
+     * @return the option value
+     */
+    String getString(String aKey, String aDefault) {
+        return fOptions.getProperty(aKey, aDefault);
+    }
+
+    /**
+     * Returns the integer value of an option
+     * @param aKey the option name
+     * @param aDefault the value if the option was not given
+     * @return the option value
+     * @throws IllegalArgumentException if the value is not a number
+     */
+    int getInt(String aKey, int aDefault) {
+        String lValue = fOptions.getProperty(aKey);
+        try {
+            return null == lValue ? aDefault : Integer.parseInt(lValue.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Option " + aKey + " is not a number: " + lValue);
+        }
+    }
+
+    /**
+     * Returns the boolean value of an option
+     * @param aKey the option name
+     * @param aDefault the value if the option was not given
+     * @return the option value
+     * @throws IllegalArgumentException if the value is not "true" nor "false"
+     */
+    boolean getBoolean(String aKey, boolean aDefault) {
+        String lValue = fOptions.getProperty(aKey);
+        if (null == lValue) {
+            return aDefault;
+        }
+        if (!"true".equalsIgnoreCase(lValue.trim()) && !"false".equalsIgnoreCase(lValue.trim())) {
+            throw new IllegalArgumentException("Option " + aKey + " is not true or false: " + lValue);
+        }
+        return "true".equalsIgnoreCase(lValue.trim());
+    }
+
+    /**
+     * Returns the camera names given by the user ("camera.<model>=<name>")
+     * @return the user-defined camera name, by (trimmed) camera model
+     */
+    Map<String, String> getCameraModels() {
+        Map<String, String> lCameraModels = new LinkedHashMap<>();
+        for (String lKey : fOptions.stringPropertyNames()) {
+            if (lKey.startsWith(CAMERA_PREFIX)) {
+                lCameraModels.put(lKey.substring(CAMERA_PREFIX.length()).trim(), fOptions.getProperty(lKey).trim());
+            }
+        }
+        return lCameraModels;
+    }
+}
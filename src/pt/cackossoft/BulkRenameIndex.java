@@ -0,0 +1,227 @@
+package pt.cackossoft;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.Normalizer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Index of a bulk renaming file, which is read once per run.
+ * Each line of the file is "oldName(without .pdf)\tnewPrefix\tStudent Full Name" (UTF-8, tab separated).
+ * By default all the new names are computed when the file is loaded; for very large files the file can instead be
+ * memory-mapped, and only a hash table of line offsets is kept (the new name is then computed on each match); the
+ * offsets are ints, so a memory-mapped file must be smaller than 2 GB. In both forms the lines with less than 3 fields
+ * are skipped.
+ * Both forms are read-only after loading, so they can be used by several threads at the same time.
+ */
+class BulkRenameIndex {
+    private static final String OLD_NAME_SUFFIX = ".pdf";
+    private static final String NEW_NAME_SUFFIX = "-so-2023-teste-epoca-2.pdf";
+    private static final Pattern DIACRITICAL_MARKS = Pattern.compile("[\\p{InCombiningDiacriticalMarks}]");
+
+    private final Map<String, String> fNewNames;    // New name by old name (when not memory-mapped)
+    private final MappedByteBuffer fFile;           // The whole file (when memory-mapped)
+    private final int[] fLineOffsets;               // Open addressing hash table of (line offset + 1), by old name hash
+
+    /**
+     * Loads the bulk renaming file
+     * @param aFilename the bulk renaming file
+     * @param aMemoryMapped whether the file is memory-mapped instead of being fully parsed
+     * @throws IOException if the file cannot be read, or it is memory-mapped and 2 GB or larger
+     */
+    BulkRenameIndex(String aFilename, boolean aMemoryMapped) throws IOException {
+        if (aMemoryMapped) {
+            try (FileChannel lChannel = FileChannel.open(Paths.get(aFilename), StandardOpenOption.READ)) {
+                if (lChannel.size() >= Integer.MAX_VALUE) {
+                    throw new IOException("File too large to be memory-mapped (2 GB or more): " + aFilename);
+                }
+                fFile = lChannel.map(FileChannel.MapMode.READ_ONLY, 0, lChannel.size());
+            }
+            fNewNames = null;
+            fLineOffsets = indexLines(fFile);
+        } else {
+            fFile = null;
+            fLineOffsets = null;
+            fNewNames = new HashMap<>();
+            List<String> lLines = Files.readAllLines(Paths.get(aFilename), StandardCharsets.UTF_8);
+            for (String lLine : lLines) {
+                String[] data = lLine.split("\t");
+                String lOldName = data[0] + OLD_NAME_SUFFIX;
+                if (data.length > 2 && !fNewNames.containsKey(lOldName)) {    // The first line for each old name wins
+                    fNewNames.put(lOldName, getNewName(data));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the new name for a file
+     * @param aOldName the file name, without the bulk prefix
+     * @return the new name (without folder), or null if the file is not in the bulk renaming file
+     */
+    String get(String aOldName) {
+        if (null != fNewNames) {
+            return fNewNames.get(aOldName);
+        }
+        if (!aOldName.endsWith(OLD_NAME_SUFFIX)) {
+            return null;
+        }
+        byte[] lKey = aOldName.substring(0, aOldName.length() - OLD_NAME_SUFFIX.length()).getBytes(StandardCharsets.UTF_8);
+        int lMask = fLineOffsets.length - 1;
+        for (int i = hash(lKey, 0, lKey.length) & lMask; fLineOffsets[i] != 0; i = (i + 1) & lMask) {
+            int lLineStart = fLineOffsets[i] - 1;
+            if (keyEquals(lLineStart, lKey)) {
+                return getNewName(readLine(lLineStart).split("\t"));    // Only the lines with 3 fields are indexed
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Builds the new name of a file from its line of the bulk renaming file
+     * @param data the fields of the line
+     * @return the new name (without folder)
+     */
+    private static String getNewName(String[] data) {
+        String[] studentNames = data[2].split(" ");
+        String unaccentedName = studentNames[0] + studentNames[studentNames.length-1];
+        unaccentedName = Normalizer.normalize(unaccentedName, Normalizer.Form.NFD);
+        unaccentedName = DIACRITICAL_MARKS.matcher(unaccentedName).replaceAll("");
+        return data[1] + "-" + unaccentedName + NEW_NAME_SUFFIX;
+    }
+
+    /**
+     * Builds the hash table of line offsets of a memory-mapped file. The lines with less than 3 fields are skipped, as
+     * when the file is fully parsed (so that they do not hide a later line with the same old name).
+     * @param aFile the memory-mapped file
+     * @return the hash table, with (line offset + 1) by hash of the first field of the line
+     */
+    private static int[] indexLines(MappedByteBuffer aFile) {
+        int lLines = 0;
+        for (int lLineStart = 0; lLineStart < aFile.limit(); lLineStart = getLineEnd(aFile, lLineStart) + 1) {
+            if (hasNewName(aFile, lLineStart)) {
+                ++lLines;
+            }
+        }
+        // Load factor below 0.5 (at most 2^30 slots: a line has at least 4 bytes, so there are less than 2^29 lines)
+        int lMask = Integer.highestOneBit(Math.max(8, Math.min(1 << 28, lLines + 1))) * 4 - 1;
+        int[] lLineOffsets = new int[lMask + 1];
+        for (int lLineStart = 0; lLineStart < aFile.limit(); lLineStart = getLineEnd(aFile, lLineStart) + 1) {
+            if (!hasNewName(aFile, lLineStart)) {
+                continue;
+            }
+            int lKeyEnd = lLineStart;
+            while (aFile.get(lKeyEnd) != '\t') {
+                ++lKeyEnd;
+            }
+            byte[] lKey = new byte[lKeyEnd - lLineStart];
+            for (int j = 0; j < lKey.length; ++j) {
+                lKey[j] = aFile.get(lLineStart + j);
+            }
+            int i = hash(lKey, 0, lKey.length) & lMask;
+            while (lLineOffsets[i] != 0) {
+                i = (i + 1) & lMask;
+            }
+            lLineOffsets[i] = lLineStart + 1;
+        }
+        return lLineOffsets;
+    }
+
+    /**
+     * Returns the end of a line of the memory-mapped file
+     * @param aFile the memory-mapped file
+     * @param aLineStart the offset of the line
+     * @return the offset of its '\n' (or the file size, for a last line without it)
+     */
+    private static int getLineEnd(MappedByteBuffer aFile, int aLineStart) {
+        int lLineEnd = aLineStart;
+        while (lLineEnd < aFile.limit() && aFile.get(lLineEnd) != '\n') {
+            ++lLineEnd;
+        }
+        return lLineEnd;
+    }
+
+    /**
+     * Checks whether a line of the memory-mapped file has 3 fields, i.e. its split("\t") has more than 2 elements:
+     * something other than tabs after its second tab
+     * @param aFile the memory-mapped file
+     * @param aLineStart the offset of the line
+     * @return true if the line gives a new name
+     */
+    private static boolean hasNewName(MappedByteBuffer aFile, int aLineStart) {
+        int lTabs = 0;
+        for (int i = aLineStart; i < aFile.limit(); ++i) {
+            byte lByte = aFile.get(i);
+            if (lByte == '\n' || (lByte == '\r' && (i + 1 == aFile.limit() || aFile.get(i + 1) == '\n'))) {
+                return false;
+            } else if (lByte == '\t') {
+                ++lTabs;
+            } else if (lTabs >= 2) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the hash of the UTF-8 bytes of a key
+     * @param aBytes the bytes of the key
+     * @param aStart the first byte of the key
+     * @param aEnd the byte after the last byte of the key
+     * @return the hash
+     */
+    private static int hash(byte[] aBytes, int aStart, int aEnd) {
+        int lHash = 0;
+        for (int i = aStart; i < aEnd; ++i) {
+            lHash = 31 * lHash + aBytes[i];
+        }
+        return lHash ^ (lHash >>> 16);
+    }
+
+    /**
+     * Checks whether the first field of a line of the memory-mapped file is the given key
+     * @param aLineStart the offset of the line
+     * @param aKey the UTF-8 bytes of the key
+     * @return true if the first field is the key
+     */
+    private boolean keyEquals(int aLineStart, byte[] aKey) {
+        int lKeyEnd = aLineStart + aKey.length;
+        if (lKeyEnd > fFile.limit() || (lKeyEnd < fFile.limit() && fFile.get(lKeyEnd) != '\t')) {
+            return false;
+        }
+        for (int i = 0; i < aKey.length; ++i) {
+            if (fFile.get(aLineStart + i) != aKey[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads a line of the memory-mapped file
+     * @param aLineStart the offset of the line
+     * @return the line, without the line terminator
+     */
+    private String readLine(int aLineStart) {
+        int lLineEnd = aLineStart;
+        while (lLineEnd < fFile.limit() && fFile.get(lLineEnd) != '\n') {
+            ++lLineEnd;
+        }
+        if (lLineEnd > aLineStart && fFile.get(lLineEnd - 1) == '\r') {
+            --lLineEnd;
+        }
+        byte[] lLine = new byte[lLineEnd - aLineStart];
+        for (int i = 0; i < lLine.length; ++i) {
+            lLine[i] = fFile.get(aLineStart + i);
+        }
+        return new String(lLine, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,114 @@
+package pt.cackossoft;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Names given to the camera models, by original camera model (as read from the metadata: make + " " + model, or the
+ * movie writing application), kept in a registry file so that each camera model is only named once.
+ * The file has one "camera model TAB name" line per camera model (UTF-8, "#" starts a comment line); the camera model
+ * is kept as it is (including any padding spaces). Some well-known camera models are always in the registry.
+ * Lookups are thread-safe.
+ */
+class CameraRegistry {
+    private static final String[][] KNOWN_CAMERA_MODELS = {
+            { "Canon Canon DIGITAL IXUS 70", "canon_ixus70_101" },
+            { "CanonMVI06", "canon_ixus70_101" },
+            { "NIKON CORPORATION NIKON D3200", "nikon_d3200_100" },
+            { "WIKO                            HIGHWAY                        ", "wiko_highway" } };
+
+    private final Path fFile;                                               // Registry file (null if not persisted)
+    private final Map<String, String> fNames = new ConcurrentHashMap<>();   // Name, by camera model
+    private final Map<String, String> fAdded = new HashMap<>();             // Names added since the registry was loaded
+
+    /**
+     * Loads the registry
+     * @param aFile the registry file (created on save, if it does not exist), or "" for a registry that is not
+     *              persisted, with the well-known camera models only
+     * @throws IOException if the registry file cannot be read
+     */
+    CameraRegistry(String aFile) throws IOException {
+        for (String[] lKnown : KNOWN_CAMERA_MODELS) {
+            fNames.put(lKnown[0], lKnown[1]);
+        }
+        fFile = aFile.isEmpty() ? null : Paths.get(aFile).toAbsolutePath();
+        if (null != fFile) {
+            fNames.putAll(read(fFile));
+        }
+    }
+
+    /**
+     * Returns the name given to a camera model
+     * @param aCameraModel the original camera model
+     * @return the name, or null if the camera model is not in the registry
+     */
+    String get(String aCameraModel) {
+        return fNames.get(aCameraModel);
+    }
+
+    /**
+     * Adds (or replaces) the name given to a camera model; it is only persisted on save
+     * @param aCameraModel the original camera model
+     * @param aName the name
+     */
+    synchronized void put(String aCameraModel, String aName) {
+        fNames.put(aCameraModel, aName);
+        fAdded.put(aCameraModel, aName);
+    }
+
+    /**
+     * Saves the names added since the registry was loaded, merging them with the registry file (which may have been
+     * changed meanwhile by another process)
+     * @throws IOException if the registry file cannot be written
+     */
+    synchronized void save() throws IOException {
+        if (null == fFile || fAdded.isEmpty()) {
+            return;
+        }
+        Map<String, String> lNames = read(fFile);
+        lNames.putAll(fAdded);
+        Files.createDirectories(fFile.getParent());
+        Path lTempFile = Paths.get(fFile + ".tmp");
+        try (BufferedWriter lWriter = Files.newBufferedWriter(lTempFile, StandardCharsets.UTF_8)) {
+            lWriter.write("# Media Converter camera model names: <camera model>\t<name>");
+            lWriter.newLine();
+            for (Map.Entry<String, String> lName : lNames.entrySet()) {
+                lWriter.write(lName.getKey() + "\t" + lName.getValue());
+                lWriter.newLine();
+            }
+        }
+        Files.move(lTempFile, fFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        fAdded.clear();
+    }
+
+    /**
+     * Reads a registry file
+     * @param aFile the registry file
+     * @return the names in the file, by camera model (empty if there is no file)
+     * @throws IOException if the registry file cannot be read
+     */
+    private static Map<String, String> read(Path aFile) throws IOException {
+        Map<String, String> lNames = new HashMap<>();
+        try (BufferedReader lReader = Files.newBufferedReader(aFile, StandardCharsets.UTF_8)) {
+            for (String lLine; null != (lLine = lReader.readLine());) {
+                int lTab = lLine.lastIndexOf('\t');
+                if (!lLine.startsWith("#") && lTab > 0 && lTab < lLine.length() - 1) {
+                    lNames.put(lLine.substring(0, lTab), lLine.substring(lTab + 1).trim());
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // No camera model was named yet
+        }
+        return lNames;
+    }
+}
@@ -0,0 +1,57 @@
+package pt.cackossoft;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Converters chained into a single pass over the files: the new name of each file is computed by all the stages, one
+ * after the other, so that a job of several converters (e.g., remove a regex, then add the timestamp and camera model
+ * prefix, then shift the timestamp) lists, and reads the metadata of, each file only once.
+ * Immutable, so it can be used by several threads at the same time.
+ */
+class ConverterPipeline {
+    static final String SEPARATOR = " -> ";     // Between the converter names of a pipeline
+
+    private final NameConverter[] fStages;
+
+    /**
+     * @param aStages the converters, in the order they are applied
+     */
+    ConverterPipeline(List<NameConverter> aStages) {
+        fStages = aStages.toArray(new NameConverter[aStages.size()]);
+    }
+
+    /**
+     * Returns the new file name, given by all the stages
+     * @param f the file that is being analysed
+     * @return "" if no stage changes the name; the new name (with folder) otherwise
+     */
+    String getNewFilePath(MediaFile f) {
+        String lName = f.getName();
+        boolean lChanged = false;
+        for (NameConverter lStage : fStages) {
+            String lNewName = lStage.convert(f, lName);
+            if (!lNewName.isEmpty()) {
+                lName = lNewName;
+                lChanged = true;
+            }
+        }
+        return lChanged ? f.getParent() + File.separator + lName : "";
+    }
+
+    /**
+     * Checks whether the new name of a file includes its camera model. Each stage is checked with the name of the file
+     * (not the one given by the previous stages, which would need the metadata), so a stage that adds the camera model
+     * only to the names given by the previous ones is not found.
+     * @param f the file that is being analysed
+     * @return true if the camera model of the file will be needed
+     */
+    boolean needsCameraModel(MediaFile f) {
+        for (NameConverter lStage : fStages) {
+            if (lStage.needsCameraModel(f, f.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
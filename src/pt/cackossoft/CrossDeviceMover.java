@@ -0,0 +1,111 @@
+package pt.cackossoft;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Moves files to another filesystem, where they cannot be atomically renamed (see RenameEngine.move). Each file is
+ * copied with FileChannel.transferTo, so the data goes from disk to disk in the kernel without passing through the
+ * Java heap. The copy is forced to disk and compared with the original, and only then is the original deleted.
+ * The copy is written to a temporary name (".part") in the target folder and renamed when complete, so an interrupted
+ * copy never leaves a partial file with the target name. At most a given number of copies run at the same time: more
+ * parallel streams would make the disks seek instead of stream.
+ * Thread-safe.
+ */
+class CrossDeviceMover {
+    private static final long CHUNK_SIZE = 64L * 1024 * 1024;   // Bytes transferred (and compared) at once
+
+    private final Semaphore fStreams;   // Copies that may run at the same time
+
+    /**
+     * @param aMaxStreams the number of copies that may run at the same time
+     */
+    CrossDeviceMover(int aMaxStreams) {
+        fStreams = new Semaphore(aMaxStreams, true);
+    }
+
+    /**
+     * Moves a file to another filesystem, never replacing an existing file
+     * @param aSource the file to be moved
+     * @param aTarget the new name (with folder, which must exist)
+     * @return the status of the move
+     */
+    RenameEngine.Status move(Path aSource, Path aTarget) {
+        try {
+            fStreams.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return RenameEngine.Status.FAILED;
+        }
+        Path lPart = aTarget.resolveSibling(aTarget.getFileName() + ".part");
+        try {
+            copy(aSource, lPart);
+            Files.move(lPart, aTarget);     // Not replacing: fails if the target exists
+            try {
+                Files.delete(aSource);
+            } catch (IOException e) {
+                Files.delete(aTarget);      // The original stays where it was
+                throw e;
+            }
+            return RenameEngine.Status.RENAMED;
+        } catch (NoSuchFileException e) {
+            return Files.exists(aSource) ? RenameEngine.Status.FAILED : RenameEngine.Status.SOURCE_MISSING;
+        } catch (FileAlreadyExistsException e) {
+            return RenameEngine.Status.TARGET_EXISTS;
+        } catch (AccessDeniedException e) {
+            return RenameEngine.Status.ACCESS_DENIED;
+        } catch (IOException e) {
+            System.out.println("Move file: " + aSource + " to " + aTarget + ": Error in copy (" + e + ")");
+            return RenameEngine.Status.FAILED;
+        } finally {
+            try {
+                Files.deleteIfExists(lPart);
+            } catch (IOException e) {
+                System.out.println("Move file: " + lPart + ": Error in delete (" + e + ")");
+            }
+            fStreams.release();
+        }
+    }
+
+    /**
+     * Copies a file, verifying the copy, and keeping its last modified time
+     * @param aSource the file to be copied
+     * @param aCopy the copy (replaced, if it exists)
+     * @throws IOException if the file cannot be copied, or the copy differs from it
+     */
+    private static void copy(Path aSource, Path aCopy) throws IOException {
+        try (FileChannel lInput = FileChannel.open(aSource, StandardOpenOption.READ);
+             FileChannel lOutput = FileChannel.open(aCopy, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                     StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long lSize = lInput.size();
+            for (long lPosition = 0; lPosition < lSize;) {
+                long lTransferred = lInput.transferTo(lPosition, Math.min(CHUNK_SIZE, lSize - lPosition), lOutput);
+                if (lTransferred <= 0) {
+                    throw new IOException("File was truncated while copied");
+                }
+                lPosition += lTransferred;
+            }
+            lOutput.force(true);
+            for (long lPosition = 0; lPosition < lSize; lPosition += CHUNK_SIZE) {
+                long lLength = Math.min(CHUNK_SIZE, lSize - lPosition);
+                MappedByteBuffer lOriginal = lInput.map(FileChannel.MapMode.READ_ONLY, lPosition, lLength);
+                MappedByteBuffer lCopy = lOutput.map(FileChannel.MapMode.READ_ONLY, lPosition, lLength);
+                if (!lOriginal.equals(lCopy)) {
+                    throw new IOException("Copy differs from the original at block " + lPosition / CHUNK_SIZE);
+                }
+            }
+            if (lOutput.size() != lSize) {
+                throw new IOException("Copy differs from the original in size");
+            }
+        }
+        Files.setLastModifiedTime(aCopy, Files.getLastModifiedTime(aSource));
+    }
+}
@@ -0,0 +1,160 @@
+package pt.cackossoft;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finds whether a file whose new name is already in use is a copy of a file that has (or will have, in this plan) one
+ * of the names of the same family (the wanted name, or it with "-1", "-2", ... appended), instead of a different file
+ * taken at the same time.
+ * The files are compared in stages, each only when the previous one matched: the sizes, then a hash of the first and
+ * last blocks, and only then a hash of the whole file. The files are read through memory-mapped channels, and their
+ * hashes are kept, so each file is read at most once.
+ * Not thread-safe: it is used by the thread that writes the plan.
+ */
+class DuplicateDetector {
+    private static final int BLOCK_SIZE = 64 * 1024;            // Size of the first and last blocks
+    private static final long MAPPED_SIZE = 256L * 1024 * 1024;   // Largest region of a file mapped at once
+
+    private final Map<Path, Path> fPlannedSources = new HashMap<>();    // File that will have each planned new name
+    private final Map<Path, byte[]> fEdgeHashes = new HashMap<>();      // Hash of the first and last blocks, by file
+    private final Map<Path, byte[]> fFullHashes = new HashMap<>();      // Hash of the whole file, by file
+
+    /**
+     * Records a rename added to the plan: its new name has the contents of the file being renamed
+     * @param aSource the file to be renamed (absolute)
+     * @param aTarget its new name (absolute)
+     */
+    void planned(Path aSource, Path aTarget) {
+        fPlannedSources.put(aTarget, aSource);
+    }
+
+    /**
+     * Forgets the renames of the plan and the hashes (the files may change before the next plan)
+     */
+    void clear() {
+        fPlannedSources.clear();
+        fEdgeHashes.clear();
+        fFullHashes.clear();
+    }
+
+    /**
+     * Finds a file with the same contents among those with the names of the family of a new name
+     * @param aFile the file to be renamed (absolute)
+     * @param aWanted the new name given by the converter (absolute)
+     * @param aReserved the free name reserved for it, with a number appended (see RenameEngine.reserve)
+     * @return the file with the same contents (its current path), or null if there is none
+     * @throws IOException if the files cannot be read
+     */
+    Path findDuplicate(Path aFile, Path aWanted, Path aReserved) throws IOException {
+        String lName = aWanted.getFileName().toString();
+        int lIndexExtension = lName.lastIndexOf('.');
+        String lBaseName = lIndexExtension < 0 ? lName : lName.substring(0, lIndexExtension);
+        String lExtension = lIndexExtension < 0 ? "" : lName.substring(lIndexExtension);
+        String lReservedName = aReserved.getFileName().toString();
+        int lLastSuffix;
+        try {
+            lLastSuffix = Integer.parseInt(lReservedName.substring(lBaseName.length() + 1, lReservedName.length() - lExtension.length()));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return null;    // Not a name of the family
+        }
+        for (int lNum = 0; lNum < lLastSuffix; ++lNum) {
+            Path lFamilyName = 0 == lNum ? aWanted : aWanted.resolveSibling(lBaseName + "-" + lNum + lExtension);
+            Path lOther = fPlannedSources.containsKey(lFamilyName) ? fPlannedSources.get(lFamilyName) : lFamilyName;
+            if (Files.isRegularFile(lOther, LinkOption.NOFOLLOW_LINKS) && !Files.isSameFile(aFile, lOther) && isSameContents(aFile, lOther)) {
+                return lOther;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Compares the contents of two files
+     * @param aFile a file
+     * @param aOther the other file
+     * @return true if both are byte-identical (by their SHA-256 hash)
+     * @throws IOException if the files cannot be read
+     */
+    private boolean isSameContents(Path aFile, Path aOther) throws IOException {
+        long lSize = Files.size(aFile);
+        if (lSize != Files.size(aOther) || !Arrays.equals(getHash(aFile, false), getHash(aOther, false))) {
+            return false;
+        }
+        // Files up to two blocks were already fully hashed
+        return lSize <= 2 * BLOCK_SIZE || Arrays.equals(getHash(aFile, true), getHash(aOther, true));
+    }
+
+    /**
+     * Returns the hash of a file, computing it on first use
+     * @param aFile the file
+     * @param aFull whether the whole file is hashed, or only its first and last blocks
+     * @return the SHA-256 hash
+     * @throws IOException if the file cannot be read
+     */
+    private byte[] getHash(Path aFile, boolean aFull) throws IOException {
+        Map<Path, byte[]> lHashes = aFull ? fFullHashes : fEdgeHashes;
+        byte[] lHash = lHashes.get(aFile);
+        if (null == lHash) {
+            MessageDigest lDigest;
+            try {
+                lDigest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);     // Every Java platform has SHA-256
+            }
+            if (FileSystems.getDefault() != aFile.getFileSystem()) {
+                hashStream(aFile, aFull, lDigest);  // E.g. an entry of a ZIP archive, which cannot be mapped
+            } else {
+                try (FileChannel lChannel = FileChannel.open(aFile, StandardOpenOption.READ)) {
+                    long lSize = lChannel.size();
+                    if (aFull || lSize <= 2 * BLOCK_SIZE) {
+                        for (long lPosition = 0; lPosition < lSize; lPosition += MAPPED_SIZE) {
+                            lDigest.update(lChannel.map(FileChannel.MapMode.READ_ONLY, lPosition, Math.min(MAPPED_SIZE, lSize - lPosition)));
+                        }
+                    } else {
+                        lDigest.update(lChannel.map(FileChannel.MapMode.READ_ONLY, 0, BLOCK_SIZE));
+                        lDigest.update(lChannel.map(FileChannel.MapMode.READ_ONLY, lSize - BLOCK_SIZE, BLOCK_SIZE));
+                    }
+                }
+            }
+            lHash = lDigest.digest();
+            lHashes.put(aFile, lHash);
+        }
+        return lHash;
+    }
+
+    /**
+     * Hashes a file that is read through a stream (see MediaChannels.open), in the same way as getHash
+     * @param aFile the file
+     * @param aFull whether the whole file is hashed, or only its first and last blocks
+     * @param aDigest the hash
+     * @throws IOException if the file cannot be read
+     */
+    private static void hashStream(Path aFile, boolean aFull, MessageDigest aDigest) throws IOException {
+        try (SeekableByteChannel lChannel = MediaChannels.open(aFile)) {
+            long lSize = lChannel.size();
+            if (aFull || lSize <= 2 * BLOCK_SIZE) {
+                ByteBuffer lBuffer = ByteBuffer.allocate(BLOCK_SIZE);
+                while (lChannel.read(lBuffer) >= 0) {
+                    lBuffer.flip();
+                    aDigest.update(lBuffer);
+                    lBuffer.clear();
+                }
+            } else {
+                aDigest.update(MediaChannels.readFully(lChannel, 0, BLOCK_SIZE));
+                aDigest.update(MediaChannels.readFully(lChannel, lSize - BLOCK_SIZE, BLOCK_SIZE));
+            }
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package pt.cackossoft;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Timeline of the media files of a scan, cut into events: bursts of captures (by any camera) separated by gaps longer
+ * than a threshold. The files are sorted by timestamp with an external sort, so that the memory does not depend on the
+ * size of the library: they are collected into runs of at most a given number of files, each run is sorted and written
+ * to a temporary file, and the runs are then merged, at most MAX_FAN_IN at a time (in several passes for the largest
+ * libraries). The events are cut in a single pass over the merged timeline, and written to the event index, one
+ * "event TAB timestamp TAB camera TAB path" line per file, in timestamp order. The event is the timestamp of its first
+ * file ("yyyyMMdd_HHmmss"), so it can be used as a folder name.
+ * Not thread-safe: it is built by the thread that writes the plan.
+ */
+class EventTimeline implements Closeable {
+    private static final int MAX_FAN_IN = 32;       // Runs merged at the same time
+    private static final int BUFFER_SIZE = 64 * 1024;   // Read/write buffer of each run
+
+    /**
+     * Media file of the timeline
+     */
+    private static final class Entry implements Comparable<Entry> {
+        final long timestamp;   // Capture timestamp, in epoch seconds
+        final String camera;    // Camera name ("" if none)
+        final String path;
+
+        Entry(long aTimestamp, String aCamera, String aPath) {
+            timestamp = aTimestamp;
+            camera = aCamera;
+            path = aPath;
+        }
+
+        @Override
+        public int compareTo(Entry aOther) {
+            int lCompare = Long.compare(timestamp, aOther.timestamp);
+            return 0 != lCompare ? lCompare : path.compareTo(aOther.path);
+        }
+    }
+
+    private final long fGapSeconds;
+    private final long fMaxSpanSeconds;
+    private final int fRunSize;
+    private final Path fRunFolder;          // Where the runs are written (deleted when closed)
+    private final List<Entry> fRun = new ArrayList<>();     // The run being collected
+    private final List<Path> fRuns = new ArrayList<>();     // The runs written, not yet merged
+    private int runCount;                   // Runs written so far (names the run files)
+    private long size;
+
+    /**
+     * Starts an empty timeline
+     * @param aIndexFile the event index file (the runs are written to a temporary folder next to it)
+     * @param aGapSeconds the shortest gap between two events
+     * @param aMaxSpanSeconds the longest time from the first file of an event to its last (0 for no limit): a longer
+     *                        burst (e.g. a trip) is cut into several events
+     * @param aRunSize the number of files sorted in memory at the same time
+     * @throws IOException if the temporary folder cannot be created
+     */
+    EventTimeline(Path aIndexFile, long aGapSeconds, long aMaxSpanSeconds, int aRunSize) throws IOException {
+        Path lFolder = aIndexFile.toAbsolutePath().getParent();
+        Files.createDirectories(lFolder);
+        fRunFolder = Files.createTempDirectory(lFolder, aIndexFile.getFileName() + ".runs");
+        fGapSeconds = aGapSeconds;
+        fMaxSpanSeconds = aMaxSpanSeconds;
+        fRunSize = Math.max(1, aRunSize);
+    }
+
+    /**
+     * Adds a media file to the timeline
+     * @param aPath its path (after the plan is applied)
+     * @param aTimestamp its capture timestamp (null if none: the file is not in the timeline)
+     * @param aCamera its camera name (null if none)
+     * @throws IOException if a run cannot be written
+     */
+    void add(Path aPath, Date aTimestamp, String aCamera) throws IOException {
+        if (null == aTimestamp) {
+            return;
+        }
+        fRun.add(new Entry(aTimestamp.getTime() / 1000, null == aCamera ? "" : aCamera, aPath.toString()));
+        ++size;
+        if (fRun.size() >= fRunSize) {
+            writeRun();
+        }
+    }
+
+    /**
+     * @return the number of media files in the timeline
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * Sorts the run being collected and writes it to a run file
+     * @throws IOException if the run cannot be written
+     */
+    private void writeRun() throws IOException {
+        Collections.sort(fRun);
+        Path lRun = newRunFile();
+        try (DataOutputStream lOutput = openRun(lRun, fRun.size())) {
+            for (Entry lEntry : fRun) {
+                writeEntry(lOutput, lEntry);
+            }
+        }
+        fRuns.add(lRun);
+        fRun.clear();
+    }
+
+    /**
+     * Merges the runs, cuts the events and writes the event index (atomically replacing it)
+     * @param aIndexFile the event index file
+     * @return the number of events
+     * @throws IOException if a run cannot be read, or the index cannot be written
+     */
+    int write(Path aIndexFile) throws IOException {
+        if (!fRun.isEmpty()) {
+            writeRun();
+        }
+        // Intermediate passes: the oldest runs are merged into one, until the last pass merges them all at once. The
+        // merged run is listed before it is written, and each run is unlisted only once it is deleted, so that close()
+        // deletes them all if the merge fails.
+        while (fRuns.size() > MAX_FAN_IN) {
+            List<Path> lRuns = new ArrayList<>(fRuns.subList(0, MAX_FAN_IN));
+            Path lMerged = newRunFile();
+            fRuns.add(lMerged);
+            try (RunMerger lMerger = new RunMerger(lRuns); DataOutputStream lOutput = openRun(lMerged, lMerger.size())) {
+                for (Entry lEntry; null != (lEntry = lMerger.next());) {
+                    writeEntry(lOutput, lEntry);
+                }
+            }
+            for (Path lRun : lRuns) {
+                Files.delete(lRun);
+                fRuns.remove(0);
+            }
+        }
+        int lEvents = 0;
+        Path lTempFile = Paths.get(aIndexFile + ".tmp");
+        try (RunMerger lMerger = new RunMerger(fRuns); BufferedWriter lWriter = Files.newBufferedWriter(lTempFile, StandardCharsets.UTF_8)) {
+            String lEvent = null;
+            long lEventStart = 0;
+            long lPrevious = 0;
+            for (Entry lEntry; null != (lEntry = lMerger.next());) {
+                if (null == lEvent || lEntry.timestamp - lPrevious > fGapSeconds
+                        || (0 != fMaxSpanSeconds && lEntry.timestamp - lEventStart > fMaxSpanSeconds)) {
+                    lEvent = NameTransformer.formatTimestamp(new Date(lEntry.timestamp * 1000));
+                    lEventStart = lEntry.timestamp;
+                    ++lEvents;
+                }
+                lPrevious = lEntry.timestamp;
+                lWriter.write(lEvent + "\t" + NameTransformer.formatTimestamp(new Date(lEntry.timestamp * 1000)) + "\t"
+                        + (lEntry.camera.isEmpty() ? "-" : lEntry.camera) + "\t" + lEntry.path);
+                lWriter.newLine();
+            }
+        }
+        Files.move(lTempFile, aIndexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return lEvents;
+    }
+
+    /**
+     * Deletes the run files
+     */
+    @Override
+    public void close() {
+        try {
+            for (Path lRun : fRuns) {
+                Files.deleteIfExists(lRun);
+            }
+            Files.deleteIfExists(fRunFolder);
+        } catch (IOException e) {
+            System.out.println("Event index: Error in delete of " + fRunFolder + " (" + e + ")");
+        }
+        fRuns.clear();
+        fRun.clear();
+    }
+
+    private Path newRunFile() {
+        return fRunFolder.resolve("run" + runCount++);
+    }
+
+    private static DataOutputStream openRun(Path aRun, long aSize) throws IOException {
+        DataOutputStream lOutput = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(aRun), BUFFER_SIZE));
+        lOutput.writeLong(aSize);
+        return lOutput;
+    }
+
+    private static void writeEntry(DataOutputStream aOutput, Entry aEntry) throws IOException {
+        aOutput.writeLong(aEntry.timestamp);
+        aOutput.writeUTF(aEntry.camera);
+        aOutput.writeUTF(aEntry.path);
+    }
+
+    /**
+     * K-way merge of sorted runs: the next entry is always the first of the run whose first entry is the smallest, so
+     * only one entry (and one buffer) of each run is in memory
+     */
+    private static final class RunMerger implements Closeable {
+        private final List<RunReader> fReaders = new ArrayList<>();
+        private final PriorityQueue<RunReader> fQueue = new PriorityQueue<>();
+        private long size;
+
+        /**
+         * @param aRuns the run files
+         * @throws IOException if a run cannot be read
+         */
+        RunMerger(List<Path> aRuns) throws IOException {
+            try {
+                for (Path lRun : aRuns) {
+                    RunReader lReader = new RunReader(lRun);
+                    fReaders.add(lReader);
+                    size += lReader.remaining;
+                    if (lReader.next()) {
+                        fQueue.add(lReader);
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return the number of entries of all the runs
+         */
+        long size() {
+            return size;
+        }
+
+        /**
+         * @return the next entry in timestamp order, or null after the last one
+         * @throws IOException if a run cannot be read
+         */
+        Entry next() throws IOException {
+            RunReader lReader = fQueue.poll();
+            if (null == lReader) {
+                return null;
+            }
+            Entry lEntry = lReader.current;
+            if (lReader.next()) {
+                fQueue.add(lReader);
+            }
+            return lEntry;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (RunReader lReader : fReaders) {
+                lReader.fInput.close();
+            }
+        }
+    }
+
+    /**
+     * Reader of a run, positioned at one of its entries
+     */
+    private static final class RunReader implements Comparable<RunReader> {
+        private final DataInputStream fInput;
+        long remaining;     // Entries not yet read
+        Entry current;
+
+        RunReader(Path aRun) throws IOException {
+            fInput = new DataInputStream(new BufferedInputStream(Files.newInputStream(aRun), BUFFER_SIZE));
+            remaining = fInput.readLong();
+        }
+
+        /**
+         * Reads the next entry into current
+         * @return false if there is none
+         * @throws IOException if the run cannot be read
+         */
+        boolean next() throws IOException {
+            if (0 == remaining) {
+                current = null;
+                return false;
+            }
+            --remaining;
+            current = new Entry(fInput.readLong(), fInput.readUTF(), fInput.readUTF());
+            return true;
+        }
+
+        @Override
+        public int compareTo(RunReader aOther) {
+            return current.compareTo(aOther.current);
+        }
+    }
+}
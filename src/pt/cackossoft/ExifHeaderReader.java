@@ -0,0 +1,564 @@
+package pt.cackossoft;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * Fast reader of the only EXIF tags that are used: Make and Model (IFD0) and DateTimeOriginal (Exif SubIFD).
+ * Only the JPEG segment headers up to the Exif APP1 segment, and that segment, are read (for TIFF based files, only
+ * the IFD0 and Exif SubIFD entries and values; for HEIF files, the meta box and the Exif item; for CR3 files, the box headers up to the Canon box and its CMT1 and CMT2 boxes), without building the full metadata-extractor Metadata object graph.
+ * When the file does not fit this path (other formats, unexpected layouts), read() returns null and the caller should
+ * use the full ImageMetadataReader parse instead.
+ */
+class ExifHeaderReader {
+    private static final int TAG_MAKE = 0x010F;
+    private static final int TAG_MODEL = 0x0110;
+    private static final int TAG_EXIF_SUB_IFD = 0x8769;
+    private static final int TAG_DATETIME_ORIGINAL = 0x9003;
+    private static final int FORMAT_ASCII = 2;
+    private static final int MAX_TIFF_PREFIX = 64 * 1024;     // Bytes read at once from the start of TIFF based files
+    private static final int MAX_HEIF_META = 1024 * 1024;     // Largest meta box of a HEIF file that is read
+    private static final int MAX_BOXES = 64;                  // Boxes of a HEIF or CR3 file walked to find one of them
+    // User type of the uuid box of a CR3 file with the Canon metadata (CMT1: IFD0, CMT2: Exif SubIFD, ...)
+    private static final byte[] CANON_UUID = { (byte) 0x85, (byte) 0xC0, (byte) 0xB6, (byte) 0x87, (byte) 0x82, 0x0F, 0x11, (byte) 0xE0,
+                                               (byte) 0x81, 0x11, (byte) 0xF4, (byte) 0xCE, 0x46, 0x2B, 0x6A, 0x48 };
+
+    /**
+     * Tags read from a file
+     */
+    static final class Result {
+        Date timestamp;         // DateTimeOriginal (null if there is no such tag)
+        String cameraModel;     // Make + " " + Model, as metadata-extractor describes them ("null" for a missing tag)
+        String dateTimeOriginal;        // DateTimeOriginal as written in the file ("yyyy:MM:dd HH:mm:ss")
+        long dateTimeOriginalPosition = -1;     // Position in the file of its value (-1 if there is no such tag)
+    }
+
+    private final SeekableByteChannel fChannel;
+    private final long fTiffStart;      // Position in the file where the TIFF data starts
+    private final long fTiffEnd;        // Position in the file where the TIFF data ends
+    private ByteBuffer fTiff;           // TIFF data read so far (from fTiffStart)
+
+    private ExifHeaderReader(SeekableByteChannel aChannel, long aTiffStart, long aTiffEnd) {
+        fChannel = aChannel;
+        fTiffStart = aTiffStart;
+        fTiffEnd = aTiffEnd;
+    }
+
+    /**
+     * Reads the tags from a JPEG, TIFF based, HEIF or CR3 file
+     * @param aPath the file that is being analysed
+     * @return the tags, or null if the file does not fit the fast path
+     * @throws IOException if the file cannot be read
+     */
+    static Result read(Path aPath) throws IOException {
+        try (SeekableByteChannel lChannel = MediaChannels.open(aPath)) {
+            return read(lChannel, MediaFormat.read(lChannel));
+        }
+    }
+
+    /**
+     * Reads the tags from a file already open (and whose format is known)
+     * @param aChannel the file that is being analysed
+     * @param aFormat its format
+     * @return the tags, or null if the file does not fit the fast path
+     * @throws IOException if the file cannot be read
+     */
+    static Result read(SeekableByteChannel aChannel, MediaFormat aFormat) throws IOException {
+        switch (aFormat) {
+            case JPEG:
+                return readJpeg(aChannel);
+            case TIFF:
+                return new ExifHeaderReader(aChannel, 0, aChannel.size()).readTiff();
+            case HEIF:
+                return readHeif(aChannel);
+            case CR3:
+                return readCr3(aChannel);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Walks the JPEG segment headers up to the Exif APP1 segment, and reads the tags from it
+     * @param aChannel the file
+     * @return the tags, or null if the file does not fit the fast path
+     * @throws IOException if the file cannot be read
+     */
+    private static Result readJpeg(SeekableByteChannel aChannel) throws IOException {
+        long lPosition = 2;
+        for (;;) {
+            ByteBuffer lMarker = MediaChannels.readFully(aChannel, lPosition, 4);
+            if (null == lMarker || (lMarker.get(0) & 0xFF) != 0xFF) {
+                return null;
+            }
+            int lType = lMarker.get(1) & 0xFF;
+            if (lType == 0xFF) {                    // Fill byte
+                ++lPosition;
+                continue;
+            }
+            if (lType == 0xDA || lType == 0xD9) {   // Start of scan / end of image: there is no Exif segment
+                return null;
+            }
+            if (lType == 0x01 || (lType >= 0xD0 && lType <= 0xD7)) {    // Markers without length
+                lPosition += 2;
+                continue;
+            }
+            int lLength = lMarker.getShort(2) & 0xFFFF;
+            if (lLength < 2) {
+                return null;
+            }
+            if (lType == 0xE1 && lLength >= 2 + 6 + 8) {
+                ByteBuffer lExifHeader = MediaChannels.readFully(aChannel, lPosition + 4, 6);
+                if (null != lExifHeader && "Exif\0\0".equals(new String(lExifHeader.array(), StandardCharsets.ISO_8859_1))) {
+                    long lTiffStart = lPosition + 4 + 6;
+                    return new ExifHeaderReader(aChannel, lTiffStart, lPosition + 2 + lLength).readTiff();
+                }
+            }
+            lPosition += 2 + lLength;
+        }
+    }
+
+    /**
+     * Finds the Exif item of a HEIF file, through the item information (iinf) and item location (iloc) boxes of its
+     * top-level meta box, and reads the tags from it. Only the meta box and the Exif item are read.
+     * @param aChannel the file
+     * @return the tags, or null if the file does not fit the fast path
+     * @throws IOException if the file cannot be read
+     */
+    private static Result readHeif(SeekableByteChannel aChannel) throws IOException {
+        long lSize = aChannel.size();
+        long[] lMetaBox = findBox(aChannel, 0, lSize, "meta");
+        if (null == lMetaBox || lMetaBox[1] - lMetaBox[0] > MAX_HEIF_META) {
+            return null;
+        }
+        ByteBuffer lMeta = MediaChannels.readFully(aChannel, lMetaBox[0], (int) (lMetaBox[1] - lMetaBox[0]));
+        if (null == lMeta) {
+            return null;
+        }
+        try {
+            long lExifItem = getHeifExifItem(lMeta);
+            if (lExifItem < 0) {
+                return null;
+            }
+            long[] lExtent = getHeifItemExtent(lMeta, lExifItem);
+            if (null == lExtent || lExtent[0] + 4 > lSize) {
+                return null;
+            }
+            long lEnd = lExtent[1] == 0 ? lSize : Math.min(lSize, lExtent[0] + lExtent[1]);
+            // The item starts with the offset of the TIFF header (after "Exif\0\0", usually)
+            ByteBuffer lTiffOffset = MediaChannels.readFully(aChannel, lExtent[0], 4);
+            if (null == lTiffOffset) {
+                return null;
+            }
+            long lTiffStart = lExtent[0] + 4 + (lTiffOffset.getInt(0) & 0xFFFFFFFFL);
+            return lTiffStart < lEnd ? new ExifHeaderReader(aChannel, lTiffStart, lEnd).readTiff() : null;
+        } catch (IndexOutOfBoundsException e) {
+            return null;    // A box shorter than its content
+        }
+    }
+
+    /**
+     * Finds the Canon box of a CR3 file (a uuid box in its moov box), and reads the tags from the TIFF data of its CMT1
+     * (IFD0) and CMT2 (Exif SubIFD) boxes. Only the box headers on the way and the two TIFF data are read.
+     * @param aChannel the file
+     * @return the tags, or null if the file does not fit the fast path
+     * @throws IOException if the file cannot be read
+     */
+    private static Result readCr3(SeekableByteChannel aChannel) throws IOException {
+        long[] lMoov = findBox(aChannel, 0, aChannel.size(), "moov");
+        long[] lCanon = null == lMoov ? null : findBox(aChannel, lMoov[0], lMoov[1], "uuid");
+        if (null == lCanon) {
+            return null;
+        }
+        ByteBuffer lUuid = MediaChannels.readFully(aChannel, lCanon[0], CANON_UUID.length);
+        if (null == lUuid || lCanon[0] + CANON_UUID.length > lCanon[1] || !Arrays.equals(CANON_UUID, lUuid.array())) {
+            return null;
+        }
+        long[] lIfd0 = findBox(aChannel, lCanon[0] + CANON_UUID.length, lCanon[1], "CMT1");
+        long[] lExifSubIfd = findBox(aChannel, lCanon[0] + CANON_UUID.length, lCanon[1], "CMT2");
+        if (null == lIfd0 || null == lExifSubIfd) {
+            return null;
+        }
+        // Each box has its own TIFF data, whose first IFD is the one in its name (its Exif SubIFD pointer is not used)
+        ExifHeaderReader lReader = new ExifHeaderReader(aChannel, lIfd0[0], lIfd0[1]);
+        long lIfd = lReader.readHeader();
+        Result lResult = new Result();
+        if (lIfd < 0 || lReader.readIfd0(lIfd, lResult) < 0) {
+            return null;
+        }
+        lReader = new ExifHeaderReader(aChannel, lExifSubIfd[0], lExifSubIfd[1]);
+        lIfd = lReader.readHeader();
+        return lIfd >= 0 && lReader.readExifSubIfd(lIfd, lResult) ? lResult : null;
+    }
+
+    /**
+     * Finds a box among the boxes between two positions of a file, reading only their headers
+     * @param aChannel the file
+     * @param aStart position of the first box
+     * @param aEnd position after the last box
+     * @param aType the type of the box
+     * @return the positions of the content of the box and after the box, or null if it is not found within MAX_BOXES
+     *         boxes (or a box before it is not valid)
+     * @throws IOException if the file cannot be read
+     */
+    private static long[] findBox(SeekableByteChannel aChannel, long aStart, long aEnd, String aType) throws IOException {
+        for (long lPosition = aStart, lBoxes = 0; lPosition + 8 <= aEnd;) {
+            ByteBuffer lHeader = MediaChannels.readFully(aChannel, lPosition, 8);
+            if (null == lHeader || ++lBoxes > MAX_BOXES) {
+                return null;
+            }
+            long lBoxSize = lHeader.getInt(0) & 0xFFFFFFFFL;
+            int lHeaderSize = 8;
+            if (lBoxSize == 1) {            // 64 bits size
+                ByteBuffer lLargeSize = MediaChannels.readFully(aChannel, lPosition + 8, 8);
+                if (null == lLargeSize) {
+                    return null;
+                }
+                lBoxSize = lLargeSize.getLong(0);
+                lHeaderSize = 16;
+            } else if (lBoxSize == 0) {     // Up to the end
+                lBoxSize = aEnd - lPosition;
+            }
+            if (lBoxSize < lHeaderSize || lPosition + lBoxSize > aEnd) {
+                return null;
+            }
+            if (aType.equals(getType(lHeader, 4))) {
+                return new long[] { lPosition + lHeaderSize, lPosition + lBoxSize };
+            }
+            lPosition += lBoxSize;
+        }
+        return null;
+    }
+
+    /**
+     * Finds the Exif item in the item information (iinf) box
+     * @param aMeta the content of the meta box
+     * @return the ID of the Exif item, or -1 if there is none
+     */
+    private static long getHeifExifItem(ByteBuffer aMeta) {
+        int lIinf = findBox(aMeta, 4, aMeta.limit(), "iinf");
+        if (lIinf < 0) {
+            return -1;
+        }
+        int lIinfEnd = lIinf + aMeta.getInt(lIinf);
+        for (int lInfe = lIinf + 12 + (0 == aMeta.get(lIinf + 8) ? 2 : 4); (lInfe = findBox(aMeta, lInfe, lIinfEnd, "infe")) >= 0;
+                lInfe += aMeta.getInt(lInfe)) {
+            int lVersion = aMeta.get(lInfe + 8);
+            if (lVersion >= 2) {    // The older versions have no item type
+                long lItem = 2 == lVersion ? aMeta.getShort(lInfe + 12) & 0xFFFF : aMeta.getInt(lInfe + 12) & 0xFFFFFFFFL;
+                int lType = lInfe + 12 + (2 == lVersion ? 2 : 4) + 2;
+                if (lType + 4 <= lInfe + aMeta.getInt(lInfe) && "Exif".equals(getType(aMeta, lType))) {
+                    return lItem;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the location of an item in the item location (iloc) box
+     * @param aMeta the content of the meta box
+     * @param aItem the ID of the item
+     * @return the position and length (0 for up to the end of the file) of the item, or null if it is not found, or
+     *         not stored as a single extent of the file
+     */
+    private static long[] getHeifItemExtent(ByteBuffer aMeta, long aItem) {
+        int lIloc = findBox(aMeta, 4, aMeta.limit(), "iloc");
+        if (lIloc < 0) {
+            return null;
+        }
+        int lVersion = aMeta.get(lIloc + 8);
+        int lPosition = lIloc + 12;
+        int lOffsetSize = (aMeta.get(lPosition) & 0xFF) >> 4;
+        int lLengthSize = aMeta.get(lPosition) & 0x0F;
+        int lBaseOffsetSize = (aMeta.get(lPosition + 1) & 0xFF) >> 4;
+        int lIndexSize = 0 == lVersion ? 0 : aMeta.get(lPosition + 1) & 0x0F;
+        lPosition += 2;
+        long lCount = lVersion < 2 ? aMeta.getShort(lPosition) & 0xFFFF : aMeta.getInt(lPosition) & 0xFFFFFFFFL;
+        lPosition += lVersion < 2 ? 2 : 4;
+        for (long i = 0; i < lCount; ++i) {
+            long lItem = lVersion < 2 ? aMeta.getShort(lPosition) & 0xFFFF : aMeta.getInt(lPosition) & 0xFFFFFFFFL;
+            lPosition += lVersion < 2 ? 2 : 4;
+            int lConstructionMethod = 0;
+            if (0 != lVersion) {
+                lConstructionMethod = aMeta.getShort(lPosition) & 0x0F;
+                lPosition += 2;
+            }
+            lPosition += 2;     // Data reference index
+            long lBaseOffset = getUnsigned(aMeta, lPosition, lBaseOffsetSize);
+            lPosition += lBaseOffsetSize;
+            int lExtents = aMeta.getShort(lPosition) & 0xFFFF;
+            lPosition += 2;
+            long[] lExtent = null;
+            for (int j = 0; j < lExtents; ++j) {
+                lPosition += lIndexSize;
+                long lOffset = getUnsigned(aMeta, lPosition, lOffsetSize);
+                lPosition += lOffsetSize;
+                long lLength = getUnsigned(aMeta, lPosition, lLengthSize);
+                lPosition += lLengthSize;
+                lExtent = new long[] { lBaseOffset + lOffset, lLength };
+            }
+            if (lItem == aItem) {
+                // Only the items stored in the file (not in the idat box) as a single extent
+                return 0 == lConstructionMethod && 1 == lExtents ? lExtent : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds a box among the boxes between two positions of a buffer
+     * @param aBuffer the boxes
+     * @param aStart position of the first box
+     * @param aEnd position after the last box
+     * @param aType the type of the box
+     * @return the position of the box, or -1 if there is none
+     */
+    private static int findBox(ByteBuffer aBuffer, int aStart, int aEnd, String aType) {
+        for (int lPosition = aStart; lPosition + 8 <= aEnd;) {
+            int lSize = aBuffer.getInt(lPosition);
+            if (lSize < 8 || lPosition + (long) lSize > aEnd) {
+                return -1;
+            }
+            if (aType.equals(getType(aBuffer, lPosition + 4))) {
+                return lPosition;
+            }
+            lPosition += lSize;
+        }
+        return -1;
+    }
+
+    /**
+     * @param aBuffer the data
+     * @param aPosition position of the number
+     * @param aSize size of the number, in bytes (0, 4 or 8)
+     * @return the (big endian) number; 0 for size 0
+     */
+    private static long getUnsigned(ByteBuffer aBuffer, int aPosition, int aSize) {
+        switch (aSize) {
+            case 0:
+                return 0;
+            case 4:
+                return aBuffer.getInt(aPosition) & 0xFFFFFFFFL;
+            case 8:
+                return aBuffer.getLong(aPosition);
+            default:
+                throw new IndexOutOfBoundsException("Invalid field size: " + aSize);
+        }
+    }
+
+    private static String getType(ByteBuffer aBuffer, int aPosition) {
+        return new String(aBuffer.array(), aPosition, 4, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Reads the tags from the TIFF data: IFD0 and, through its pointer, the Exif SubIFD
+     * @return the tags, or null if the data does not fit the fast path
+     * @throws IOException if the file cannot be read
+     */
+    private Result readTiff() throws IOException {
+        long lIfd0 = readHeader();
+        if (lIfd0 < 0) {
+            return null;
+        }
+        Result lResult = new Result();
+        long lExifSubIfd = readIfd0(lIfd0, lResult);
+        if (lExifSubIfd < 0 || (lExifSubIfd > 0 && !readExifSubIfd(lExifSubIfd, lResult))) {
+            return null;
+        }
+        return lResult;
+    }
+
+    /**
+     * Reads the TIFF header, setting the byte order of fTiff
+     * @return the offset of the first IFD, or -1 if the data is not TIFF
+     * @throws IOException if the file cannot be read
+     */
+    private long readHeader() throws IOException {
+        if (!ensure(8)) {
+            return -1;
+        }
+        if (fTiff.get(0) == 'I' && fTiff.get(1) == 'I') {
+            fTiff.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (!(fTiff.get(0) == 'M' && fTiff.get(1) == 'M')) {
+            return -1;
+        }
+        return fTiff.getShort(2) == 42 ? fTiff.getInt(4) & 0xFFFFFFFFL : -1;
+    }
+
+    /**
+     * Reads Make and Model from IFD0
+     * @param aIfd0 the offset of IFD0 in the TIFF data
+     * @param aResult where the camera model is set
+     * @return the offset of the Exif SubIFD (0 if there is no pointer to it), or -1 if IFD0 is out of the TIFF data
+     * @throws IOException if the file cannot be read
+     */
+    private long readIfd0(long aIfd0, Result aResult) throws IOException {
+        String lMake = null;
+        String lModel = null;
+        long lExifSubIfd = 0;
+        int lEntries = getEntryCount(aIfd0);
+        if (lEntries < 0) {
+            return -1;
+        }
+        for (int i = 0; i < lEntries; ++i) {
+            int lEntry = (int) aIfd0 + 2 + 12 * i;
+            int lTag = fTiff.getShort(lEntry) & 0xFFFF;
+            if (lTag == TAG_MAKE) {
+                lMake = getAscii(lEntry);
+            } else if (lTag == TAG_MODEL) {
+                lModel = getAscii(lEntry);
+            } else if (lTag == TAG_EXIF_SUB_IFD) {
+                lExifSubIfd = fTiff.getInt(lEntry + 8) & 0xFFFFFFFFL;
+            }
+        }
+        aResult.cameraModel = lMake + " " + lModel;
+        return lExifSubIfd;
+    }
+
+    /**
+     * Reads DateTimeOriginal from the Exif SubIFD
+     * @param aExifSubIfd the offset of the Exif SubIFD in the TIFF data
+     * @param aResult where the timestamp is set (left null if there is no such tag)
+     * @return false if the Exif SubIFD is out of the TIFF data, or the timestamp has an unusual format
+     * @throws IOException if the file cannot be read
+     */
+    private boolean readExifSubIfd(long aExifSubIfd, Result aResult) throws IOException {
+        int lEntries = getEntryCount(aExifSubIfd);
+        if (lEntries < 0) {
+            return false;
+        }
+        for (int i = 0; i < lEntries; ++i) {
+            int lEntry = (int) aExifSubIfd + 2 + 12 * i;
+            if ((fTiff.getShort(lEntry) & 0xFFFF) == TAG_DATETIME_ORIGINAL) {
+                String lDateTime = getAscii(lEntry);
+                if (null != lDateTime) {
+                    aResult.timestamp = parseDateTime(lDateTime);
+                    if (null == aResult.timestamp) {
+                        return false;   // Unusual format: let metadata-extractor parse it
+                    }
+                    aResult.dateTimeOriginal = lDateTime;
+                    aResult.dateTimeOriginalPosition = fTiffStart + getValueOffset(lEntry);
+                }
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of entries of an IFD, making sure that all of them are available in fTiff
+     * @param aIfd the offset of the IFD in the TIFF data
+     * @return the number of entries, or -1 if the IFD is out of the TIFF data
+     * @throws IOException if the file cannot be read
+     */
+    private int getEntryCount(long aIfd) throws IOException {
+        if (aIfd < 8 || !ensure(aIfd + 2)) {
+            return -1;
+        }
+        int lEntries = fTiff.getShort((int) aIfd) & 0xFFFF;
+        return ensure(aIfd + 2 + 12L * lEntries) ? lEntries : -1;
+    }
+
+    /**
+     * Returns the ASCII value of an IFD entry, up to its first null character
+     * @param aEntry the offset of the IFD entry in the TIFF data
+     * @return the value, or null if it is not ASCII or is out of the TIFF data
+     * @throws IOException if the file cannot be read
+     */
+    private String getAscii(int aEntry) throws IOException {
+        if ((fTiff.getShort(aEntry + 2) & 0xFFFF) != FORMAT_ASCII) {
+            return null;
+        }
+        long lCount = fTiff.getInt(aEntry + 4) & 0xFFFFFFFFL;
+        long lOffset = getValueOffset(aEntry);
+        if (!ensure(lOffset + lCount)) {
+            return null;
+        }
+        int lLength = 0;
+        while (lLength < lCount && fTiff.get((int) lOffset + lLength) != 0) {
+            ++lLength;
+        }
+        byte[] lValue = new byte[lLength];
+        for (int i = 0; i < lLength; ++i) {
+            lValue[i] = fTiff.get((int) lOffset + i);
+        }
+        return new String(lValue, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Returns the offset of the value of an ASCII IFD entry (inline in the entry, if it fits in 4 bytes)
+     * @param aEntry the offset of the IFD entry in the TIFF data
+     * @return the offset of the value in the TIFF data
+     */
+    private long getValueOffset(int aEntry) {
+        long lCount = fTiff.getInt(aEntry + 4) & 0xFFFFFFFFL;
+        return lCount <= 4 ? aEntry + 8 : fTiff.getInt(aEntry + 8) & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Makes sure that the first bytes of the TIFF data were read
+     * @param aLength the number of bytes needed
+     * @return false if the TIFF data is shorter, or too long for the fast path
+     * @throws IOException if the file cannot be read
+     */
+    private boolean ensure(long aLength) throws IOException {
+        if (null != fTiff && aLength <= fTiff.capacity()) {
+            return true;
+        }
+        if (fTiffStart + aLength > fTiffEnd || aLength > Integer.MAX_VALUE) {
+            return false;
+        }
+        // Read at least the first MAX_TIFF_PREFIX bytes (the whole Exif segment, for JPEG)
+        long lLength = Math.max(aLength, Math.min(MAX_TIFF_PREFIX, fTiffEnd - fTiffStart));
+        if (aLength > MAX_TIFF_PREFIX && fTiffEnd - fTiffStart > MAX_TIFF_PREFIX) {
+            lLength = aLength;  // IFD values far into a TIFF file: read up to them (usually still near the start)
+            if (lLength > 16 * MAX_TIFF_PREFIX) {
+                return false;
+            }
+        }
+        ByteBuffer lTiff = MediaChannels.readFully(fChannel, fTiffStart, (int) lLength);
+        if (null == lTiff) {
+            return false;
+        }
+        lTiff.order(null == fTiff ? lTiff.order() : fTiff.order());
+        fTiff = lTiff;
+        return true;
+    }
+
+    /**
+     * Parses an EXIF date/time ("yyyy:MM:dd HH:mm:ss") in the default time zone, as metadata-extractor does
+     * @param aDateTime the EXIF value
+     * @return the date, or null if the value has another format
+     */
+    private static Date parseDateTime(String aDateTime) {
+        if (aDateTime.length() != 19) {
+            return null;
+        }
+        int[] lFields = new int[6];
+        for (int i = 0, lField = 0; i < 19; ++i) {
+            char c = aDateTime.charAt(i);
+            if (i == 4 || i == 7 || i == 10 || i == 13 || i == 16) {
+                if (c != (i == 10 ? ' ' : ':')) {
+                    return null;
+                }
+                ++lField;
+            } else if (c >= '0' && c <= '9') {
+                lFields[lField] = lFields[lField] * 10 + (c - '0');
+            } else {
+                return null;
+            }
+        }
+        Calendar lCalendar = Calendar.getInstance();
+        lCalendar.clear();
+        lCalendar.set(lFields[0], lFields[1] - 1, lFields[2], lFields[3], lFields[4], lFields[5]);
+        return lCalendar.getTime();
+    }
+}
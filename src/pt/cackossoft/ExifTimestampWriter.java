@@ -0,0 +1,78 @@
+package pt.cackossoft;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Rewrites the EXIF DateTimeOriginal of a photo in place. The value is a fixed-length ASCII field
+ * ("yyyy:MM:dd HH:mm:ss"), so only its 19 bytes are overwritten, at the position found by ExifHeaderReader, and the
+ * last modified time of the file is set to the new timestamp (or, when a rewrite is undone or rolled back, back to
+ * the time the file had before); the rest of the file is not read nor written.
+ * A rewrite is only done if the file still has the expected value, so it can be repeated (e.g. when an interrupted
+ * apply is resumed) and undone.
+ */
+class ExifTimestampWriter {
+    private static final DateTimeFormatter EXIF_FORMAT = DateTimeFormatter.ofPattern("yyyy:MM:dd HH:mm:ss");
+
+    private ExifTimestampWriter() {
+    }
+
+    /**
+     * Adds minutes to an EXIF date/time (in the default time zone)
+     * @param aDateTime the EXIF value ("yyyy:MM:dd HH:mm:ss")
+     * @param aMinutes the minutes to be added (may be negative)
+     * @return the new EXIF value, or null if aDateTime is not a valid date/time
+     */
+    static String addMinutes(String aDateTime, int aMinutes) {
+        try {
+            LocalDateTime lDateTime = LocalDateTime.parse(aDateTime, EXIF_FORMAT);
+            return EXIF_FORMAT.format(lDateTime.atZone(ZoneId.systemDefault()).plusMinutes(aMinutes).toLocalDateTime());
+        } catch (DateTimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Rewrites the DateTimeOriginal of a photo, and sets its last modified time
+     * @param aFile the photo
+     * @param aExpected the value the photo must have
+     * @param aNew the new value (of the same length)
+     * @param aLastModified the new last modified time (null for the new value itself)
+     * @return true if the photo has the new value (also if it already had it), false if it has another value or it
+     *         could not be found
+     * @throws IOException if the photo cannot be read or written
+     */
+    static boolean rewrite(Path aFile, String aExpected, String aNew, FileTime aLastModified) throws IOException {
+        ExifHeaderReader.Result lExif = ExifHeaderReader.read(aFile);
+        if (null == lExif || lExif.dateTimeOriginalPosition < 0 || aNew.length() != lExif.dateTimeOriginal.length()) {
+            return false;
+        }
+        if (!aNew.equals(lExif.dateTimeOriginal)) {
+            if (!aExpected.equals(lExif.dateTimeOriginal)) {
+                return false;   // The photo was changed since it was planned
+            }
+            try (FileChannel lChannel = FileChannel.open(aFile, StandardOpenOption.WRITE)) {
+                ByteBuffer lValue = ByteBuffer.wrap(aNew.getBytes(StandardCharsets.ISO_8859_1));
+                for (long lPosition = lExif.dateTimeOriginalPosition; lValue.hasRemaining();) {
+                    lPosition += lChannel.write(lValue, lPosition);
+                }
+            }
+        }
+        if (null == aLastModified) {
+            LocalDateTime lDateTime = LocalDateTime.parse(aNew, EXIF_FORMAT);
+            aLastModified = FileTime.from(lDateTime.atZone(ZoneId.systemDefault()).toInstant());
+        }
+        Files.setLastModifiedTime(aFile, aLastModified);
+        return true;
+    }
+}
@@ -0,0 +1,146 @@
+package pt.cackossoft;
+
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Registry of the file name patterns whose timestamp is trusted, so that the timestamp of a file so named is taken from
+ * its name, without opening it (e.g. "IMG_20140101_120000.jpg" of an Android phone, or "2014-01-01 12.00.00.jpg" of a
+ * Samsung Galaxy Ace). A pattern is the whole name, with the tokens yyyy, MM, dd, HH, mm and ss for the timestamp,
+ * "#" for a digit and "*" for any text (e.g. "IMG-yyyyMMdd-WA####*"); any other character is literal, and the letters
+ * are matched in any case. The time is optional: a name with only a date (e.g. from WhatsApp) gets the time of its last
+ * modified time if that is of the same day, or midnight otherwise.
+ * The patterns are compiled to regexes once, and are checked in order: the first that matches gives the timestamp.
+ * Immutable, so it can be used by several threads at the same time.
+ */
+class FilenameTimestamps {
+    // The name patterns of the phones (and other cameras) that name the files with their timestamp
+    static final String[] DEFAULT_PATTERNS = { "IMG_yyyyMMdd_HHmmss*", "VID_yyyyMMdd_HHmmss*", "PANO_yyyyMMdd_HHmmss*"
+            , "yyyyMMdd_HHmmss.*", "yyyyMMdd_HHmmss_*"                          // Samsung Galaxy S2/S3/Tab, Wiko
+            , "IMG-yyyyMMdd-WA####*", "VID-yyyyMMdd-WA####*"                    // WhatsApp
+            , "yyyy-MM-dd HH.mm.ss*", "video-yyyy-MM-dd-HH-mm-ss*"              // Samsung Galaxy Ace
+            , "Screenshot_yyyyMMdd-HHmmss*", "Screenshot_yyyy-MM-dd-HH-mm-ss*", "Screenshot yyyy-MM-dd at HH.mm.ss*" };
+    private static final String[] TOKENS = { "yyyy", "MM", "dd", "HH", "mm", "ss" };
+    private static final int NO_TOKEN = -1;
+
+    private final List<Pattern> fPatterns = new ArrayList<>();
+    private final List<int[]> fGroups = new ArrayList<>();  // Regex group of each token (NO_TOKEN if absent), by pattern
+
+    /**
+     * Compiles the name patterns
+     * @param aPatterns the patterns, in the order they are checked
+     * @throws IllegalArgumentException if a pattern has no full date, a token more than once, or minutes without hours
+     */
+    FilenameTimestamps(List<String> aPatterns) {
+        for (String lPattern : aPatterns) {
+            compile(lPattern);
+        }
+    }
+
+    /**
+     * Compiles a name pattern into a regex, noting the group of each token
+     * @param aPattern the pattern
+     */
+    private void compile(String aPattern) {
+        StringBuilder lRegex = new StringBuilder();
+        int[] lGroups = { NO_TOKEN, NO_TOKEN, NO_TOKEN, NO_TOKEN, NO_TOKEN, NO_TOKEN };
+        int lGroupCount = 0;
+        for (int i = 0; i < aPattern.length();) {
+            int lToken = getToken(aPattern, i);
+            if (NO_TOKEN != lToken) {
+                if (NO_TOKEN != lGroups[lToken]) {
+                    throw new IllegalArgumentException("Invalid name pattern (" + TOKENS[lToken] + " twice): " + aPattern);
+                }
+                lGroups[lToken] = ++lGroupCount;
+                lRegex.append("(\\d{").append(TOKENS[lToken].length()).append("})");
+                i += TOKENS[lToken].length();
+                continue;
+            }
+            char c = aPattern.charAt(i++);
+            if ('*' == c) {
+                lRegex.append(".*");
+            } else if ('#' == c) {
+                lRegex.append("\\d");
+            } else {
+                lRegex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        if (NO_TOKEN == lGroups[0] || NO_TOKEN == lGroups[1] || NO_TOKEN == lGroups[2]
+                || (NO_TOKEN == lGroups[3]) != (NO_TOKEN == lGroups[4]) || (NO_TOKEN == lGroups[4] && NO_TOKEN != lGroups[5])) {
+            throw new IllegalArgumentException("Invalid name pattern (yyyy, MM and dd are required, HH and mm go together): " + aPattern);
+        }
+        fPatterns.add(Pattern.compile(lRegex.toString(), Pattern.CASE_INSENSITIVE | Pattern.DOTALL));
+        fGroups.add(lGroups);
+    }
+
+    /**
+     * @param aPattern the name pattern
+     * @param aIndex a position in the pattern
+     * @return the index in TOKENS of the token at that position, or NO_TOKEN if none
+     */
+    private static int getToken(String aPattern, int aIndex) {
+        for (int i = 0; i < TOKENS.length; ++i) {
+            if (aPattern.startsWith(TOKENS[i], aIndex)) {
+                return i;
+            }
+        }
+        return NO_TOKEN;
+    }
+
+    /**
+     * Returns the timestamp of a file from its name (in the default time zone)
+     * @param aName the name of the file
+     * @param aLastModified the last modified time of the file (for the names with only a date)
+     * @return the timestamp, or null if the name matches no pattern (or has an invalid date/time)
+     */
+    Date getTimestamp(String aName, long aLastModified) {
+        for (int i = 0; i < fPatterns.size(); ++i) {
+            Matcher lMatcher = fPatterns.get(i).matcher(aName);
+            if (!lMatcher.matches()) {
+                continue;
+            }
+            int[] lGroups = fGroups.get(i);
+            try {
+                LocalDate lDate = LocalDate.of(getNumber(lMatcher, lGroups[0]), getNumber(lMatcher, lGroups[1]), getNumber(lMatcher, lGroups[2]));
+                ZoneId lZone = ZoneId.systemDefault();
+                LocalTime lTime;
+                if (NO_TOKEN != lGroups[3]) {
+                    lTime = LocalTime.of(getNumber(lMatcher, lGroups[3]), getNumber(lMatcher, lGroups[4]), getNumber(lMatcher, lGroups[5]));
+                } else {
+                    LocalDateTime lLastModified = LocalDateTime.ofInstant(Instant.ofEpochMilli(aLastModified), lZone);
+                    lTime = lDate.equals(lLastModified.toLocalDate()) ? lLastModified.toLocalTime().withNano(0) : LocalTime.MIDNIGHT;
+                }
+                return Date.from(lDate.atTime(lTime).atZone(lZone).toInstant());
+            } catch (DateTimeException e) {
+                return null;    // A name of the pattern, but not a valid timestamp (e.g., 20140231)
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param aMatcher the match of a name
+     * @param aGroup the group of a token (NO_TOKEN if absent)
+     * @return the number of the group, or 0 if absent
+     */
+    private static int getNumber(Matcher aMatcher, int aGroup) {
+        return NO_TOKEN == aGroup ? 0 : Integer.parseInt(aMatcher.group(aGroup));
+    }
+
+    /**
+     * @return the patterns' regexes, in the order they are checked
+     */
+    @Override
+    public String toString() {
+        return fPatterns.toString();
+    }
+}
@@ -0,0 +1,69 @@
+package pt.cackossoft;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Destination tree of the classified files: the folder of each file is computed from the prefix of its name,
+ * "yyyyMMdd_HHmmss-camera-...", by a layout of folder levels with the tokens yyyy, MM, dd and camera (e.g. "yyyy/MM"
+ * or "camera/yyyy"). A name without a camera model (no second "-") goes to the "unknown" camera.
+ * Immutable, so it can be used by several threads at the same time.
+ */
+class FolderLayout {
+    private static final String UNKNOWN_CAMERA = "unknown";
+
+    private final Path fRoot;
+    private final String fLayout;
+    private final String[] fLevels;     // The layout, by folder level
+
+    /**
+     * @param aRoot the root of the destination tree
+     * @param aLayout the folder levels under the root, separated by "/"
+     * @throws IllegalArgumentException if the layout has an empty, "." or ".." level
+     */
+    FolderLayout(Path aRoot, String aLayout) {
+        fRoot = aRoot.toAbsolutePath().normalize();
+        fLayout = aLayout;
+        fLevels = aLayout.split("/", -1);
+        for (String lLevel : fLevels) {
+            if (lLevel.isEmpty() || ".".equals(lLevel) || "..".equals(lLevel)) {
+                throw new IllegalArgumentException("Invalid layout: " + aLayout);
+            }
+        }
+    }
+
+    /**
+     * @return the root of the destination tree
+     */
+    Path getRoot() {
+        return fRoot;
+    }
+
+    /**
+     * Returns the folder of a classified file
+     * @param aName the (new) name of the file
+     * @return the folder, or null if the name does not start by a timestamp
+     */
+    Path getFolder(String aName) {
+        if (!NameTransformer.hasTimestampPrefix(aName)) {
+            return null;
+        }
+        int lCameraEnd = aName.indexOf('-', 16);
+        String lCamera = lCameraEnd > 16 ? aName.substring(16, lCameraEnd) : UNKNOWN_CAMERA;
+        if (lCamera.startsWith(".") || lCamera.indexOf('/') >= 0 || lCamera.indexOf('\\') >= 0) {
+            lCamera = UNKNOWN_CAMERA;   // Not a folder name
+        }
+        Path lFolder = fRoot;
+        for (String lLevel : fLevels) {
+            // The camera last, so that a camera model named like a token is kept
+            lFolder = lFolder.resolve(lLevel.replace("yyyy", aName.substring(0, 4)).replace("MM", aName.substring(4, 6))
+                    .replace("dd", aName.substring(6, 8)).replace("camera", lCamera));
+        }
+        return lFolder;
+    }
+
+    @Override
+    public String toString() {
+        return Paths.get(fRoot.toString(), fLayout).toString();
+    }
+}
@@ -0,0 +1,191 @@
+package pt.cackossoft;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Walks a folder tree in a fixed order, handing out the media groups of each folder (see MediaGroups): in each folder,
+ * its groups by name of their primary file, then its subfolders by name (both in MediaGroups.NAME_ORDER). As the order does not depend on the
+ * filesystem, a walk can be resumed after a given file, listing only the folders on the way to it (and those after it),
+ * instead of walking again the whole tree before it.
+ * Symbolic links are not followed.
+ */
+class FolderWalker {
+    /**
+     * Receives the files of a walk
+     */
+    abstract static class Visitor {
+        /**
+         * Handles a file that was listed, before its group is handed out
+         * @param aFile the file (absolute)
+         * @param aAttributes its attributes
+         * @throws IOException to stop the walk
+         */
+        void visitFile(Path aFile, BasicFileAttributes aAttributes) throws IOException {
+        }
+
+        /**
+         * Handles a file or folder that could not be listed (the walk goes on)
+         * @param aPath the file or folder (absolute)
+         * @param e the error
+         */
+        void visitFileFailed(Path aPath, IOException e) {
+        }
+
+        /**
+         * Handles a media group
+         * @param aPrimary the primary file, with its companions
+         * @throws IOException to stop the walk
+         */
+        abstract void visitGroup(MediaFile aPrimary) throws IOException;
+    }
+
+    /**
+     * File of a folder being walked
+     */
+    private static final class ListedFile {
+        final String name;
+        final BasicFileAttributes attributes;   // Read while the folder was listed
+
+        ListedFile(String aName, BasicFileAttributes aAttributes) {
+            name = aName;
+            attributes = aAttributes;
+        }
+    }
+
+    // Order of the files of a folder: by name, in MediaGroups.NAME_ORDER
+    private static final Comparator<ListedFile> LISTED_FILE_ORDER = new Comparator<ListedFile>() {
+        @Override
+        public int compare(ListedFile aFile1, ListedFile aFile2) {
+            return MediaGroups.NAME_ORDER.compare(aFile1.name, aFile2.name);
+        }
+    };
+
+    private final Path fFolder;
+    private final boolean fRecursive;
+
+    /**
+     * @param aFolder the folder to be walked
+     * @param aRecursive whether its subfolders are also walked
+     */
+    FolderWalker(Path aFolder, boolean aRecursive) {
+        fFolder = aFolder.toAbsolutePath();
+        fRecursive = aRecursive;
+    }
+
+    /**
+     * Walks the folder tree, stopping if the thread is interrupted
+     * @param aResumeAfter the primary file of the last group already handled (absolute), or null to walk the whole tree
+     * @param aVisitor the receiver of the files
+     * @throws IOException if the visitor stopped the walk
+     */
+    void walk(Path aResumeAfter, Visitor aVisitor) throws IOException {
+        walk(fFolder, null != aResumeAfter && aResumeAfter.startsWith(fFolder) ? aResumeAfter : null, aVisitor);
+    }
+
+    /**
+     * Walks a folder. Each file is stat'ed once, while the folder is listed: its name and attributes are kept (to be
+     * sorted), but not a MediaFile each, which is only built from them when its group is handed out. So the memory
+     * taken by a folder of tens of thousands of files is that of their names and attributes; the trade-off is that a
+     * file changed or deleted between the listing and its group is handed out with the attributes of the listing (it
+     * then fails when it is analysed or renamed, as a file deleted while it is being analysed).
+     * @param aFolder the folder (absolute)
+     * @param aResumeAfter the primary file of the last group already handled, if it is in this folder (or in one of its
+     *                     subfolders); otherwise null
+     * @param aVisitor the receiver of the files
+     * @throws IOException if the visitor stopped the walk
+     */
+    private void walk(Path aFolder, Path aResumeAfter, Visitor aVisitor) throws IOException {
+        // The subfolder on the way to the resume point: the files of this folder were all handled before it
+        String lResumeFolder = null == aResumeAfter || aResumeAfter.getParent().equals(aFolder) ? null
+                : aResumeAfter.getName(aFolder.getNameCount()).toString();
+        String lResumeFile = null == aResumeAfter || null != lResumeFolder ? null : aResumeAfter.getFileName().toString();
+        List<ListedFile> lFiles = new ArrayList<>();
+        List<String> lFolders = new ArrayList<>();
+        try (DirectoryStream<Path> lStream = Files.newDirectoryStream(aFolder)) {
+            for (Path lEntry : lStream) {
+                BasicFileAttributes lAttributes;
+                try {
+                    lAttributes = Files.readAttributes(lEntry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (IOException e) {
+                    aVisitor.visitFileFailed(lEntry, e);
+                    continue;
+                }
+                String lName = lEntry.getFileName().toString();
+                if (lAttributes.isDirectory()) {
+                    if (fRecursive && (null == lResumeFolder || MediaGroups.NAME_ORDER.compare(lName, lResumeFolder) >= 0)) {
+                        lFolders.add(lName);
+                    }
+                } else if (lAttributes.isRegularFile() && null == lResumeFolder) {
+                    lFiles.add(new ListedFile(lName, lAttributes));
+                }
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            aVisitor.visitFileFailed(aFolder, e instanceof DirectoryIteratorException ? ((DirectoryIteratorException) e).getCause() : (IOException) e);
+            return;
+        }
+        Collections.sort(lFiles, LISTED_FILE_ORDER);
+        String[] lNames = new String[lFiles.size()];
+        BasicFileAttributes[] lAttributes = new BasicFileAttributes[lFiles.size()];
+        for (int i = 0; i < lNames.length; ++i) {
+            lNames[i] = lFiles.get(i).name;
+            lAttributes[i] = lFiles.get(i).attributes;
+        }
+        lFiles.clear();
+        for (int i = 0; i < lNames.length; ++i) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            if (MediaGroups.getPrimary(lNames, i) < 0
+                    && (null == lResumeFile || MediaGroups.NAME_ORDER.compare(lNames[i], lResumeFile) > 0)) {
+                visitGroup(aFolder, lNames, lAttributes, i, aVisitor);  // The companions are handed out with their primary file
+            }
+        }
+        Collections.sort(lFolders, MediaGroups.NAME_ORDER);
+        for (String lSubfolder : lFolders) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            walk(aFolder.resolve(lSubfolder), lSubfolder.equals(lResumeFolder) ? aResumeAfter : null, aVisitor);
+        }
+    }
+
+    /**
+     * Hands out a media group
+     * @param aFolder the folder (absolute)
+     * @param aNames the names of its files, sorted in MediaGroups.NAME_ORDER
+     * @param aAttributes the attributes of its files, read while it was listed (by index in aNames)
+     * @param aIndex the index of the primary file in aNames
+     * @param aVisitor the receiver of the files
+     * @throws IOException if the visitor stopped the walk
+     */
+    private static void visitGroup(Path aFolder, String[] aNames, BasicFileAttributes[] aAttributes, int aIndex, Visitor aVisitor) throws IOException {
+        MediaFile lPrimary = new MediaFile(aFolder.resolve(aNames[aIndex]), aAttributes[aIndex]);
+        for (int lCompanionIndex : MediaGroups.getCompanions(aNames, aIndex)) {
+            if (null == lPrimary.companions) {
+                lPrimary.companions = new ArrayList<>();
+            }
+            lPrimary.companions.add(new MediaFile(aFolder.resolve(aNames[lCompanionIndex]), aAttributes[lCompanionIndex]));
+        }
+        visitGroup(lPrimary, aVisitor);
+    }
+
+    private static void visitGroup(MediaFile aPrimary, Visitor aVisitor) throws IOException {
+        aVisitor.visitFile(aPrimary.toPath(), aPrimary.getAttributes());
+        if (null != aPrimary.companions) {
+            for (MediaFile lCompanion : aPrimary.companions) {
+                aVisitor.visitFile(lCompanion.toPath(), lCompanion.getAttributes());
+            }
+        }
+        aVisitor.visitGroup(aPrimary);
+    }
+}
@@ -0,0 +1,257 @@
+package pt.cackossoft;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a folder (and its subfolders, if recursive) for new or changed files, and hands them out once they are
+ * settled: their size and last modified time did not change for a while, so they are no longer being written (e.g.
+ * copied from a card reader). New subfolders are watched as they appear, and their files are handed out as well.
+ * Not thread-safe: it is used by the thread that converts the files.
+ */
+class FolderWatcher implements Closeable {
+    private static final long IGNORE_NANOS = TimeUnit.MINUTES.toNanos(1);  // Longest wait for the events of an ignored file
+    private static final long MIN_IGNORE_EVENTS_NANOS = TimeUnit.SECONDS.toNanos(1);   // Shortest wait for its later events
+
+    /**
+     * File that is not settled yet
+     */
+    private static final class PendingFile {
+        long size;
+        long lastModified;
+        long changedNanos;      // System.nanoTime() when the file was last seen changing
+    }
+
+    private final Path fFolder;
+    private final boolean fRecursive;
+    private final long fSettleNanos;
+    private final long fStartMillis = System.currentTimeMillis();
+    private final WatchService fWatchService;
+    private final Map<Path, PendingFile> fPendingFiles = new LinkedHashMap<>();    // In the order they appeared
+    private final Map<Path, Long> fIgnoredFiles = new HashMap<>();  // Files renamed by the converter, with the System.nanoTime() they expire at
+
+    /**
+     * Starts watching a folder. The files that already exist are not handed out.
+     * @param aFolder the folder to be watched
+     * @param aRecursive whether its subfolders are also watched
+     * @param aSettleSeconds the seconds a file must stay unchanged before it is handed out
+     * @throws IOException if the folder cannot be watched
+     */
+    FolderWatcher(Path aFolder, boolean aRecursive, int aSettleSeconds) throws IOException {
+        fFolder = aFolder.toAbsolutePath();
+        fRecursive = aRecursive;
+        fSettleNanos = TimeUnit.SECONDS.toNanos(aSettleSeconds);
+        fWatchService = fFolder.getFileSystem().newWatchService();
+        try {
+            register(fFolder, Long.MAX_VALUE);
+        } catch (IOException e) {
+            fWatchService.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Ignores the events of a file for a while, e.g. because it is the new name of a converted file: it must not be
+     * converted again. Once its first event is consumed, the events that follow within the settle time (at least a
+     * second) are ignored as well, and then the file is forgotten; it is also forgotten if no event comes within
+     * IGNORE_NANOS, or when it is deleted.
+     * @param aFile the file (absolute)
+     */
+    void ignore(Path aFile) {
+        fIgnoredFiles.put(aFile, System.nanoTime() + Math.max(IGNORE_NANOS, fSettleNanos));
+        fPendingFiles.remove(aFile);
+    }
+
+    /**
+     * Waits until some of the new or changed files are settled
+     * @param aMaxFiles the maximum number of files returned
+     * @return the settled files (absolute), in the order they appeared, or an empty list if the folder is gone
+     * @throws IOException if a new subfolder cannot be watched
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    List<Path> awaitSettledFiles(int aMaxFiles) throws IOException, InterruptedException {
+        List<Path> lSettledFiles = new ArrayList<>();
+        boolean lWatching = true;
+        while (lWatching && lSettledFiles.isEmpty()) {
+            // Wake up at least once per second, to check whether the pending files are settled
+            WatchKey lKey = fWatchService.poll(1, TimeUnit.SECONDS);
+            for (; null != lKey; lKey = fWatchService.poll()) {
+                Path lFolder = (Path) lKey.watchable();
+                for (WatchEvent<?> lEvent : lKey.pollEvents()) {
+                    if (StandardWatchEventKinds.OVERFLOW == lEvent.kind()) {
+                        System.out.println("Watch folder: " + fFolder + ": events were lost, scanning it again");
+                        register(fFolder, fStartMillis);
+                    } else {
+                        addEvent(lFolder.resolve((Path) lEvent.context()), lEvent.kind());
+                    }
+                }
+                if (!lKey.reset() && fFolder.equals(lFolder)) {
+                    lWatching = false;  // The watched folder was deleted
+                }
+            }
+            takeSettledFiles(lSettledFiles, aMaxFiles);
+            forgetIgnoredFiles();
+        }
+        return lSettledFiles;
+    }
+
+    /**
+     * Stops watching the folder
+     * @throws IOException if the watch service cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        fWatchService.close();
+    }
+
+    /**
+     * Handles the event of a file or subfolder
+     * @param aPath the file or subfolder (absolute)
+     * @param aKind the kind of event
+     * @throws IOException if a new subfolder cannot be watched
+     */
+    private void addEvent(Path aPath, WatchEvent.Kind<?> aKind) throws IOException {
+        if (StandardWatchEventKinds.ENTRY_DELETE == aKind) {
+            fIgnoredFiles.remove(aPath);
+            fPendingFiles.remove(aPath);
+        } else if (consumeIgnoredEvent(aPath)) {
+            return;
+        } else if (Files.isDirectory(aPath, LinkOption.NOFOLLOW_LINKS)) {
+            if (fRecursive && StandardWatchEventKinds.ENTRY_CREATE == aKind) {
+                register(aPath, Long.MIN_VALUE);    // Its files may have been created before it was watched
+            }
+        } else {
+            addPendingFile(aPath);
+        }
+    }
+
+    /**
+     * Checks whether the event of a file must be ignored, shortening the time the file is ignored to the settle time
+     * from its first event
+     * @param aFile the file (absolute)
+     * @return true if the file is ignored
+     */
+    private boolean consumeIgnoredEvent(Path aFile) {
+        Long lExpiryNanos = fIgnoredFiles.get(aFile);
+        if (null == lExpiryNanos) {
+            return false;
+        }
+        long lNow = System.nanoTime();
+        if (lNow - lExpiryNanos >= 0) {
+            fIgnoredFiles.remove(aFile);
+            return false;
+        }
+        long lEventsExpiryNanos = lNow + Math.max(MIN_IGNORE_EVENTS_NANOS, fSettleNanos);
+        if (lEventsExpiryNanos - lExpiryNanos < 0) {
+            fIgnoredFiles.put(aFile, lEventsExpiryNanos);
+        }
+        return true;
+    }
+
+    /**
+     * Forgets the ignored files that expired, so that the set does not grow while the folder is watched
+     */
+    private void forgetIgnoredFiles() {
+        long lNow = System.nanoTime();
+        for (Iterator<Long> i = fIgnoredFiles.values().iterator(); i.hasNext();) {
+            if (lNow - i.next() >= 0) {
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Adds a new or changed file to the pending files (or marks it as changing, if it is already pending)
+     * @param aFile the file (absolute)
+     */
+    private void addPendingFile(Path aFile) {
+        PendingFile lPendingFile = fPendingFiles.get(aFile);
+        if (null == lPendingFile) {
+            lPendingFile = new PendingFile();
+            lPendingFile.size = -1;
+            fPendingFiles.put(aFile, lPendingFile);
+        }
+        lPendingFile.changedNanos = System.nanoTime();
+    }
+
+    /**
+     * Moves the pending files that are settled to a list (checking their size and last modified time); the files that
+     * are gone are dropped
+     * @param aSettledFiles the list where the settled files are added
+     * @param aMaxFiles the maximum size of the list
+     */
+    private void takeSettledFiles(List<Path> aSettledFiles, int aMaxFiles) {
+        long lNow = System.nanoTime();
+        for (Iterator<Map.Entry<Path, PendingFile>> i = fPendingFiles.entrySet().iterator(); i.hasNext() && aSettledFiles.size() < aMaxFiles;) {
+            Map.Entry<Path, PendingFile> lEntry = i.next();
+            PendingFile lPendingFile = lEntry.getValue();
+            BasicFileAttributes lAttributes;
+            try {
+                lAttributes = Files.readAttributes(lEntry.getKey(), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException e) {
+                i.remove();     // Deleted (or moved away) before it was settled
+                continue;
+            }
+            if (lAttributes.size() != lPendingFile.size || lAttributes.lastModifiedTime().toMillis() != lPendingFile.lastModified) {
+                lPendingFile.size = lAttributes.size();
+                lPendingFile.lastModified = lAttributes.lastModifiedTime().toMillis();
+                lPendingFile.changedNanos = lNow;
+            } else if (lNow - lPendingFile.changedNanos >= fSettleNanos) {
+                i.remove();
+                if (lAttributes.isRegularFile()) {
+                    aSettledFiles.add(lEntry.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * Watches a folder (and its subfolders, if recursive), adding its files changed since a given time to the pending
+     * files
+     * @param aFolder the folder (absolute)
+     * @param aSinceMillis the time (Long.MIN_VALUE for all the files, Long.MAX_VALUE for none)
+     * @throws IOException if the folder cannot be watched
+     */
+    private void register(Path aFolder, final long aSinceMillis) throws IOException {
+        Files.walkFileTree(aFolder, EnumSet.noneOf(FileVisitOption.class), fRecursive ? Integer.MAX_VALUE : 1, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path aSubfolder, BasicFileAttributes aAttributes) throws IOException {
+                aSubfolder.register(fWatchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path aFile, BasicFileAttributes aAttributes) {
+                if (aAttributes.isRegularFile() && aAttributes.lastModifiedTime().toMillis() >= aSinceMillis && !fIgnoredFiles.containsKey(aFile)) {
+                    addPendingFile(aFile);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path aFile, IOException e) {
+                System.out.println("Watch folder: " + aFile + ": Error in read (" + e + ")");
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,261 @@
+package pt.cackossoft;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * What a scan learned about the media files of a folder, kept in columns of primitive arrays (one entry per media
+ * file): the capture timestamp (epoch seconds), the size, the camera (an index into a table of the distinct camera
+ * names) and the path (an offset into a shared buffer of UTF-8 bytes). Millions of files fit in tens of MB, and the
+ * catalog is saved to a file, so that statistics and audits run over it without reading the media files again.
+ * The paths are those the files have once the plan of the scan is applied.
+ * Not thread-safe: it is built by the thread that writes the plan.
+ */
+class MediaCatalog {
+    private static final int MAGIC = 0x4D434354;    // "MCCT"
+    private static final int VERSION = 1;
+    static final long NO_TIMESTAMP = Long.MIN_VALUE;
+    static final int NO_CAMERA = -1;
+
+    private final String fFolder;           // The folder that was scanned (absolute)
+    private int size;
+    private long[] timestamps = new long[1024];     // Capture timestamp, in epoch seconds (NO_TIMESTAMP if none)
+    private long[] sizes = new long[1024];
+    private int[] cameras = new int[1024];          // Index in fCameraNames (NO_CAMERA if none)
+    private int[] pathEnds = new int[1024];         // End of each path in paths (each starts at the end of the previous)
+    private byte[] paths = new byte[64 * 1024];     // The paths, in UTF-8
+    private final List<String> fCameraNames = new ArrayList<>();
+    private final Map<String, Integer> fCameraIds = new HashMap<>();    // Index in fCameraNames, by camera name
+
+    /**
+     * Starts an empty catalog
+     * @param aFolder the folder being scanned (absolute)
+     */
+    MediaCatalog(String aFolder) {
+        fFolder = aFolder;
+    }
+
+    /**
+     * Adds a media file to the catalog
+     * @param aPath its path (after the plan is applied)
+     * @param aSize its size
+     * @param aTimestamp its capture timestamp (null if none)
+     * @param aCamera its camera name (null if none)
+     */
+    void add(Path aPath, long aSize, Date aTimestamp, String aCamera) {
+        if (size == timestamps.length) {
+            int lCapacity = 2 * size;
+            timestamps = Arrays.copyOf(timestamps, lCapacity);
+            sizes = Arrays.copyOf(sizes, lCapacity);
+            cameras = Arrays.copyOf(cameras, lCapacity);
+            pathEnds = Arrays.copyOf(pathEnds, lCapacity);
+        }
+        byte[] lPath = aPath.toString().getBytes(StandardCharsets.UTF_8);
+        int lPathStart = 0 == size ? 0 : pathEnds[size - 1];
+        if (lPathStart + lPath.length > paths.length) {
+            paths = Arrays.copyOf(paths, Math.max(2 * paths.length, lPathStart + lPath.length));
+        }
+        System.arraycopy(lPath, 0, paths, lPathStart, lPath.length);
+        timestamps[size] = null == aTimestamp ? NO_TIMESTAMP : aTimestamp.getTime() / 1000;
+        sizes[size] = aSize;
+        cameras[size] = null == aCamera ? NO_CAMERA : getCameraId(aCamera);
+        pathEnds[size] = lPathStart + lPath.length;
+        ++size;
+    }
+
+    /**
+     * @return the number of media files in the catalog
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param aIndex the index of a media file in the catalog
+     * @return its path
+     */
+    String getPath(int aIndex) {
+        int lPathStart = 0 == aIndex ? 0 : pathEnds[aIndex - 1];
+        return new String(paths, lPathStart, pathEnds[aIndex] - lPathStart, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the interned id of a camera name, adding it to the table the first time it is found
+     * @param aCamera the camera name
+     * @return its index in the table
+     */
+    private int getCameraId(String aCamera) {
+        Integer lId = fCameraIds.get(aCamera);
+        if (null == lId) {
+            lId = fCameraNames.size();
+            fCameraNames.add(aCamera);
+            fCameraIds.put(aCamera, lId);
+        }
+        return lId;
+    }
+
+    /**
+     * Writes the number of media files (and their total size) of each camera in each month, ordered by camera and month
+     * @param aOutput where the "camera TAB yyyy-MM TAB count TAB bytes" lines are written
+     */
+    void printCameraMonths(PrintStream aOutput) {
+        Map<String, long[]> lCounts = new TreeMap<>();  // Count and bytes, by "camera TAB yyyy-MM"
+        ZoneId lZone = ZoneId.systemDefault();
+        for (int i = 0; i < size; ++i) {
+            String lCamera = NO_CAMERA == cameras[i] ? "-" : fCameraNames.get(cameras[i]);
+            String lMonth = "-";
+            if (NO_TIMESTAMP != timestamps[i]) {
+                LocalDateTime lTimestamp = LocalDateTime.ofInstant(Instant.ofEpochSecond(timestamps[i]), lZone);
+                lMonth = String.format("%04d-%02d", lTimestamp.getYear(), lTimestamp.getMonthValue());
+            }
+            String lKey = lCamera + "\t" + lMonth;
+            long[] lCount = lCounts.get(lKey);
+            if (null == lCount) {
+                lCount = new long[2];
+                lCounts.put(lKey, lCount);
+            }
+            ++lCount[0];
+            lCount[1] += sizes[i];
+        }
+        for (Map.Entry<String, long[]> lCount : lCounts.entrySet()) {
+            aOutput.println(lCount.getKey() + "\t" + lCount.getValue()[0] + "\t" + lCount.getValue()[1]);
+        }
+    }
+
+    /**
+     * Writes the media files whose name has a timestamp prefix with another day than their capture timestamp (as
+     * "Check Converted Files" does, without reading them)
+     * @param aOutput where the "path TAB expected name" lines are written
+     * @return the number of discrepancies
+     */
+    int audit(PrintStream aOutput) {
+        int lDiscrepancies = 0;
+        for (int i = 0; i < size; ++i) {
+            if (NO_TIMESTAMP == timestamps[i]) {
+                continue;
+            }
+            String lPath = getPath(i);
+            String lName = Paths.get(lPath).getFileName().toString();
+            if (NameTransformer.hasTimestampPrefix(lName)) {
+                String lTimestamp = NameTransformer.formatTimestamp(new Date(timestamps[i] * 1000));
+                if (!lName.substring(0, 9).equals(lTimestamp.substring(0, 9))) {
+                    aOutput.println(lPath + "\t" + lTimestamp + lName.substring(15));
+                    ++lDiscrepancies;
+                }
+            }
+        }
+        return lDiscrepancies;
+    }
+
+    /**
+     * Writes the catalog to a file (atomically replacing it)
+     * @param aFile the catalog file
+     * @throws IOException if the file cannot be written
+     */
+    void write(Path aFile) throws IOException {
+        int lPathsLength = 0 == size ? 0 : pathEnds[size - 1];
+        byte[] lFolder = fFolder.getBytes(StandardCharsets.UTF_8);
+        int lHeaderLength = 4 + 4 + 4 + lFolder.length + 4 + 4 + 4;
+        for (String lCamera : fCameraNames) {
+            lHeaderLength += 4 + lCamera.getBytes(StandardCharsets.UTF_8).length;
+        }
+        ByteBuffer lHeader = ByteBuffer.allocate(lHeaderLength);
+        lHeader.putInt(MAGIC).putInt(VERSION).putInt(lFolder.length).put(lFolder).putInt(size).putInt(lPathsLength);
+        lHeader.putInt(fCameraNames.size());
+        for (String lCamera : fCameraNames) {
+            byte[] lName = lCamera.getBytes(StandardCharsets.UTF_8);
+            lHeader.putInt(lName.length).put(lName);
+        }
+        lHeader.flip();
+        // The columns, one after the other
+        ByteBuffer lColumns = ByteBuffer.allocate(size * (8 + 8 + 4 + 4));
+        lColumns.asLongBuffer().put(timestamps, 0, size);
+        lColumns.position(size * 8);
+        lColumns.asLongBuffer().put(sizes, 0, size);
+        lColumns.position(size * 16);
+        lColumns.asIntBuffer().put(cameras, 0, size);
+        lColumns.position(size * 20);
+        lColumns.asIntBuffer().put(pathEnds, 0, size);
+        lColumns.position(0);
+        Path lTempFile = Paths.get(aFile + ".tmp");
+        try (FileChannel lChannel = FileChannel.open(lTempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (ByteBuffer lBuffer : new ByteBuffer[] { lHeader, lColumns, ByteBuffer.wrap(paths, 0, lPathsLength) }) {
+                while (lBuffer.hasRemaining()) {
+                    lChannel.write(lBuffer);
+                }
+            }
+        }
+        Files.move(lTempFile, aFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a catalog file
+     * @param aFile the catalog file
+     * @return the catalog
+     * @throws IOException if the file cannot be read or is not a catalog
+     */
+    static MediaCatalog read(Path aFile) throws IOException {
+        ByteBuffer lBuffer = ByteBuffer.wrap(Files.readAllBytes(aFile));
+        try {
+            if (lBuffer.getInt() != MAGIC || lBuffer.getInt() != VERSION) {
+                throw new IOException("Not a media catalog: " + aFile);
+            }
+            MediaCatalog lCatalog = new MediaCatalog(getString(lBuffer));
+            int lSize = lBuffer.getInt();
+            int lPathsLength = lBuffer.getInt();
+            for (int i = lBuffer.getInt(); i > 0; --i) {
+                lCatalog.getCameraId(getString(lBuffer));
+            }
+            lCatalog.size = lSize;
+            lCatalog.timestamps = new long[lSize];
+            lCatalog.sizes = new long[lSize];
+            lCatalog.cameras = new int[lSize];
+            lCatalog.pathEnds = new int[lSize];
+            lCatalog.paths = new byte[lPathsLength];
+            int lStart = lBuffer.position();
+            lBuffer.asLongBuffer().get(lCatalog.timestamps);
+            lBuffer.position(lStart + lSize * 8);
+            lBuffer.asLongBuffer().get(lCatalog.sizes);
+            lBuffer.position(lStart + lSize * 16);
+            lBuffer.asIntBuffer().get(lCatalog.cameras);
+            lBuffer.position(lStart + lSize * 20);
+            lBuffer.asIntBuffer().get(lCatalog.pathEnds);
+            lBuffer.position(lStart + lSize * 24);
+            lBuffer.get(lCatalog.paths);
+            return lCatalog;
+        } catch (RuntimeException e) {  // BufferUnderflowException, IllegalArgumentException, NegativeArraySizeException
+            throw new IOException("Media catalog is truncated: " + aFile, e);
+        }
+    }
+
+    /**
+     * @return the folder that was scanned
+     */
+    String getFolder() {
+        return fFolder;
+    }
+
+    private static String getString(ByteBuffer aBuffer) {
+        byte[] lBytes = new byte[aBuffer.getInt()];
+        aBuffer.get(lBytes);
+        return new String(lBytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,143 @@
+package pt.cackossoft;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Helpers for the metadata readers, which only read small pieces of the media files at given positions.
+ */
+class MediaChannels {
+    private static final LongAdder BYTES_READ = new LongAdder();    // Bytes read by all the metadata readers (see RunMetrics)
+
+    private MediaChannels() {
+    }
+
+    /**
+     * @return the number of bytes read by readFully since the program started
+     */
+    static long getBytesRead() {
+        return BYTES_READ.sum();
+    }
+
+    /**
+     * Opens a file for reading. A file of another filesystem than the default one (e.g. an entry of a ZIP archive, see
+     * MediaConverter.extractArchive) is read through a stream, so that only the bytes up to the last one read are
+     * inflated, instead of the whole entry being loaded into memory on open, as the zip filesystem does.
+     * @param aPath the file
+     * @return the channel
+     * @throws IOException if the file cannot be opened
+     */
+    static SeekableByteChannel open(Path aPath) throws IOException {
+        return FileSystems.getDefault() == aPath.getFileSystem() ? Files.newByteChannel(aPath) : new StreamChannel(aPath);
+    }
+
+    /**
+     * Reads bytes at a position of a file
+     * @param aChannel the file
+     * @param aPosition the position of the first byte
+     * @param aLength the number of bytes
+     * @return the bytes (big endian buffer), or null if the file ends before
+     * @throws IOException if the file cannot be read
+     */
+    static ByteBuffer readFully(SeekableByteChannel aChannel, long aPosition, int aLength) throws IOException {
+        ByteBuffer lBuffer = ByteBuffer.allocate(aLength);
+        aChannel.position(aPosition);
+        while (lBuffer.hasRemaining()) {
+            if (aChannel.read(lBuffer) < 0) {
+                return null;
+            }
+        }
+        BYTES_READ.add(aLength);
+        lBuffer.flip();
+        return lBuffer;
+    }
+
+    /**
+     * Read-only channel over the stream of a file. Moving forward skips the bytes in between; moving backward opens the
+     * stream again.
+     */
+    private static final class StreamChannel implements SeekableByteChannel {
+        private final Path fPath;
+        private final long fSize;
+        private InputStream stream;
+        private long position;
+
+        StreamChannel(Path aPath) throws IOException {
+            fPath = aPath;
+            fSize = Files.size(aPath);
+            stream = Files.newInputStream(aPath);
+        }
+
+        @Override
+        public int read(ByteBuffer aBuffer) throws IOException {
+            int lRead = stream.read(aBuffer.array(), aBuffer.arrayOffset() + aBuffer.position(), aBuffer.remaining());
+            if (lRead > 0) {
+                aBuffer.position(aBuffer.position() + lRead);
+                position += lRead;
+            }
+            return lRead;
+        }
+
+        @Override
+        public long position() {
+            return position;
+        }
+
+        @Override
+        public SeekableByteChannel position(long aPosition) throws IOException {
+            if (aPosition < position) {
+                stream.close();
+                stream = Files.newInputStream(fPath);
+                position = 0;
+            }
+            while (position < aPosition) {
+                // The first byte is read, not skipped: the zip filesystem (JDK 8 to 17, at least) skips to the wrong
+                // position if nothing was read yet
+                long lSkipped = 0 == position ? 0 : stream.skip(aPosition - position);
+                if (lSkipped <= 0) {
+                    if (stream.read() < 0) {
+                        break;      // Past the end: the next read returns -1
+                    }
+                    lSkipped = 1;
+                }
+                position += lSkipped;
+            }
+            return this;
+        }
+
+        @Override
+        public long size() {
+            return fSize;
+        }
+
+        @Override
+        public int write(ByteBuffer aBuffer) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long aSize) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return null != stream;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (null != stream) {
+                stream.close();
+                stream = null;
+            }
+        }
+    }
+}
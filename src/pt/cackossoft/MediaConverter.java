@@ -2,18 +2,41 @@ package pt.cackossoft;
 
 import com.drew.imaging.ImageMetadataReader;
 import com.drew.imaging.ImageProcessingException;
-import com.drew.metadata.Metadata;
 import com.drew.metadata.exif.ExifIFD0Directory;
 import com.drew.metadata.exif.ExifSubIFDDirectory;
 import org.apache.commons.lang.ArrayUtils;
-import org.apache.commons.lang.time.DateUtils;
 import javax.swing.*;
 import java.io.*;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.Scanner;
-import java.text.Normalizer;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * Created by cecoutinho on 23-07-2014.
@@ -27,172 +50,1475 @@ public class MediaConverter {
                                          , "Rename: Update File Time adding minutes"
                                          , "Wiko/Samsung Galaxy S2/S3/Tab/Ace"
                                          , "Standard Rename bulk files" };
+    // The converters, as stages of a pipeline (in the same order as fConverters)
+    private final NameConverter[] fConverterStages = {
+            new NameConverter() {
+                @Override
+                public String convert(MediaFile f, String aName) {
+                    return verifyFile(f, aName);
+                }
+
+                @Override
+                public boolean needsCameraModel(MediaFile f, String aName) {
+                    return false;
+                }
+            },
+            new NameConverter() {
+                @Override
+                public String convert(MediaFile f, String aName) {
+                    return getNewFilePath_AddPrefixTimestampCamera(f, aName);
+                }
+
+                @Override
+                public boolean needsCameraModel(MediaFile f, String aName) {
+                    return !isFileAlreadyHandled(aName);
+                }
+            },
+            new NameConverter() {
+                @Override
+                public String convert(MediaFile f, String aName) {
+                    return getNewFilePath_RemoveRegexAddPrefixTimestampCamera(f, aName);
+                }
 
-    private final String[] fMovieExtensions = { ".avi", ".mpg", ".mov", ".3gp" };
-    private final String[] fPhotoExtensions = { ".jpg", ".png", ".gif" };
-    private Metadata exifMetadata;          // Exif Metadata for the current photo (must be cleared every time the photo changes).
-    private String exifCameraModel;         // Original Camera model name for photos (must be reset every time a new folder is selected).
-    private String exifCameraModelUser;     // User-defined Camera model name for photos
-    private BufferedReader mediaMetadata;   // Media Metadata for the current file (must be cleared every time the file changes).
-    private String movieCameraModel;        // Original Camera model name for movies (must be reset every time a new folder is selected).
-    private String movieCameraModelUser;    // User-defined Camera model name for movies
+                @Override
+                public boolean needsCameraModel(MediaFile f, String aName) {
+                    return !aName.toLowerCase().equals(nameTransformer.removeRegex(aName.toLowerCase()));
+                }
+            },
+            new NameConverter() {
+                @Override
+                public String convert(MediaFile f, String aName) {
+                    return getNewFilePath_ReplaceRegexByUserText(aName);
+                }
+
+                @Override
+                public boolean needsCameraModel(MediaFile f, String aName) {
+                    return false;
+                }
+            },
+            new NameConverter() {
+                @Override
+                public String convert(MediaFile f, String aName) {
+                    return getNewFilePath_UpdatePrefixTimeAddMinutes(f, aName);
+                }
+
+                @Override
+                public boolean needsCameraModel(MediaFile f, String aName) {
+                    return false;
+                }
+            },
+            new NameConverter() {
+                @Override
+                public String convert(MediaFile f, String aName) {
+                    return getNewFilePath_samsung(f, aName);
+                }
+
+                @Override
+                public boolean needsCameraModel(MediaFile f, String aName) {
+                    return !isFileAlreadyHandled(aName);
+                }
+            },
+            new NameConverter() {
+                @Override
+                public String convert(MediaFile f, String aName) {
+                    return getNewFilePath_bulkrename(aName);
+                }
+
+                @Override
+                public boolean needsCameraModel(MediaFile f, String aName) {
+                    return false;
+                }
+            } };
+    private final Map<String, ConverterPipeline> fConverterPipelines = new ConcurrentHashMap<>();  // Pipelines of the converters, by converter name(s)
+
+    private final Map<String, String> fCameraModelsUser = new ConcurrentHashMap<>();  // User-defined Camera model names, by original Camera model (must be reset every time a new folder is selected).
+    private final Object fUserDialogLock = new Object();    // Only one file at a time may interact with the user
+    private int threadCount = Runtime.getRuntime().availableProcessors();  // Number of files analysed at the same time
+    private boolean batchMode;              // No user interaction: all parameters were given up front (BatchOptions)
+    private final Map<String, String> fBatchCameraModels = new HashMap<>();    // Camera model names given up front, by trimmed Camera model
+    private PrintStream verificationReport; // Where discrepancies are written in batch mode
+    private boolean recursive = true;       // Whether the subfolders are also converted
+    private final Deque<MediaFile> fPendingFiles = new ArrayDeque<>();             // Files being analysed, in the order they will be renamed
+    private final Deque<Future<String>> fPendingNewNames = new ArrayDeque<>();     // New names being computed, in the same order as fPendingFiles
+    private final RenameEngine fRenameEngine = new RenameEngine();                 // Names in use in the folders being renamed
+    private final DuplicateDetector fDuplicateDetector = new DuplicateDetector();  // Copies of the files that have (or will have) the new names
+    private FolderLayout folderLayout;      // Destination tree the classified files are moved into (null to keep them in their folder)
+    private CrossDeviceMover crossDeviceMover = new CrossDeviceMover(2);  // Moves the files to another filesystem (at most 2 copies at a time by default)
+    private String duplicateAction = "skip";    // A file identical to the one with its new name is: "skip" (not renamed), "report" (renamed with a number appended) or "off" (not checked)
+    private String metadataCacheFilename = System.getProperty("user.home") + File.separator + ".media-converter.cache";   // "" to disable the cache
+    private MetadataCache metadataCache;    // Metadata of the files already analysed in previous runs (null if disabled)
+    private String action = "run";          // What is done: "run" (plan and apply), "plan", "apply" or "undo" (the renames of the plan)
+    private String planFilename = System.getProperty("user.home") + File.separator + ".media-converter.plan";    // Renames of the last run (its journal is planFilename + ".journal")
+    private RenamePlan.Writer renamePlan;   // Plan being written while the folder is walked
+    private static final int PLAN_BATCH_SIZE = 512;     // Renames done in parallel between two journal syncs
+    private static final long PLAN_CHECKPOINT_NANOS = TimeUnit.SECONDS.toNanos(10);    // Time between two checkpoints of the plan being written
+    private PlanCheckpoint planCheckpoint;  // Last checkpoint of the plan being written (null if it is not checkpointed)
+    private long planCheckpointNanos;       // System.nanoTime() of the last checkpoint
+    private Path lastPlannedFile;           // Primary file of the last group handled by the plan being written (the walk resumes after it)
+    private String catalogFilename = "";    // Catalog of the media files, written by each scan of a folder ("" for none)
+    private MediaCatalog catalog;           // Catalog being built by the scan (null if none)
+    private String eventsFilename = "";     // Event index of the media files, written by each scan of a folder ("" for none)
+    private int eventGapMinutes = 120;      // Shortest gap between two events
+    private int eventMaxSpanHours = 0;      // Longest event (0 for no limit)
+    private int eventRunSize = 100000;      // Files sorted in memory at the same time, when the event index is built
+    private EventTimeline eventTimeline;    // Timeline being built by the scan (null if none)
+    private String metricsFilename;         // JSON summary of each run (null for planFilename + ".metrics.json", "" for none)
+    private RunMetrics metrics = new RunMetrics("run", null, null);    // Metrics of the current (or last) run
+    private int watchSettleSeconds = 5;     // Watch mode: seconds a new file must stay unchanged before it is converted
+    private static final int WATCH_BATCH_SIZE = 64;     // Watch mode: files converted at most per plan
+    private static final long WATCH_CACHE_SAVE_NANOS = TimeUnit.MINUTES.toNanos(5);    // Watch mode: time between saves of the metadata cache
+    private FolderWatcher folderWatcher;    // Watch mode: the folder being watched (null if not watching)
     private String replaceRegex;            // Regex to be replaced by new text or by Timestamp_CameraModel
     private String replacementUserText;     // New text to replace the Regex for
     private int minutesToBeAdded;           // Number of minutes to add the file timestamp
+    private boolean shiftExifTimestamp;     // Whether the EXIF DateTimeOriginal of the photos is also shifted, in place (converter 4)
+    private NameTransformer nameTransformer;    // The regex and text above, compiled once per run
     private String bulkReplacementFilename; // Filename for bulk replacement
     private String bulkReplacementPrefix;   // Prefix for bulk replacement filenames
+    private BulkRenameIndex bulkReplacementIndex;   // Contents of the bulk replacement file (loaded once per run)
+    private FilenameTimestamps filenameTimestamps = new FilenameTimestamps(Arrays.asList(FilenameTimestamps.DEFAULT_PATTERNS));  // Names whose timestamp is trusted (null to always read the metadata)
 
-    private final String[] fKnownCameraModelIDs = { "Canon Canon DIGITAL IXUS 70", "CanonMVI06", "NIKON CORPORATION NIKON D3200", "WIKO                            HIGHWAY                        " };
-    private final String[] fKnownCameraModelNames = { "canon_ixus70_101", "canon_ixus70_101", "nikon_d3200_100", "wiko_highway" };
+    private String cameraRegistryFilename = System.getProperty("user.home") + File.separator + ".media-converter.cameras";   // "" to not persist the names
+    private CameraRegistry cameraRegistry = loadCameraRegistry("");   // Names given to the camera models in all runs
+
+    /**
+     * Returns the proposed file new name, according to the selected converter (or converters, one after the other).
+     * @param f the file that is being analysed
+     * @param aConverter the converter name (from the fConverters array), or the names of a pipeline
+     * @return "" if the file does not need renaming; the new name otherwise.
+     */
+    String getNewFilePath(MediaFile f, String aConverter) {
+        return getConverterPipeline(aConverter).getNewFilePath(f);
+    }
+
+    /**
+     * Returns the pipeline of the converters of a run (built on first use)
+     * @param aConverter the converter name (from the fConverters array), or the names of a pipeline
+     * @return the pipeline
+     */
+    private ConverterPipeline getConverterPipeline(String aConverter) {
+        ConverterPipeline lPipeline = fConverterPipelines.get(aConverter);
+        if (null == lPipeline) {
+            List<NameConverter> lStages = new ArrayList<>();
+            for (String lConverter : aConverter.split(ConverterPipeline.SEPARATOR)) {
+                lStages.add(fConverterStages[ArrayUtils.indexOf(fConverters, lConverter)]);
+            }
+            lPipeline = new ConverterPipeline(lStages);
+            fConverterPipelines.put(aConverter, lPipeline);
+        }
+        return lPipeline;
+    }
+
+    /**
+     * Checks whether a converter is used in a run
+     * @param aConverter the converter name (from the fConverters array), or the names of a pipeline
+     * @param aIndex the index of the converter in the fConverters array
+     * @return true if the converter is, or is one of the pipeline
+     */
+    private boolean usesConverter(String aConverter, int aIndex) {
+        return Arrays.asList(aConverter.split(ConverterPipeline.SEPARATOR)).contains(fConverters[aIndex]);
+    }
+
+    /**
+     * If a Camera Model ID is in the camera registry, return the name given to it.
+     * @param aCameraModel the ID returned by EXIF or other tool
+     * @return the name that you wish this camera to be called, or null if it was never named
+     */
+    String getKnownCameraModel(String aCameraModel) {
+        return cameraRegistry.get(aCameraModel);
+    }
+
+    /**
+     * Loads the camera registry (the run goes on with the well-known camera models only if it cannot be read)
+     * @param aFilename the registry file, or "" to not persist the names
+     * @return the camera registry
+     */
+    private static CameraRegistry loadCameraRegistry(String aFilename) {
+        try {
+            return new CameraRegistry(aFilename);
+        } catch (IOException e) {
+            System.out.println("Camera registry " + aFilename + ": Error in read (" + e + ")");
+            return loadCameraRegistry("");
+        }
+    }
+
+    /**
+     * Saves the camera models named in this run to the camera registry
+     */
+    private void saveCameraRegistry() {
+        try {
+            cameraRegistry.save();
+        } catch (IOException e) {
+            System.out.println("Camera registry " + cameraRegistryFilename + ": Error in write (" + e + ")");
+        }
+    }
+
+    /**
+     * Runs the Media Converter/Verifier
+     * @param args the default folder for the media, or the batch options (see BatchOptions.USAGE)
+     */
+    public void main(String[] args) {
+        if (args.length > 0 && args[0].startsWith("--")) {
+            runBatch(args);
+            return;
+        }
+        String lDefaultFolder = "";
+        if (args.length > 0) {
+            lDefaultFolder = args[0];
+        }
+        for (;;) {
+            // Get Path of the folder to be converted
+            String lSrcFolderPath = lDefaultFolder = getSrcFolderPath(lDefaultFolder);
+            if (lSrcFolderPath.isEmpty()) {
+                JOptionPane.showMessageDialog(null, "No Folder was selected. Exiting...", "Media Classifier", JOptionPane.INFORMATION_MESSAGE);
+                break;
+            }
+            // Get Converter
+            String lConverter = (String) JOptionPane.showInputDialog(null, "Apply file rename converter:", "Media Converter", JOptionPane.QUESTION_MESSAGE, null, fConverters, fConverters[0]);
+
+            // Get Regex to be replaced/removed if option was selected
+            replaceRegex = null;
+            if (fConverters[2].equals(lConverter) || fConverters[3].equals(lConverter)) {
+                replaceRegex = JOptionPane.showInputDialog(null, "Specify the Regex to be replaced:", "Media Converter", JOptionPane.QUESTION_MESSAGE);
+                if (null == replaceRegex || replaceRegex.isEmpty()) {
+                    continue;
+                }
+            }
+
+            // Get the User text to replace, if option was selected
+            replacementUserText = null;
+            if (fConverters[3].equals(lConverter)) {
+                replacementUserText = JOptionPane.showInputDialog(null, "Specify the text to be inserted:", "Media Converter", JOptionPane.QUESTION_MESSAGE);
+                if (null == replacementUserText) {
+                    continue;
+                }
+            }
+
+            // Get the number of minutes to add, if option was selected
+            String lMinutesToBeAdded = null;
+            if (fConverters[4].equals(lConverter)) {
+                lMinutesToBeAdded = JOptionPane.showInputDialog(null, "Specify the number of minutes to be added to each file timestamp:", "Media Converter", JOptionPane.QUESTION_MESSAGE);
+                if (null == lMinutesToBeAdded) {
+                    continue;
+                }
+                minutesToBeAdded = Integer.parseInt(lMinutesToBeAdded);
+                int lShiftExif = JOptionPane.showConfirmDialog(null, "Shift also the EXIF timestamp of the photos?", "Media Converter", JOptionPane.YES_NO_CANCEL_OPTION);
+                if (JOptionPane.CANCEL_OPTION == lShiftExif || JOptionPane.CLOSED_OPTION == lShiftExif) {
+                    continue;
+                }
+                shiftExifTimestamp = JOptionPane.YES_OPTION == lShiftExif;
+            }
+
+            // Get the number of minutes to add, if option was selected
+            bulkReplacementFilename = null;
+            if (fConverters[6].equals(lConverter)) {
+                bulkReplacementFilename = getFilePath("");
+                if (null == bulkReplacementFilename) {
+                    continue;
+                }
+                bulkReplacementPrefix = JOptionPane.showInputDialog(null, "Specify the prefix of the filenames:", "Media Converter", JOptionPane.QUESTION_MESSAGE);
+                if (null == bulkReplacementPrefix) {
+                    continue;
+                }
+                try {
+                    bulkReplacementIndex = new BulkRenameIndex(bulkReplacementFilename, isLargeFile(bulkReplacementFilename));
+                } catch (IOException e) {
+                    JOptionPane.showMessageDialog(null, "Could not read the file " + bulkReplacementFilename + ": " + e.getMessage(), "Media Classifier", JOptionPane.ERROR_MESSAGE);
+                    continue;
+                }
+            }
+
+            // Ask whether the subfolders are also converted
+            int lRecursive = JOptionPane.showConfirmDialog(null, "Convert also the files in the subfolders?", "Media Converter", JOptionPane.YES_NO_CANCEL_OPTION);
+            if (JOptionPane.CANCEL_OPTION == lRecursive || JOptionPane.CLOSED_OPTION == lRecursive) {
+                continue;
+            }
+            recursive = JOptionPane.YES_OPTION == lRecursive;
+
+            // Compile the Regex once for the whole run
+            try {
+                nameTransformer = new NameTransformer(replaceRegex, replacementUserText);
+            } catch (PatternSyntaxException e) {
+                JOptionPane.showMessageDialog(null, "Invalid Regex: " + e.getDescription(), "Media Classifier", JOptionPane.ERROR_MESSAGE);
+                continue;
+            }
+
+            // Confirm Actions
+            if (JOptionPane.OK_OPTION != JOptionPane.showConfirmDialog(null, "Please Confirm the parameters:\n\nSelected folder: " + lSrcFolderPath + (recursive ? " (and subfolders)" : "")
+                            + "\nSelected Action: " + lConverter + (null == replaceRegex ? "" : "\nRegex Text to be replaced: \"" + replaceRegex + "\"")
+                            + (null == replacementUserText ? "" : "\nText to replace the above regex: \"" + replacementUserText + "\"")
+                            + (null == lMinutesToBeAdded ? "" : "\nMinutes to be added to each timestamp: " + minutesToBeAdded + (shiftExifTimestamp ? " (also in EXIF)" : ""))
+                            + (null == bulkReplacementFilename ? "" : "\nFile for doing renaming: " + bulkReplacementFilename)
+                            + (null == bulkReplacementPrefix ? "" : "\nPrefix of bulk renaming filenames: " + bulkReplacementPrefix),
+                         "Input Confirmation", JOptionPane.OK_CANCEL_OPTION)) {
+                JOptionPane.showMessageDialog(null, "Conversion Cancelled.", "Media Classifier", JOptionPane.INFORMATION_MESSAGE);
+                continue;
+            }
+
+            // Cycle all files in the src folder
+            convertFolder(lSrcFolderPath, lConverter);
+            JOptionPane.showMessageDialog(null, "Conversion finished.", "Media Classifier", JOptionPane.INFORMATION_MESSAGE);
+        }
+    }
+
+    /**
+     * Runs the Media Converter/Verifier without any user interaction (and without loading AWT/Swing).
+     * @param args the batch options (see BatchOptions.USAGE)
+     */
+    private void runBatch(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        try {
+            BatchOptions lOptions = new BatchOptions(args);
+            if (lOptions.isHelp()) {
+                printUsage(System.out);
+                return;
+            }
+            String lConverter = configure(lOptions);
+            try {
+                if (null == lConverter && ("stats".equals(action) || "audit".equals(action))) {
+                    queryCatalog();
+                    return;
+                }
+                if (null == lConverter) {
+                    System.out.println("Media Converter: " + action + " plan " + planFilename);
+                    startMetrics(null);
+                    boolean lComplete;
+                    try {
+                        lComplete = runPlan("undo".equals(action));
+                    } finally {
+                        endMetrics();
+                    }
+                    System.out.println(lComplete ? "Conversion finished." : "Conversion interrupted: run again to resume it.");
+                    return;
+                }
+                String lSrcFolderPath = lOptions.getString("folder", "");
+                if ("extract".equals(action)) {
+                    String lArchive = lOptions.getString("archive", "");
+                    if (!new File(lArchive).isFile()) {
+                        throw new IllegalArgumentException("Invalid archive: " + lArchive);
+                    }
+                    System.out.println("Media Converter: " + lConverter + " on " + lArchive + ", extracted to " + lSrcFolderPath);
+                    System.out.println(extractArchive(lArchive, lSrcFolderPath, lConverter) ? "Extraction finished." : "Extraction interrupted.");
+                    return;
+                }
+                if (!new File(lSrcFolderPath).isDirectory()) {
+                    throw new IllegalArgumentException("Invalid folder: " + lSrcFolderPath);
+                }
+                System.out.println("Media Converter: " + lConverter + " on " + lSrcFolderPath);
+                if ("watch".equals(action)) {
+                    watchFolder(lSrcFolderPath, lConverter);
+                    return;
+                }
+                convertFolder(lSrcFolderPath, lConverter);
+                System.out.println("Conversion finished.");
+            } finally {
+                if (null != verificationReport && System.out != verificationReport) {
+                    verificationReport.close();
+                }
+            }
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println(e.getMessage());
+            printUsage(System.err);
+        }
+    }
+
+    /**
+     * Writes the batch options and the converters
+     * @param aOutput where they are written
+     */
+    private void printUsage(PrintStream aOutput) {
+        aOutput.print(BatchOptions.USAGE);
+        aOutput.println("Converters:");
+        for (int i = 0; i < fConverters.length; ++i) {
+            aOutput.println("  " + i + ": " + fConverters[i]);
+        }
+    }
+
+    /**
+     * Sets up the converter parameters from the batch options, switching to batch mode (no user interaction)
+     * @param aOptions the batch options (see BatchOptions.USAGE); the folder is not used here
+     * @return the selected converter name (from the fConverters array), or null if a plan is applied/undone or the
+     *         catalog is queried
+     * @throws IllegalArgumentException if an option is missing or not valid
+     * @throws IOException if the bulk renaming file cannot be read or the report file cannot be created
+     */
+    String configure(BatchOptions aOptions) throws IOException {
+        batchMode = true;
+        threadCount = Math.max(1, aOptions.getInt("threads", threadCount));
+        metadataCacheFilename = aOptions.getString("cache", metadataCacheFilename);
+        cameraRegistryFilename = aOptions.getString("cameras", cameraRegistryFilename);
+        planFilename = aOptions.getString("plan", planFilename);
+        action = aOptions.getString("action", "run");
+        metricsFilename = aOptions.getString("metrics", metricsFilename);
+        duplicateAction = aOptions.getString("duplicates", duplicateAction);
+        if (!"skip".equals(duplicateAction) && !"report".equals(duplicateAction) && !"off".equals(duplicateAction)) {
+            throw new IllegalArgumentException("Invalid duplicates: " + duplicateAction);
+        }
+        crossDeviceMover = new CrossDeviceMover(Math.max(1, aOptions.getInt("copyStreams", 2)));
+        catalogFilename = aOptions.getString("catalog", catalogFilename);
+        if ("apply".equals(action) || "undo".equals(action)) {
+            openVerificationReport(aOptions);
+            return null;
+        }
+        if ("stats".equals(action) || "audit".equals(action)) {
+            if (catalogFilename.isEmpty()) {
+                throw new IllegalArgumentException("Option catalog is required by action: " + action);
+            }
+            openVerificationReport(aOptions);
+            return null;
+        }
+        if (!"run".equals(action) && !"plan".equals(action) && !"watch".equals(action) && !"extract".equals(action)) {
+            throw new IllegalArgumentException("Invalid action: " + action);
+        }
+        watchSettleSeconds = Math.max(1, aOptions.getInt("settle", watchSettleSeconds));
+        String lConverter = getConverter(aOptions.getString("converter", ""));
+
+        // Get the converter parameters, checking those required by the selected converter
+        replaceRegex = aOptions.getString("regex", null);
+        if ((usesConverter(lConverter, 2) || usesConverter(lConverter, 3)) && (null == replaceRegex || replaceRegex.isEmpty())) {
+            throw new IllegalArgumentException("Option regex is required by converter: " + lConverter);
+        }
+        replacementUserText = aOptions.getString("text", null);
+        if (usesConverter(lConverter, 3) && null == replacementUserText) {
+            throw new IllegalArgumentException("Option text is required by converter: " + lConverter);
+        }
+        nameTransformer = new NameTransformer(replaceRegex, replacementUserText);     // An invalid regex is reported as any invalid option
+        minutesToBeAdded = aOptions.getInt("minutes", 0);
+        shiftExifTimestamp = aOptions.getBoolean("shiftExif", false);
+        bulkReplacementFilename = aOptions.getString("bulkFile", null);
+        bulkReplacementPrefix = aOptions.getString("bulkPrefix", null);
+        if (usesConverter(lConverter, 6) && (null == bulkReplacementFilename || null == bulkReplacementPrefix)) {
+            throw new IllegalArgumentException("Options bulkFile and bulkPrefix are required by converter: " + lConverter);
+        }
+        if (usesConverter(lConverter, 6)) {
+            bulkReplacementIndex = new BulkRenameIndex(bulkReplacementFilename, aOptions.getBoolean("bulkMapped", isLargeFile(bulkReplacementFilename)));
+        }
+        recursive = aOptions.getBoolean("recursive", true);
+        List<String> lNamePatterns = new ArrayList<>();
+        for (String lNamePattern : aOptions.getString("namePatterns", "").split(",")) {
+            if (!lNamePattern.isEmpty()) {
+                lNamePatterns.add(lNamePattern);    // The user patterns are checked first
+            }
+        }
+        if (aOptions.getBoolean("nameTimestamps", true)) {
+            lNamePatterns.addAll(Arrays.asList(FilenameTimestamps.DEFAULT_PATTERNS));
+        }
+        filenameTimestamps = lNamePatterns.isEmpty() ? null : new FilenameTimestamps(lNamePatterns);
+        eventsFilename = aOptions.getString("events", eventsFilename);
+        eventGapMinutes = aOptions.getInt("eventGap", eventGapMinutes);
+        eventMaxSpanHours = Math.max(0, aOptions.getInt("eventMaxSpan", eventMaxSpanHours));
+        eventRunSize = Math.max(1, aOptions.getInt("eventRunSize", eventRunSize));
+        if (eventGapMinutes < 1) {
+            throw new IllegalArgumentException("Invalid eventGap: " + eventGapMinutes);
+        }
+        String lOrganizeFolder = aOptions.getString("organize", "");
+        folderLayout = lOrganizeFolder.isEmpty() ? null : new FolderLayout(Paths.get(lOrganizeFolder), aOptions.getString("layout", "yyyy/MM"));
+        fBatchCameraModels.clear();
+        fBatchCameraModels.putAll(aOptions.getCameraModels());
+        openVerificationReport(aOptions);
+        return lConverter;
+    }
+
+    /**
+     * Opens the report where the discrepancies are written (the standard output, if no report file is given). Called
+     * once all the options are valid, so that an invalid option does not leave an empty report file behind.
+     * @param aOptions the batch options
+     * @throws IOException if the report file cannot be created
+     */
+    private void openVerificationReport(BatchOptions aOptions) throws IOException {
+        String lReportFilename = aOptions.getString("report", null);
+        verificationReport = null == lReportFilename ? System.out : new PrintStream(new FileOutputStream(lReportFilename), true, "UTF-8");
+    }
+
+    /**
+     * Returns the converter selected in batch mode, or the pipeline of the converters selected (e.g. "2,4": each file is
+     * renamed by converter 2 and then by converter 4, in a single pass)
+     * @param aConverter the converter names or their indexes in the fConverters array, separated by ","
+     * @return the converter name (from the fConverters array), or the names of the pipeline (separated by
+     *         ConverterPipeline.SEPARATOR)
+     * @throws IllegalArgumentException if a converter is not valid, or "Check Converted Files" is chained
+     */
+    private String getConverter(String aConverter) {
+        StringBuilder lPipeline = new StringBuilder();
+        String[] lConverters = aConverter.split(",");
+        for (String lName : lConverters) {
+            String lConverter;
+            if (ArrayUtils.contains(fConverters, lName)) {
+                lConverter = lName;
+            } else {
+                try {
+                    lConverter = fConverters[Integer.parseInt(lName.trim())];
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    throw new IllegalArgumentException("Invalid converter: " + lName);
+                }
+            }
+            if (lConverters.length > 1 && fConverters[0].equals(lConverter)) {
+                throw new IllegalArgumentException("Converter cannot be chained: " + lConverter);    // It reports, it does not rename
+            }
+            lPipeline.append(0 == lPipeline.length() ? "" : ConverterPipeline.SEPARATOR).append(lConverter);
+        }
+        return lPipeline.toString();
+    }
+
+    /**
+     * Checks whether a file is large enough to be memory-mapped instead of being fully loaded
+     * @param aFilename the file name
+     * @return true if the file has more than 64 MB
+     */
+    private boolean isLargeFile(String aFilename) {
+        return new File(aFilename).length() > 64L * 1024 * 1024;
+    }
+
+    /**
+     * Converts all files of a folder (and of its subfolders, if recursive): plans the renames and then, unless only
+     * planning, applies the plan.
+     * @param aSrcFolderPath the folder to be converted
+     * @param aConverter the converter name (from the fConverters array)
+     */
+    private void convertFolder(String aSrcFolderPath, String aConverter) {
+        startMetrics(aSrcFolderPath);
+        fRenameEngine.clear();      // The names reserved by a previous run (cancelled, or only planned) are free again
+        fCameraModelsUser.clear();  // The camera registry may have been changed by another run
+        cameraRegistry = loadCameraRegistry(cameraRegistryFilename);
+        openMetadataCache(aSrcFolderPath, recursive);
+        PlanCheckpoint lResume = readPlanCheckpoint(aSrcFolderPath, aConverter);
+        catalog = catalogFilename.isEmpty() ? null : new MediaCatalog(Paths.get(aSrcFolderPath).toAbsolutePath().toString());
+        boolean lCompleteRun = false;
+        try {
+            eventTimeline = eventsFilename.isEmpty() ? null : new EventTimeline(Paths.get(eventsFilename), TimeUnit.MINUTES.toSeconds(eventGapMinutes),
+                    TimeUnit.HOURS.toSeconds(eventMaxSpanHours), eventRunSize);
+        } catch (IOException e) {
+            System.out.println("Event index " + eventsFilename + ": Error in create (" + e + ")");
+            eventTimeline = null;
+        }
+        try {
+            // Ask the user for the names of all the new camera models up front, so that the planning is not interrupted
+            if (!batchMode && !prescanCameraModels(aSrcFolderPath, aConverter, lResume)) {
+                return;
+            }
+            boolean lPlanned = planFolder(aSrcFolderPath, null, aConverter, lResume);
+            if (lPlanned) {
+                writeCatalog(null != lResume);
+                writeEvents(null != lResume);
+            }
+            lCompleteRun = lPlanned && ("plan".equals(action) || runPlan(false));
+        } finally {
+            catalog = null;
+            if (null != eventTimeline) {
+                eventTimeline.close();
+                eventTimeline = null;
+            }
+            // A resumed run did not touch the cache entries of the files planned before the checkpoint: none is evicted
+            closeMetadataCache(lCompleteRun && null == lResume);
+            saveCameraRegistry();
+            endMetrics();
+        }
+    }
+
+    /**
+     * Writes the catalog built by the scan of a folder
+     * @param aResumed whether the plan was resumed from a checkpoint (the catalog then misses the files planned before
+     *                 it, and is not written)
+     */
+    private void writeCatalog(boolean aResumed) {
+        if (null == catalog) {
+            return;
+        }
+        if (aResumed) {
+            System.out.println("Media catalog: not written, as the plan was resumed (run again to write it)");
+            return;
+        }
+        try {
+            catalog.write(Paths.get(catalogFilename));
+            System.out.println("Media catalog: " + catalog.size() + " media files written to " + catalogFilename);
+        } catch (IOException e) {
+            System.out.println("Media catalog " + catalogFilename + ": Error in write (" + e + ")");
+        }
+    }
+
+    /**
+     * Sorts the timeline built by the scan of a folder, cuts it into events and writes the event index
+     * @param aResumed whether the plan was resumed from a checkpoint (the timeline then misses the files planned before
+     *                 it, and is not written)
+     */
+    private void writeEvents(boolean aResumed) {
+        if (null == eventTimeline) {
+            return;
+        }
+        if (aResumed) {
+            System.out.println("Event index: not written, as the plan was resumed (run again to write it)");
+            return;
+        }
+        try {
+            int lEvents = eventTimeline.write(Paths.get(eventsFilename));
+            System.out.println("Event index: " + lEvents + " events of " + eventTimeline.size() + " media files written to " + eventsFilename);
+        } catch (IOException e) {
+            System.out.println("Event index " + eventsFilename + ": Error in write (" + e + ")");
+        }
+    }
+
+    /**
+     * Answers a query about the media files from the catalog, without reading them: the files (and bytes) per camera
+     * per month ("stats"), or the files whose name disagrees with their timestamp ("audit")
+     * @throws IOException if the catalog cannot be read
+     */
+    private void queryCatalog() throws IOException {
+        MediaCatalog lCatalog = MediaCatalog.read(Paths.get(catalogFilename));
+        System.out.println("Media catalog: " + lCatalog.size() + " media files of " + lCatalog.getFolder());
+        if ("stats".equals(action)) {
+            lCatalog.printCameraMonths(verificationReport);
+        } else {
+            System.out.println("Audit: " + lCatalog.audit(verificationReport) + " discrepancies found");
+        }
+    }
+
+    /**
+     * Watches a folder (and its subfolders, if recursive), converting the files that are created or changed in it once
+     * they stopped changing for watchSettleSeconds (e.g. they were fully copied from a card reader). The settled files
+     * are converted in batches of at most WATCH_BATCH_SIZE files, each planned and applied as a run of its own (so the
+     * plan has the renames of the last batch only). The files that already exist when the watch starts are not
+     * converted. Runs until the program is stopped, or the folder is deleted.
+     * The metadata cache is saved at most every WATCH_CACHE_SAVE_NANOS, and when the watch ends (also when the program
+     * is stopped, by a shutdown hook).
+     * @param aSrcFolderPath the folder to be watched
+     * @param aConverter the converter name (from the fConverters array)
+     */
+    private void watchFolder(String aSrcFolderPath, String aConverter) {
+        startMetrics(aSrcFolderPath);
+        cameraRegistry = loadCameraRegistry(cameraRegistryFilename);
+        openMetadataCache(aSrcFolderPath, recursive);
+        Thread lShutdownHook = new Thread("Watch shutdown") {
+            @Override
+            public void run() {
+                saveMetadataCache(false);
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(lShutdownHook);
+        try (FolderWatcher lWatcher = new FolderWatcher(Paths.get(aSrcFolderPath), recursive, watchSettleSeconds)) {
+            folderWatcher = lWatcher;
+            System.out.println("Watching " + aSrcFolderPath + " (new files are converted " + watchSettleSeconds + " s after they stop changing)");
+            long lCacheSavedNanos = System.nanoTime();
+            for (List<Path> lFiles; !(lFiles = lWatcher.awaitSettledFiles(WATCH_BATCH_SIZE)).isEmpty();) {
+                fRenameEngine.clear();  // Other programs added files to the folders since the last batch
+                if (planFolder(aSrcFolderPath, lFiles, aConverter, null)) {
+                    runPlan(false);
+                }
+                if (System.nanoTime() - lCacheSavedNanos >= WATCH_CACHE_SAVE_NANOS) {
+                    saveMetadataCache(false);
+                    lCacheSavedNanos = System.nanoTime();
+                }
+                writeMetrics();
+            }
+            System.out.println("Watch folder: " + aSrcFolderPath + " is gone");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            folderWatcher = null;
+            try {
+                Runtime.getRuntime().removeShutdownHook(lShutdownHook);
+            } catch (IllegalStateException e) {
+                // Already shutting down: the hook saves the cache
+            }
+            closeMetadataCache(false);
+            endMetrics();
+        }
+    }
+
+    /**
+     * Starts the metrics of a new run, and registers them in JMX while the run is in progress
+     * @param aSrcFolderPath the folder to be converted (null when a plan is applied/undone)
+     */
+    private void startMetrics(String aSrcFolderPath) {
+        metrics = new RunMetrics(action, null == aSrcFolderPath ? null : Paths.get(aSrcFolderPath).toAbsolutePath().toString(), planFilename);
+        metrics.register();
+    }
+
+    /**
+     * Ends the metrics of the run, showing their summary and writing them to the metrics file
+     */
+    private void endMetrics() {
+        metrics.end();
+        writeMetrics();
+    }
+
+    /**
+     * Shows the summary of the metrics of the run so far, and writes them to the metrics file
+     */
+    private void writeMetrics() {
+        System.out.println("Run metrics: " + metrics.getSummary());
+        String lMetricsFilename = null == metricsFilename ? planFilename + ".metrics.json" : metricsFilename;
+        if (!lMetricsFilename.isEmpty()) {
+            try {
+                metrics.writeJson(Paths.get(lMetricsFilename));
+            } catch (IOException e) {
+                System.out.println("Run metrics " + lMetricsFilename + ": Error in write (" + e + ")");
+            }
+        }
+    }
+
+    /**
+     * Reads the camera model of all the files of a folder (and of its subfolders, if recursive) whose new name needs it,
+     * and names all the distinct camera models (asking the user for those that are not in the camera registry). The
+     * metadata is read by a pool of threadCount workers, and kept in the metadata cache for the planning.
+     * @param aSrcFolderPath the folder to be converted
+     * @param aConverter the converter name (from the fConverters array)
+     * @param aResume the checkpoint of the interrupted plan being resumed (only the files after it are scanned), or null
+     * @return true if the whole folder was scanned
+     */
+    private boolean prescanCameraModels(String aSrcFolderPath, final String aConverter, PlanCheckpoint aResume) {
+        final ExecutorService lExecutor = Executors.newFixedThreadPool(threadCount);
+        final Map<String, String> lCameraModels = new LinkedHashMap<>();   // A file name, by distinct camera model (in the order found)
+        final Deque<Future<MediaFile>> lPendingFiles = new ArrayDeque<>();
+        try {
+            new FolderWalker(Paths.get(aSrcFolderPath), recursive).walk(null == aResume ? null : aResume.lastFile, new FolderWalker.Visitor() {
+                @Override
+                void visitGroup(final MediaFile f) {
+                    // The companions are renamed with their primary file: their camera model is not needed
+                    if (needsCameraModel(f, aConverter)) {
+                        lPendingFiles.add(lExecutor.submit(new Callable<MediaFile>() {
+                            @Override
+                            public MediaFile call() {
+                                readFileMetadata(f);
+                                return f;
+                            }
+                        }));
+                        if (lPendingFiles.size() >= 4 * threadCount) {
+                            addCameraModel(lPendingFiles.poll(), lCameraModels);
+                        }
+                    }
+                }
+
+                @Override
+                void visitFileFailed(Path aPath, IOException e) {
+                    // Reported when planning
+                }
+            });
+            while (!lPendingFiles.isEmpty()) {
+                addCameraModel(lPendingFiles.poll(), lCameraModels);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            lExecutor.shutdownNow();
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            return false;
+        }
+        int lNewCameraModels = 0;
+        for (Map.Entry<String, String> lCameraModel : lCameraModels.entrySet()) {
+            if (null == getKnownCameraModel(lCameraModel.getKey())) {
+                ++lNewCameraModels;
+            }
+            getUserCameraModel(lCameraModel.getValue(), lCameraModel.getKey());
+        }
+        System.out.println("Camera models: " + lCameraModels.size() + " found, " + lNewCameraModels + " new");
+        return true;
+    }
+
+    /**
+     * Waits for the metadata of a file of the pre-scan, and collects its camera model
+     * @param aFile the file whose metadata is being read
+     * @param aCameraModels a file name, by distinct camera model
+     */
+    private void addCameraModel(Future<MediaFile> aFile, Map<String, String> aCameraModels) {
+        try {
+            MediaFile f = aFile.get();
+            if (null != f.cameraModel && !aCameraModels.containsKey(f.cameraModel)) {
+                aCameraModels.put(f.cameraModel, f.getName());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Reported when planning
+        }
+    }
+
+    /**
+     * Checks whether the new name of a file, given by a converter, includes its camera model
+     * @param f the file that is being analysed
+     * @param aConverter the converter name (from the fConverters array), or the names of a pipeline
+     * @return true if the camera model of the file will be needed
+     */
+    private boolean needsCameraModel(MediaFile f, String aConverter) {
+        return getConverterPipeline(aConverter).needsCameraModel(f);
+    }
+
+    /**
+     * Plans the renames of all files of a folder (and of its subfolders, if recursive), or of the given files only,
+     * writing them to the plan file.
+     * The folder tree is streamed, so only the files being analysed are kept in memory. The new names are computed by a
+     * pool of threadCount workers (each file with its own MediaFile context), while the new names are reserved and
+     * added to the plan by the calling thread, in the order of the walk. Nothing is renamed yet.
+     * When the whole folder is planned, the plan is checkpointed every PLAN_CHECKPOINT_NANOS (see PlanCheckpoint), so
+     * that an interrupted planning can be resumed after the last file planned.
+     * @param aSrcFolderPath the folder to be converted
+     * @param aFiles the files of the folder to be converted (absolute), or null for all of them
+     * @param aConverter the converter name (from the fConverters array)
+     * @param aResume the checkpoint of the interrupted plan to be resumed (only when aFiles is null), or null
+     * @return true if the whole folder (or all the given files) was planned
+     */
+    private boolean planFolder(String aSrcFolderPath, List<Path> aFiles, final String aConverter, PlanCheckpoint aResume) {
+        final ExecutorService lExecutor = Executors.newFixedThreadPool(threadCount);
+        fRenameEngine.pin(null == folderLayout ? null : folderLayout.getRoot());
+        try (RenamePlan.Writer lPlan = null == aResume ? new RenamePlan.Writer(Paths.get(planFilename), aSrcFolderPath, recursive)
+                                                       : new RenamePlan.Writer(Paths.get(planFilename), aResume.planLength, aResume.planSize)) {
+            renamePlan = lPlan;
+            if (null != aFiles) {
+                Map<Path, List<MediaFile>> lFolders = new LinkedHashMap<>();    // The files, by folder (to be grouped)
+                for (Path lFile : aFiles) {
+                    long lListStart = System.nanoTime();
+                    BasicFileAttributes lAttributes;
+                    try {
+                        lAttributes = Files.readAttributes(lFile, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        System.out.println("Read file: " + lFile + ": Error in read (" + e + ")");
+                        continue;
+                    }
+                    metrics.record(RunMetrics.Stage.LIST, lListStart);
+                    metrics.fileListed();
+                    if (lAttributes.isRegularFile()) {
+                        if (!lFolders.containsKey(lFile.getParent())) {
+                            lFolders.put(lFile.getParent(), new ArrayList<MediaFile>());
+                        }
+                        lFolders.get(lFile.getParent()).add(new MediaFile(lFile, lAttributes));
+                    }
+                }
+                for (List<MediaFile> lFolderFiles : lFolders.values()) {
+                    for (MediaFile lPrimary : MediaGroups.group(lFolderFiles)) {
+                        convertFile(lPrimary, aConverter, lExecutor);
+                    }
+                }
+            } else {
+                if (null != aResume) {
+                    resumePlan(aResume);
+                } else {
+                    planCheckpoint = new PlanCheckpoint(Paths.get(aSrcFolderPath).toAbsolutePath().toString(), recursive, getRunOptions(aConverter), 0, 0, null, null);
+                }
+                planCheckpointNanos = System.nanoTime();
+                new FolderWalker(Paths.get(aSrcFolderPath), recursive).walk(lastPlannedFile, new FolderWalker.Visitor() {
+                    private long fListStart = System.nanoTime();    // The walker lists the next file between two visits
+
+                    @Override
+                    void visitFile(Path aFile, BasicFileAttributes aAttributes) {
+                        metrics.record(RunMetrics.Stage.LIST, fListStart);
+                        metrics.fileListed();
+                        if (null != metadataCache) {
+                            metadataCache.touch(aFile.toString());  // The file still exists, even if it is not analysed
+                        }
+                        fListStart = System.nanoTime();
+                    }
+
+                    @Override
+                    void visitGroup(MediaFile aPrimary) throws IOException {
+                        convertFile(aPrimary, aConverter, lExecutor);
+                        fListStart = System.nanoTime();
+                    }
+
+                    @Override
+                    void visitFileFailed(Path aPath, IOException e) {
+                        System.out.println("Read file: " + aPath + ": Error in read (" + e + ")");
+                    }
+                });
+            }
+            while (!fPendingNewNames.isEmpty()) {
+                planNextFile();
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+            // The journal of the previous plan does not apply to the new one
+            Files.deleteIfExists(Paths.get(planFilename + ".journal"));
+            lPlan.commit();
+            Files.deleteIfExists(getPlanCheckpointFile());
+            System.out.println("Plan: " + lPlan.size() + " renames written to " + planFilename);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            lExecutor.shutdownNow();
+            fPendingFiles.clear();
+            fPendingNewNames.clear();
+            fDuplicateDetector.clear();
+            renamePlan = null;
+            planCheckpoint = null;
+            lastPlannedFile = null;
+        }
+    }
+
+    /**
+     * @return the file where the plan being written is checkpointed
+     */
+    private Path getPlanCheckpointFile() {
+        return Paths.get(planFilename + ".checkpoint");
+    }
+
+    /**
+     * Extracts the files of a ZIP archive (and of its subfolders, if recursive) to a folder, with the new names given by
+     * the converter. The archive is read through the zip filesystem, so nothing is extracted to be analysed: the
+     * metadata readers only inflate the first bytes of each entry (see MediaChannels.open), and each file is inflated
+     * once more, straight to its new name. The files keep their folder of the archive, unless they are organized (see
+     * folderLayout). The new names are computed by a pool of threadCount workers, as when a folder is planned, and a
+     * name already in use gets a number appended, unless the file is a duplicate of the file with that name.
+     * @param aArchive the ZIP archive
+     * @param aDstFolderPath the folder the files are extracted to (created if it does not exist)
+     * @param aConverter the converter name (from the fConverters array), or the names of a pipeline
+     * @return true if the whole archive was extracted (some files may have failed, see the metrics)
+     */
+    private boolean extractArchive(String aArchive, String aDstFolderPath, final String aConverter) {
+        startMetrics(aArchive);
+        fRenameEngine.clear();      // The names reserved by a previous run (cancelled, or only planned) are free again
+        fCameraModelsUser.clear();  // The camera registry may have been changed by another run
+        cameraRegistry = loadCameraRegistry(cameraRegistryFilename);
+        final ExecutorService lExecutor = Executors.newFixedThreadPool(threadCount);
+        final Deque<MediaFile> lPendingFiles = new ArrayDeque<>();
+        final Deque<Future<String>> lPendingNewNames = new ArrayDeque<>();     // New names (without folder), in the same order
+        final Path lDstFolder = Paths.get(aDstFolderPath).toAbsolutePath();
+        fRenameEngine.pin(null == folderLayout ? lDstFolder : folderLayout.getRoot());
+        try (FileSystem lArchive = FileSystems.newFileSystem(Paths.get(aArchive), (ClassLoader) null)) {
+            final Path lRoot = lArchive.getRootDirectories().iterator().next();
+            new FolderWalker(lRoot, recursive).walk(null, new FolderWalker.Visitor() {
+                @Override
+                void visitFile(Path aFile, BasicFileAttributes aAttributes) {
+                    metrics.fileListed();
+                }
+
+                @Override
+                void visitGroup(final MediaFile aPrimary) {
+                    lPendingFiles.add(aPrimary);
+                    lPendingNewNames.add(lExecutor.submit(new Callable<String>() {
+                        @Override
+                        public String call() {
+                            long lStart = System.nanoTime();
+                            String lNewName = getNewFilePath(aPrimary, aConverter);
+                            metrics.record(RunMetrics.Stage.NAME, lStart);
+                            return lNewName.isEmpty() ? aPrimary.getName() : Paths.get(lNewName).getFileName().toString();
+                        }
+                    }));
+                    if (lPendingNewNames.size() >= 4 * threadCount) {
+                        extractNextFile(lPendingFiles.poll(), lPendingNewNames.poll(), lRoot, lDstFolder);
+                    }
+                }
+
+                @Override
+                void visitFileFailed(Path aPath, IOException e) {
+                    System.out.println("Read file: " + aPath + ": Error in read (" + e + ")");
+                }
+            });
+            while (!lPendingNewNames.isEmpty()) {
+                extractNextFile(lPendingFiles.poll(), lPendingNewNames.poll(), lRoot, lDstFolder);
+            }
+            return !Thread.currentThread().isInterrupted();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            lExecutor.shutdownNow();
+            fDuplicateDetector.clear();
+            saveCameraRegistry();
+            endMetrics();
+        }
+    }
+
+    /**
+     * Waits for the new name of the next file of an archive, and extracts it (and its companions) to that name
+     * @param f the file of the archive
+     * @param aNewName its new name (without folder), being computed
+     * @param aRoot the root of the archive
+     * @param aDstFolder the folder the files are extracted to
+     */
+    private void extractNextFile(MediaFile f, Future<String> aNewName, Path aRoot, Path aDstFolder) {
+        String lNewName;
+        try {
+            lNewName = aNewName.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e) {
+            System.out.println("Extract file: " + f.toPath() + ": Error in analysis");
+            e.getCause().printStackTrace();
+            lNewName = f.getName();
+        }
+        Path lFolder = null == folderLayout ? null : folderLayout.getFolder(lNewName);
+        if (null == lFolder) {
+            lFolder = aDstFolder.resolve(aRoot.relativize(f.toPath().getParent()).toString());
+        }
+        Path lNewPath = lFolder.resolve(lNewName);
+        Path lReservedPath = fRenameEngine.reserve(lNewPath);
+        if (!lReservedPath.equals(lNewPath) && isDuplicate(f, lNewPath, lReservedPath)) {
+            fRenameEngine.release(lReservedPath);   // Already extracted (e.g. the archive was extracted before)
+            return;
+        }
+        metrics.renamePlanned(!lReservedPath.equals(lNewPath));
+        extractFile(f, lReservedPath);
+        if (null != f.companions) {
+            // The companions follow the new name of their primary file
+            for (MediaFile lCompanion : f.companions) {
+                extractFile(lCompanion, fRenameEngine.reserve(MediaGroups.getCompanionTarget(lCompanion, f, lReservedPath)));
+            }
+        }
+    }
+
+    /**
+     * Extracts a file of an archive, keeping its last modified time. It is written to a temporary name (".part") and
+     * renamed when complete, so an interrupted extraction never leaves a partial file with the new name.
+     * @param f the file of the archive
+     * @param aTarget its new name (with folder, created if it does not exist)
+     */
+    private void extractFile(MediaFile f, Path aTarget) {
+        long lStart = System.nanoTime();
+        RenameEngine.Status lStatus = RenameEngine.Status.RENAMED;
+        Path lPart = aTarget.resolveSibling(aTarget.getFileName() + ".part");
+        try {
+            Files.createDirectories(aTarget.getParent());
+            Files.copy(f.toPath(), lPart, StandardCopyOption.REPLACE_EXISTING);
+            Files.setLastModifiedTime(lPart, f.getAttributes().lastModifiedTime());
+            Files.move(lPart, aTarget);     // Not replacing: fails if the target exists
+        } catch (FileAlreadyExistsException e) {
+            lStatus = RenameEngine.Status.TARGET_EXISTS;
+        } catch (IOException e) {
+            System.out.println("Extract file: " + f.toPath() + " to " + aTarget + ": Error in copy (" + e + ")");
+            lStatus = RenameEngine.Status.FAILED;
+        } finally {
+            try {
+                Files.deleteIfExists(lPart);
+            } catch (IOException e) {
+                System.out.println("Extract file: " + lPart + ": Error in delete (" + e + ")");
+            }
+        }
+        metrics.record(RunMetrics.Stage.RENAME, lStart);
+        metrics.renamed(lStatus);
+    }
+
+    /**
+     * @param aConverter the converter name (from the fConverters array)
+     * @return the converter and its options, as saved in a plan checkpoint (a plan is only resumed with the same ones)
+     */
+    private String getRunOptions(String aConverter) {
+        return aConverter + '\n' + replaceRegex + '\n' + replacementUserText + '\n' + minutesToBeAdded + '\n' + shiftExifTimestamp + '\n'
+                + bulkReplacementFilename + '\n' + bulkReplacementPrefix + '\n' + duplicateAction + '\n' + folderLayout + '\n' + filenameTimestamps;
+    }
+
+    /**
+     * Reads the checkpoint of an interrupted plan of the same run; any other checkpoint is deleted, as the new plan
+     * replaces its temporary plan file
+     * @param aSrcFolderPath the folder to be converted
+     * @param aConverter the converter name (from the fConverters array)
+     * @return the checkpoint to be resumed, or null to plan the whole folder
+     */
+    private PlanCheckpoint readPlanCheckpoint(String aSrcFolderPath, String aConverter) {
+        Path lCheckpointFile = getPlanCheckpointFile();
+        PlanCheckpoint lCheckpoint = PlanCheckpoint.read(lCheckpointFile);
+        if (null == lCheckpoint) {
+            return null;
+        }
+        if (lCheckpoint.isOf(Paths.get(aSrcFolderPath).toAbsolutePath().toString(), recursive, getRunOptions(aConverter))
+                && Files.isRegularFile(RenamePlan.Writer.getTempFile(Paths.get(planFilename)))) {
+            return lCheckpoint;
+        }
+        try {
+            Files.delete(lCheckpointFile);
+        } catch (IOException e) {
+            System.out.println("Plan checkpoint " + lCheckpointFile + ": Error in delete (" + e + ")");
+        }
+        return null;
+    }
+
+    /**
+     * Restores the state of an interrupted plan from its checkpoint: the new names of its renames are reserved again,
+     * and its counters added to the metrics
+     * @param aResume the checkpoint
+     * @throws IOException if the temporary plan file cannot be read
+     */
+    private void resumePlan(PlanCheckpoint aResume) throws IOException {
+        try (RenamePlan.Reader lPlan = new RenamePlan.Reader(RenamePlan.Writer.getTempFile(Paths.get(planFilename)))) {
+            for (int i = 0; i < aResume.planSize; ++i) {
+                RenamePlan.Entry lEntry = lPlan.next();
+                fRenameEngine.reserve(lEntry.target);
+                fDuplicateDetector.planned(lEntry.source, lEntry.target);
+            }
+        }
+        metrics.addPlanningCounters(aResume.counters);
+        planCheckpoint = aResume;
+        lastPlannedFile = aResume.lastFile;
+        System.out.println("Plan: resuming after " + aResume.lastFile + " (" + aResume.planSize + " renames already planned)");
+    }
+
+    /**
+     * Checkpoints the plan being written, if PLAN_CHECKPOINT_NANOS passed since the last checkpoint
+     * @throws IOException if the plan or the checkpoint cannot be written
+     */
+    private void checkpointPlan() throws IOException {
+        if (null == planCheckpoint || null == lastPlannedFile || System.nanoTime() - planCheckpointNanos < PLAN_CHECKPOINT_NANOS) {
+            return;
+        }
+        // The files listed but not planned yet are listed again when resumed (and so counted twice)
+        planCheckpoint = new PlanCheckpoint(planCheckpoint.folder, planCheckpoint.recursive, planCheckpoint.options,
+                renamePlan.checkpoint(), renamePlan.size(), lastPlannedFile, metrics.getPlanningCounters());
+        planCheckpoint.write(getPlanCheckpointFile());
+        planCheckpointNanos = System.nanoTime();
+    }
+
+    /**
+     * Applies (or undoes) the renames of the plan file, in batches of consecutive entries whose renames are done in
+     * parallel, recording them in the journal of the plan (one disk sync per batch). The entries already renamed by a
+     * previous interrupted apply are skipped; the undo only moves back the entries that were renamed.
+     * @param aUndo whether the renames are undone instead of applied
+     * @return true if the whole plan was applied (or undone)
+     */
+    private boolean runPlan(boolean aUndo) {
+        ExecutorService lExecutor = Executors.newFixedThreadPool(threadCount);
+        boolean lOwnMetadataCache = null == metadataCache;
+        boolean lComplete = false;
+        try (RenamePlan.Reader lPlan = new RenamePlan.Reader(Paths.get(planFilename));
+             RenameJournal lJournal = new RenameJournal(Paths.get(planFilename + ".journal"))) {
+            if (lOwnMetadataCache) {
+                openMetadataCache(lPlan.getFolder(), lPlan.isRecursive());
+            }
+            List<RenamePlan.Entry> lBatch = new ArrayList<>(PLAN_BATCH_SIZE);
+            for (RenamePlan.Entry lEntry; null != (lEntry = lPlan.next()) && !Thread.currentThread().isInterrupted();) {
+                lBatch.add(lEntry);
+                if (lBatch.size() == PLAN_BATCH_SIZE) {
+                    runPlanBatch(lBatch, aUndo, lJournal, lExecutor);
+                    lBatch.clear();
+                }
+            }
+            if (!lBatch.isEmpty()) {
+                runPlanBatch(lBatch, aUndo, lJournal, lExecutor);
+            }
+            lComplete = !Thread.currentThread().isInterrupted();
+        } catch (IOException e) {
+            System.out.println("Rename plan " + planFilename + ": " + e.getMessage());
+        } finally {
+            lExecutor.shutdownNow();
+            if (lOwnMetadataCache) {
+                closeMetadataCache(false);
+            }
+        }
+        return lComplete;
+    }
+
+    /**
+     * Applies (or undoes) a batch of consecutive entries of the plan
+     * @param aBatch the entries
+     * @param aUndo whether the renames are undone instead of applied
+     * @param aJournal the journal of the plan
+     * @param aExecutor the workers that do the renames
+     * @throws IOException if the journal cannot be written
+     */
+    private void runPlanBatch(List<RenamePlan.Entry> aBatch, final boolean aUndo, RenameJournal aJournal, ExecutorService aExecutor) throws IOException {
+        final byte lRenamed = RenameJournal.getState(RenameEngine.Status.RENAMED);
+        byte[] lStates = new byte[aBatch.size()];
+        List<Callable<RenameEngine.Status>> lMoves = new ArrayList<>();
+        List<RenamePlan.Entry> lMovedEntries = new ArrayList<>();
+        boolean lChanged = false;
+        for (int i = 0; i < lStates.length; ++i) {
+            final RenamePlan.Entry lEntry = aBatch.get(i);
+            lStates[i] = aJournal.getState(lEntry.index);
+            if (RenameJournal.PENDING == lStates[i]) {
+                lStates[i] = RenameJournal.resolve(lEntry);     // Interrupted run: check the files
+                lChanged = true;
+            }
+            if (aUndo ? lRenamed == lStates[i] : lRenamed != lStates[i]) {
+                lMovedEntries.add(lEntry);
+                lMoves.add(new Callable<RenameEngine.Status>() {
+                    @Override
+                    public RenameEngine.Status call() {
+                        long lStart = System.nanoTime();
+                        RenameEngine.Status lStatus = moveEntry(lEntry, aUndo);
+                        metrics.record(RunMetrics.Stage.RENAME, lStart);
+                        return lStatus;
+                    }
+                });
+            }
+        }
+        if (lMoves.isEmpty()) {
+            if (lChanged) {
+                aJournal.commit(aBatch.get(0).index, lStates);
+            }
+            return;
+        }
+        aJournal.begin(aBatch.get(0).index, lStates.length);
+        List<Future<RenameEngine.Status>> lStatuses;
+        try {
+            lStatuses = aExecutor.invokeAll(lMoves);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;     // The batch stays pending in the journal
+        }
+        for (int i = 0; i < lStatuses.size(); ++i) {
+            RenamePlan.Entry lEntry = lMovedEntries.get(i);
+            RenameEngine.Status lStatus;
+            try {
+                lStatus = lStatuses.get(i).get();
+            } catch (InterruptedException | ExecutionException e) {
+                lStatus = RenameEngine.Status.FAILED;
+            }
+            int lBatchIndex = lEntry.index - aBatch.get(0).index;
+            metrics.renamed(lStatus);
+            if (aUndo) {
+                System.out.println("Undo rename: " + lEntry.target + " to " + lEntry.source + ": " + lStatus.getDescription());
+                if (RenameEngine.Status.RENAMED == lStatus) {
+                    lStates[lBatchIndex] = RenameJournal.NOT_STARTED;
+                    if (null != metadataCache) {
+                        metadataCache.rename(lEntry.target.toString(), lEntry.source.toString());
+                    }
+                }
+            } else {
+                System.out.println("Rename file: " + lEntry.source + " to " + lEntry.target + ": " + lStatus.getDescription());
+                lStates[lBatchIndex] = RenameJournal.getState(lStatus);
+                if (RenameEngine.Status.RENAMED == lStatus && null != metadataCache) {
+                    metadataCache.rename(lEntry.source.toString(), lEntry.target.toString());
+                }
+            }
+        }
+        aJournal.commit(aBatch.get(0).index, lStates);
+    }
 
     /**
-     * Renames a file
-     * @param aFile original file
-     * @param aNewName new name of the file
-     * @return success
+     * Applies (or undoes) an entry of the plan: rewrites the EXIF timestamp of the file, if planned, and renames it.
+     * The EXIF timestamp is rewritten first, so an interrupted entry (not renamed yet) is simply done again; if the
+     * rename fails, it is rewritten back. Applying sets the last modified time of the file to its new EXIF timestamp;
+     * undoing restores the time the file had when planned, and a rollback the time it had before the rewrite.
+     * @param aEntry the entry
+     * @param aUndo whether the entry is undone instead of applied
+     * @return the status of the rename
      */
-    private Boolean renameFile(File aFile, String aNewName) {
-        String lNewName = aNewName;
-        for (int lNum = 0;; ++lNum) {
-            if (lNum > 0) {
-                // This is to cover different versions of the same file, if the file already exists (appends a number)
-                int lIndexExtension = aNewName.lastIndexOf(".");
-                lNewName = aNewName.substring(0, lIndexExtension) + "-" + lNum + aNewName.substring(lIndexExtension);
+    private RenameEngine.Status moveEntry(RenamePlan.Entry aEntry, boolean aUndo) {
+        Path lSource = aUndo ? aEntry.target : aEntry.source;
+        Path lTarget = aUndo ? aEntry.source : aEntry.target;
+        if (null == aEntry.exifTimestamp) {
+            return moveFile(lSource, lTarget);
+        }
+        String lExifTimestamp = aUndo ? aEntry.newExifTimestamp : aEntry.exifTimestamp;
+        String lNewExifTimestamp = aUndo ? aEntry.exifTimestamp : aEntry.newExifTimestamp;
+        try {
+            FileTime lLastModified = Files.getLastModifiedTime(lSource);    // Restored if the rename fails
+            FileTime lNewLastModified = aUndo && aEntry.lastModified >= 0 ? FileTime.fromMillis(aEntry.lastModified) : null;
+            if (!ExifTimestampWriter.rewrite(lSource, lExifTimestamp, lNewExifTimestamp, lNewLastModified)) {
+                return RenameEngine.Status.EXIF_CHANGED;
             }
-            if (!new File(lNewName).exists()) {
-                break;
+            RenameEngine.Status lStatus = moveFile(lSource, lTarget);
+            if (RenameEngine.Status.RENAMED != lStatus) {
+                ExifTimestampWriter.rewrite(lSource, lNewExifTimestamp, lExifTimestamp, lLastModified);
             }
+            return lStatus;
+        } catch (NoSuchFileException e) {
+            return RenameEngine.Status.SOURCE_MISSING;
+        } catch (AccessDeniedException e) {
+            return RenameEngine.Status.ACCESS_DENIED;
+        } catch (IOException e) {
+            System.out.println("Rewrite EXIF timestamp: " + lSource + ": Error in write (" + e + ")");
+            return RenameEngine.Status.FAILED;
         }
-        return aFile.renameTo(new File(lNewName));
     }
 
     /**
-     * Returns the proposed file new name, according to the selected converter.
-     * @param f the file that is being analysed
-     * @param aConverter the converter name (from the fConverters array)
-     * @return "" if the file does not need renaming; the new name otherwise.
+     * Moves a file to its new name: atomically if both are on the same filesystem, or otherwise by copying it
+     * @param aSource the file
+     * @param aTarget its new name
+     * @return the status of the move
      */
-    private String getNewFilePath(File f, String aConverter) {
-        int lConverter = ArrayUtils.indexOf(fConverters, aConverter);
-        switch(lConverter) {
-            case 0: return verifyFile(f);
-            case 1: return getNewFilePath_AddPrefixTimestampCamera(f);
-            case 2: return getNewFilePath_RemoveRegexAddPrefixTimestampCamera(f);
-            case 3: return getNewFilePath_ReplaceRegexByUserText(f);
-            case 4: return getNewFilePath_UpdatePrefixTimeAddMinutes(f);
-            case 5: return getNewFilePath_samsung(f);
-            case 6: return getNewFilePath_bulkrename(f);
-        }
-        return "";
+    private RenameEngine.Status moveFile(Path aSource, Path aTarget) {
+        RenameEngine.Status lStatus = RenameEngine.move(aSource, aTarget);
+        return RenameEngine.Status.OTHER_FILESYSTEM == lStatus ? crossDeviceMover.move(aSource, aTarget) : lStatus;
     }
 
     /**
-     * If a Camera Model ID matches any of the known IDs, return the corresponding Camera Known Name.
-     * @param aCameraModel the ID returned by EXIF or other tool
-     * @return the name that you wish this camera to be called (from fKnownCameraModelNames)
+     * Opens the metadata cache for the folder being converted (the run goes on without cache if it cannot be read)
+     * @param aSrcFolderPath the folder to be converted
+     * @param aRecursive whether its subfolders are also converted
      */
-    private String getKnownCameraModel(String aCameraModel) {
-        for (int i = fKnownCameraModelIDs.length; i-- > 0;) {
-            if (fKnownCameraModelIDs[i].equals(aCameraModel)) {
-                return fKnownCameraModelNames[i];
+    private void openMetadataCache(String aSrcFolderPath, boolean aRecursive) {
+        metadataCache = null;
+        if (!metadataCacheFilename.isEmpty()) {
+            try {
+                metadataCache = new MetadataCache(metadataCacheFilename, aSrcFolderPath, aRecursive);
+            } catch (IOException e) {
+                System.out.println("Metadata cache " + metadataCacheFilename + ": Error in read (" + e + ")");
             }
         }
-        return aCameraModel;
     }
 
     /**
-     * Runs the Media Converter/Verifier
-     * @param args the default folder for the media
+     * Saves and closes the metadata cache
+     * @param aCompleteRun whether the whole folder was converted
      */
-    public void main(String[] args) {
-        String lDefaultFolder = "";
-        if (args.length > 0) {
-            lDefaultFolder = args[0];
-        }
-        for (;;) {
-            // Get Path of the folder to be converted
-            String lSrcFolderPath = lDefaultFolder = getSrcFolderPath(lDefaultFolder);
-            if (lSrcFolderPath.isEmpty()) {
-                JOptionPane.showMessageDialog(null, "No Folder was selected. Exiting...", "Media Classifier", JOptionPane.INFORMATION_MESSAGE);
-                break;
-            }
-            // Get Converter
-            String lConverter = (String) JOptionPane.showInputDialog(null, "Apply file rename converter:", "Media Converter", JOptionPane.QUESTION_MESSAGE, null, fConverters, fConverters[0]);
-
-            // Get Regex to be replaced/removed if option was selected
-            replaceRegex = null;
-            if (fConverters[2].equals(lConverter) || fConverters[3].equals(lConverter)) {
-                replaceRegex = JOptionPane.showInputDialog(null, "Specify the Regex to be replaced:", "Media Converter", JOptionPane.QUESTION_MESSAGE);
-                if (null == replaceRegex || replaceRegex.isEmpty()) {
-                    continue;
-                }
-            }
-
-            // Get the User text to replace, if option was selected
-            replacementUserText = null;
-            if (fConverters[3].equals(lConverter)) {
-                replacementUserText = JOptionPane.showInputDialog(null, "Specify the text to be inserted:", "Media Converter", JOptionPane.QUESTION_MESSAGE);
-                if (null == replacementUserText) {
-                    continue;
-                }
-            }
+    private void closeMetadataCache(boolean aCompleteRun) {
+        saveMetadataCache(aCompleteRun);
+        metadataCache = null;
+    }
 
-            // Get the number of minutes to add, if option was selected
-            String lMinutesToBeAdded = null;
-            if (fConverters[4].equals(lConverter)) {
-                lMinutesToBeAdded = JOptionPane.showInputDialog(null, "Specify the number of minutes to be added to each file timestamp:", "Media Converter", JOptionPane.QUESTION_MESSAGE);
-                if (null == lMinutesToBeAdded) {
-                    continue;
-                }
-                minutesToBeAdded = Integer.parseInt(lMinutesToBeAdded);
+    /**
+     * Saves the metadata cache, keeping it open
+     * @param aCompleteRun whether the whole folder was converted
+     */
+    private void saveMetadataCache(boolean aCompleteRun) {
+        MetadataCache lMetadataCache = metadataCache;   // Also called by the shutdown hook of the watch mode
+        if (null != lMetadataCache) {
+            try {
+                lMetadataCache.save(aCompleteRun);
+            } catch (IOException e) {
+                System.out.println("Metadata cache " + metadataCacheFilename + ": Error in write (" + e + ")");
             }
+        }
+    }
 
-            // Get the number of minutes to add, if option was selected
-            bulkReplacementFilename = null;
-            if (fConverters[6].equals(lConverter)) {
-                bulkReplacementFilename = getFilePath("");
-                if (null == bulkReplacementFilename) {
-                    continue;
+    /**
+     * Starts computing the new name of a file. At most 4 files per worker are kept waiting to be added to the plan.
+     * @param f the file to be converted
+     * @param aConverter the converter name (from the fConverters array)
+     * @param aExecutor the workers that compute the new names
+     * @throws IOException if the plan cannot be written
+     */
+    private void convertFile(final MediaFile f, final String aConverter, ExecutorService aExecutor) throws IOException {
+        fPendingFiles.add(f);
+        fPendingNewNames.add(aExecutor.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                long lStart = System.nanoTime();
+                if (null != catalog || null != eventTimeline) {
+                    readFileMetadata(f);    // Every media file is cataloged, even if its new name does not need it
                 }
-                bulkReplacementPrefix = JOptionPane.showInputDialog(null, "Specify the prefix of the filenames:", "Media Converter", JOptionPane.QUESTION_MESSAGE);
-                if (null == bulkReplacementPrefix) {
-                    continue;
+                String lNewName = getNewFilePath(f, aConverter);
+                if (null != folderLayout) {
+                    lNewName = getOrganizedFilePath(f, lNewName);
                 }
+                metrics.record(RunMetrics.Stage.NAME, lStart);
+                return lNewName;
             }
+        }));
+        if (fPendingNewNames.size() >= 4 * threadCount) {
+            planNextFile();
+        }
+    }
 
-            // Confirm Actions
-            if (JOptionPane.OK_OPTION != JOptionPane.showConfirmDialog(null, "Please Confirm the parameters:\n\nSelected folder: " + lSrcFolderPath
-                            + "\nSelected Action: " + lConverter + (null == replaceRegex ? "" : "\nRegex Text to be replaced: \"" + replaceRegex + "\"")
-                            + (null == replacementUserText ? "" : "\nText to replace the above regex: \"" + replacementUserText + "\"")
-                            + (null == lMinutesToBeAdded ? "" : "\nMinutes to be added to each timestamp: " + minutesToBeAdded)
-                            + (null == bulkReplacementFilename ? "" : "\nFile for doing renaming: " + bulkReplacementFilename)
-                            + (null == bulkReplacementPrefix ? "" : "\nPrefix of bulk renaming filenames: " + bulkReplacementPrefix),
-                         "Input Confirmation", JOptionPane.OK_CANCEL_OPTION)) {
-                JOptionPane.showMessageDialog(null, "Conversion Cancelled.", "Media Classifier", JOptionPane.INFORMATION_MESSAGE);
-                continue;
-            }
+    /**
+     * Moves the new name of a file to its folder in the destination tree
+     * @param f the file that is being analysed
+     * @param aNewFilePath the new name given by the converter ("" if the file does not need renaming)
+     * @return "" if the file does not need renaming nor moving; the new name otherwise (in its own folder, if its name
+     *         does not start by a timestamp)
+     */
+    private String getOrganizedFilePath(MediaFile f, String aNewFilePath) {
+        String lName = aNewFilePath.isEmpty() ? f.getName() : Paths.get(aNewFilePath).getFileName().toString();
+        Path lFolder = folderLayout.getFolder(lName);
+        if (null == lFolder) {
+            return aNewFilePath;
+        }
+        Path lNewPath = lFolder.resolve(lName);
+        return lNewPath.equals(f.toPath()) ? "" : lNewPath.toString();    // Already organized
+    }
 
-            // Cycle all files in the src folder
-            movieCameraModel = exifCameraModel = "@@No Camera Model@@";    // Default value to be replaced on each run
-            File[] listOfFiles = new File(lSrcFolderPath).listFiles();
-            if (listOfFiles != null) {
-                for (File listOfFile : listOfFiles) {
-                    if (listOfFile.isFile()) {
-                        File f = new File(listOfFile.getAbsolutePath());
-
-                        // Process file
-                        exifMetadata = null;
-                        mediaMetadata = null;
-                        String lNewName = getNewFilePath(f, lConverter);
-                        // Only renames if the new name is valid
-                        if (!lNewName.isEmpty()) {
-                            System.out.println("Rename file: " + f.getAbsolutePath() + " to " + lNewName + (renameFile(f, lNewName) ? ": Renamed successfully" : ": Error in rename"));
-                        }
+    /**
+     * Waits for the new name of the oldest pending file, reserves it and adds the rename to the plan
+     * @throws IOException if the plan cannot be written
+     */
+    private void planNextFile() throws IOException {
+        MediaFile f = fPendingFiles.poll();
+        String lNewName;
+        try {
+            lNewName = fPendingNewNames.poll().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e) {
+            System.out.println("Rename file: " + f.getAbsolutePath() + ": Error in analysis");
+            e.getCause().printStackTrace();
+            lNewName = "";
+        }
+        Path lFinalPath = f.toPath();   // Where the file is once the plan is applied
+        // Only renames if the new name is valid
+        if (!lNewName.isEmpty()) {
+            // The name stays reserved: no other file of the plan gets it (collisions are resolved when planning)
+            Path lNewPath = Paths.get(lNewName);
+            Path lReservedPath = fRenameEngine.reserve(lNewPath);
+            if (!lReservedPath.equals(lNewPath) && isDuplicate(f, lNewPath, lReservedPath)) {
+                fRenameEngine.release(lReservedPath);
+            } else {
+                addToPlan(f, lNewPath, lReservedPath);
+                lFinalPath = lReservedPath;
+                if (null != f.companions) {
+                    // The companions follow the new name of their primary file
+                    for (MediaFile lCompanion : f.companions) {
+                        Path lCompanionPath = MediaGroups.getCompanionTarget(lCompanion, f, lReservedPath);
+                        addToPlan(lCompanion, lCompanionPath, fRenameEngine.reserve(lCompanionPath));
                     }
                 }
             }
-            JOptionPane.showMessageDialog(null, "Conversion finished.", "Media Classifier", JOptionPane.INFORMATION_MESSAGE);
         }
+        if (null != catalog) {
+            catalog.add(lFinalPath, f.length(), f.timestamp, getCatalogCameraName(f));
+        }
+        if (null != eventTimeline) {
+            eventTimeline.add(lFinalPath, f.timestamp, getCatalogCameraName(f));
+        }
+        lastPlannedFile = f.toPath();
+        checkpointPlan();
+    }
+
+    /**
+     * Returns the name of the camera of a file, as it is given in the new names, without asking the user for it
+     * @param f the file that was analysed
+     * @return the name given to its camera model in this run, its registered name, or its default name (null if the
+     *         file has no camera model)
+     */
+    private String getCatalogCameraName(MediaFile f) {
+        if (null == f.cameraModel) {
+            return null;
+        }
+        String lCameraName = fCameraModelsUser.get(f.cameraModel);
+        if (null == lCameraName) {
+            lCameraName = getKnownCameraModel(f.cameraModel);
+        }
+        return null == lCameraName ? NameTransformer.sanitize(f.cameraModel.trim().toLowerCase(), "") : lCameraName;
+    }
+
+    /**
+     * Adds a rename to the plan
+     * @param f the file to be renamed
+     * @param aNewPath the new name given by the converter
+     * @param aReservedPath the name reserved for it (aNewPath, or it with a number appended)
+     * @throws IOException if the plan cannot be written
+     */
+    private void addToPlan(MediaFile f, Path aNewPath, Path aReservedPath) throws IOException {
+        renamePlan.add(f.toPath(), aReservedPath, f.exifTimestamp, f.newExifTimestamp, f.lastModified());
+        fDuplicateDetector.planned(f.toPath(), aReservedPath);
+        if (null != folderWatcher) {
+            folderWatcher.ignore(aReservedPath);    // The renamed file must not be converted again
+        }
+        metrics.renamePlanned(!aReservedPath.equals(aNewPath));
+    }
+
+    /**
+     * Checks whether a file whose new name is already in use is a copy of the file that has (or will have) that name,
+     * or one of its numbered variants, reporting it
+     * @param f the file to be renamed
+     * @param aNewPath the new name given by the converter
+     * @param aReservedPath the free name reserved for it, with a number appended
+     * @return true if the file is a duplicate that must not be renamed (duplicateAction "skip")
+     */
+    private boolean isDuplicate(MediaFile f, Path aNewPath, Path aReservedPath) {
+        if ("off".equals(duplicateAction)) {
+            return false;
+        }
+        Path lDuplicate;
+        try {
+            lDuplicate = fDuplicateDetector.findDuplicate(f.toPath(), aNewPath, aReservedPath);
+        } catch (IOException e) {
+            System.out.println("Rename file: " + f.getAbsolutePath() + ": Error in duplicate check (" + e + ")");
+            return false;
+        }
+        if (null == lDuplicate) {
+            return false;
+        }
+        metrics.duplicateFound();
+        boolean lSkip = "skip".equals(duplicateAction);
+        System.out.println("Rename file: " + f.getAbsolutePath() + ": Duplicate of " + lDuplicate + (lSkip ? ", not renamed" : ""));
+        return lSkip;
     }
 
     /**
@@ -226,58 +1552,21 @@ public class MediaConverter {
      */
 
     /**
-     * Populates the mediaMetadata property with data for the MEDIA analysis.
+     * Populates the mediaMetadata property of the file with data for the MEDIA analysis.
      * @param f the file that is being analysed
      * @param aKey the key for which we want to get the value
      * @return Value for the passed key, if any. Otherwise, null
      */
-    private String getMediaMetadataValue(File f, String aKey) {
-/*        if (null == mediaMetadata) {
-            // Invoke external program "mediainfo"
-            ProcessBuilder pb = new ProcessBuilder("mediainfo", "-f", f.getAbsolutePath());
-            Process p = null;
+    private String getMediaMetadataValue(MediaFile f, String aKey) {
+        if (null == f.mediaMetadata) {
             try {
-                p = pb.start(); // Execute the program
+                f.mediaMetadata = MovieMetadataReader.read(f.toPath());
             } catch (IOException e) {
                 e.printStackTrace();
+                return null;
             }
-            if (p != null) {
-                try {
-                    p.waitFor(); // Wait for the end of the program
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                // Read the program's stdout (here it is the input stream)
-                mediaMetadata = new BufferedReader(new InputStreamReader(p.getInputStream()));
-                try {
-                    mediaMetadata.mark(4096);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        String lStrKeyValue = null;
-        try {
-            mediaMetadata.reset();
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
         }
-
-        do {
-            try {
-                lStrKeyValue = mediaMetadata.readLine();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            // Stop at the required key
-            if (lStrKeyValue != null && lStrKeyValue.startsWith(aKey)) {
-               break;
-            }
-        } while (lStrKeyValue != null);
-        return null == lStrKeyValue ? null : lStrKeyValue.split(": ")[1].trim(); */
-        return "";
+        return f.mediaMetadata.get(aKey);
     }
 
     /**
@@ -285,7 +1574,7 @@ public class MediaConverter {
      * @param f the file that is being analysed
      * @return the proposed file timestamp or null in case of error
      */
-    private Date getMediaTimeStamp(File f) {
+    private Date getMediaTimeStamp(MediaFile f) {
         // Cycle through all possible keys, break if any of them work
         String lTimestamp = null;
         final String[] possibleKeys = { "Mastered date", "Encoded date" };
@@ -294,17 +1583,12 @@ public class MediaConverter {
                 break;
             }
         }
-
-        // Cycle through all possible timedate encodings, return if any of them work
-        final String[] possibleEncodings = { "EEE MMM dd HH:mm:ss yyyy", "yyyy-MM-dd HH:mm:ss", "ZZZ yyyy-MM-dd HH:mm:ss" };
-        for (String lEncoding : possibleEncodings) {
-            try {
-                return new SimpleDateFormat(lEncoding).parse(lTimestamp);
-            } catch (ParseException e) {
-                // do nothing;
-            }
+        if (null == lTimestamp) {
+            return null;
         }
-        return null;
+
+        // The timedate encoding ("EEE MMM dd HH:mm:ss yyyy", "yyyy-MM-dd HH:mm:ss" or "ZZZ yyyy-MM-dd HH:mm:ss") is chosen by its first characters
+        return NameTransformer.parseMediaTimestamp(lTimestamp);
     }
 
     /**
@@ -317,7 +1601,8 @@ public class MediaConverter {
         int lConfirmResponse;
         String lCameraModelUser;
         do {
-            lCameraModelUser = JOptionPane.showInputDialog("Camera Model for file " + aFileName + " (and similar):", aCameraModel.trim()).trim().toLowerCase().replaceAll("[^\\w]", "_");
+            lCameraModelUser = JOptionPane.showInputDialog("Camera Model for file " + aFileName + " (and similar):", aCameraModel.trim()).trim().toLowerCase();
+            lCameraModelUser = NameTransformer.sanitize(lCameraModelUser, "");
             // Ask user Confirmation
             lConfirmResponse = JOptionPane.showConfirmDialog(null, "Camera Model information for file " + aFileName +
                     " and similar will be \n\t\t\"" + lCameraModelUser + "\"\nConfirm?", "Input Confirmation", JOptionPane.YES_NO_CANCEL_OPTION);
@@ -329,28 +1614,57 @@ public class MediaConverter {
         return lCameraModelUser;
     }
 
+    /**
+     * Returns the name that the user gives to a Camera Model: the name given up front (batch mode) or the name in the
+     * camera registry. Otherwise the user is asked, only once per Camera Model, and the answer is registered.
+     * @param aFileName Name of a media file of that Camera Model
+     * @param aCameraModel Name of the extracted Camera Model
+     * @return the name that the user wants to give to that Camera Model
+     */
+    private String getUserCameraModel(String aFileName, String aCameraModel) {
+        String lCameraModelUser = fCameraModelsUser.get(aCameraModel);
+        if (null != lCameraModelUser) {
+            return lCameraModelUser;
+        }
+        String lKnownCameraModel = getKnownCameraModel(aCameraModel);
+        if (batchMode) {
+            // In batch mode, use the name given up front, the registered name or the default name of the dialog
+            lCameraModelUser = fBatchCameraModels.get(null == lKnownCameraModel ? aCameraModel.trim() : lKnownCameraModel);
+            if (null == lCameraModelUser) {
+                lCameraModelUser = null == lKnownCameraModel ? NameTransformer.sanitize(aCameraModel.trim().toLowerCase(), "") : lKnownCameraModel;
+            }
+            fCameraModelsUser.put(aCameraModel, lCameraModelUser);
+        } else if (null != lKnownCameraModel) {
+            lCameraModelUser = lKnownCameraModel;
+            fCameraModelsUser.put(aCameraModel, lCameraModelUser);
+        } else {
+            synchronized (fUserDialogLock) {
+                lCameraModelUser = fCameraModelsUser.get(aCameraModel);    // Another file may have asked for it meanwhile
+                if (null == lCameraModelUser) {
+                    lCameraModelUser = getUserConfirmationCameraModel(aFileName, aCameraModel);
+                    cameraRegistry.put(aCameraModel, lCameraModelUser);
+                    fCameraModelsUser.put(aCameraModel, lCameraModelUser);
+                }
+            }
+        }
+        return lCameraModelUser;
+    }
+
     /**
      * Returns the camera model of the movie
      * @param f the file that is being analysed
-     * @return the file camera model name
+     * @return the original camera model or null in case of error
      */
-    private String getMediaCameraModel(File f) {
+    private String getMediaCameraModel(MediaFile f) {
         // Cycle through all possible keys, break if any of them work
         String lCameraModel = null;
-        final String[] possibleKeys = { "Writing application", "Title" };
+        final String[] possibleKeys = { "Camera model", "Writing application", "Title" };
         for (String lKey : possibleKeys) {
             if (null != (lCameraModel = getMediaMetadataValue(f, lKey))) {
                 break;
             }
         }
-        // Internal conversion of frequent known formats
-        lCameraModel = getKnownCameraModel(lCameraModel);
-        // Get User confirmation
-        if (!movieCameraModel.equals(lCameraModel)) {    // Compare the current Camera Model with the previous file's (default is @@No Camera Model@@)
-            movieCameraModel = lCameraModel;             // If it is different, ask the user which will be the name the user wants to give to the new Camera Model
-            movieCameraModelUser = getUserConfirmationCameraModel(f.getName(), lCameraModel);
-        }
-        return movieCameraModelUser;
+        return lCameraModel;
     }
 
     /**
@@ -358,14 +1672,20 @@ public class MediaConverter {
      */
 
     /**
-     * Populates the exifMetadata property with data for the EXIF analysis.
+     * Populates the exifMetadata property of the file with data for the EXIF analysis.
      * @param f the file that is being analysed
-     * @return success. if True, then exifMetadata is populated
+     * @return success. if True, then f.exifMetadata is populated
      */
-    private boolean getExifMetadataValue(File f) {
-        if (null == exifMetadata) {
+    boolean getExifMetadataValue(MediaFile f) {
+        if (null == f.exifMetadata) {
             try {
-                exifMetadata = ImageMetadataReader.readMetadata(f);
+                if (FileSystems.getDefault() == f.toPath().getFileSystem()) {
+                    f.exifMetadata = ImageMetadataReader.readMetadata(f);
+                } else {
+                    try (InputStream lStream = Files.newInputStream(f.toPath())) {  // E.g. an entry of a ZIP archive
+                        f.exifMetadata = ImageMetadataReader.readMetadata(new BufferedInputStream(lStream), false);
+                    }
+                }
             } catch (ImageProcessingException e) {
                 e.printStackTrace();
                 return false;
@@ -377,16 +1697,48 @@ public class MediaConverter {
         return true;
     }
 
+    /**
+     * Populates the file with the tags read by the fast path
+     * @param f the file that is being analysed
+     * @param aExif the tags (null if the file does not fit the fast path)
+     * @return success. if True, then f.timestamp and f.cameraModel are populated
+     */
+    private boolean setExifHeader(MediaFile f, ExifHeaderReader.Result aExif) {
+        if (null == aExif) {
+            return false;
+        }
+        f.timestamp = aExif.timestamp;
+        f.cameraModel = aExif.cameraModel;
+        return true;
+    }
+
+    /**
+     * Returns the format of the file, from its first bytes (whatever its extension)
+     * @param f the file that is being analysed
+     * @return the format (UNKNOWN if the file cannot be read)
+     */
+    private MediaFormat getFileFormat(MediaFile f) {
+        if (null == f.format) {
+            try (SeekableByteChannel lChannel = MediaChannels.open(f.toPath())) {
+                f.format = MediaFormat.read(lChannel);
+            } catch (IOException e) {
+                e.printStackTrace();
+                f.format = MediaFormat.UNKNOWN;
+            }
+        }
+        return f.format;
+    }
+
     /**
      * Returns the EXIF timestamp of the photo
      * @param f the file that is being analysed
      * @return the proposed file timestamp or null in case of error
      */
-    private Date getExifTimestamp(File f) {
+    private Date getExifTimestamp(MediaFile f) {
         if (!getExifMetadataValue(f)) return null;      // In case of any EXIF error, return null
 
         // Get Filestamp from EXIF
-        ExifSubIFDDirectory directory = exifMetadata.getDirectory(ExifSubIFDDirectory.class);
+        ExifSubIFDDirectory directory = f.exifMetadata.getDirectory(ExifSubIFDDirectory.class);
         try {
             return directory.getDate(ExifSubIFDDirectory.TAG_DATETIME_ORIGINAL);
         } catch (NullPointerException e) {  // This exception occurs when the photo was modified, hence there is EXIF but no EXIF timestamp
@@ -398,28 +1750,21 @@ public class MediaConverter {
     /**
      * Returns the EXIF camera model of the photo
      * @param f the file that is being analysed
-     * @return the file camera model name
+     * @return the original camera model or null in case of error
      */
-    private String getExifCameraModel(File f) {
-        if (!getExifMetadataValue(f)) return "";      // In case of any EXIF error, return ""
+    private String getExifCameraModel(MediaFile f) {
+        if (!getExifMetadataValue(f)) return null;      // In case of any EXIF error, return null
 
         // Get Camera Model from EXIF
-        ExifIFD0Directory directory = exifMetadata.getDirectory(ExifIFD0Directory.class);
+        ExifIFD0Directory directory = f.exifMetadata.getDirectory(ExifIFD0Directory.class);
         String lCameraModel;
         try {
             lCameraModel = directory.getDescription(ExifIFD0Directory.TAG_MAKE) + " " + directory.getDescription(ExifIFD0Directory.TAG_MODEL);
         } catch (NullPointerException e) {  // This exception occurs when the photo was modified, hence there is EXIF but no EXIF timestamp
             e.printStackTrace();
-            return "";      // In case of any EXIF error, return ""
-        }
-        // Internal conversion of frequent known formats
-        lCameraModel = getKnownCameraModel(lCameraModel);
-        // Get User confirmation
-        if (!exifCameraModel.equals(lCameraModel)) {    // Compare the current Camera Model with the previous file's (default is @@No Camera Model@@)
-            exifCameraModel = lCameraModel;             // If it is different, ask the user which will be the name the user wants to give to the new Camera Model
-            exifCameraModelUser = getUserConfirmationCameraModel(f.getName(), lCameraModel);
+            return null;      // In case of any EXIF error, return null
         }
-        return exifCameraModelUser;
+        return lCameraModel;
     }
 
     /**
@@ -428,18 +1773,36 @@ public class MediaConverter {
      * @return the file extension (with "." included) in lowercase
      */
     private String getFileExtension(File f) {
-        return f.getName().substring(f.getName().lastIndexOf(".")).toLowerCase();
+        return getFileExtension(f.getName());
     }
 
     /**
-     * By default gets the last modified timestamp. If the file has metadata information, returns instead the metadata timestamp of the photo
+     * Returns the file extension
+     * @param aName the name of the file that is being analysed
+     * @return the file extension (with "." included) in lowercase; "" if there is none
+     */
+    private String getFileExtension(String aName) {
+        int lIndexExtension = aName.lastIndexOf('.');
+        return lIndexExtension < 0 ? "" : aName.substring(lIndexExtension).toLowerCase();
+    }
+
+    /**
+     * By default gets the last modified timestamp. If the file has metadata information, returns instead the metadata timestamp of the photo.
+     * A file named with its timestamp by the camera (see FilenameTimestamps) gets the timestamp of its name, without reading the file.
      * @param f the file that is being analysed
      * @return the proposed file timestamp
      */
-    private String getFileTimestamp(File f) {
-        Date lTimeStamp;
-        String lFileExtension = getFileExtension(f);
-        lTimeStamp = ArrayUtils.contains(fPhotoExtensions, lFileExtension) ? getExifTimestamp(f) : getMediaTimeStamp(f);
+    private String getFileTimestamp(MediaFile f) {
+        // Not for the names already converted: those are checked against the metadata (see verifyFile)
+        if (null != filenameTimestamps && !isFileAlreadyHandled(f.getName())) {
+            Date lTimeStamp = filenameTimestamps.getTimestamp(f.getName(), f.lastModified());
+            if (null != lTimeStamp) {
+                metrics.nameTimestamp();
+                return NameTransformer.formatTimestamp(lTimeStamp);
+            }
+        }
+        readFileMetadata(f);
+        Date lTimeStamp = f.timestamp;
         if (null == lTimeStamp) {
             // Get Filestamp from File Last Modified
             lTimeStamp = new Date(f.lastModified());
@@ -448,7 +1811,7 @@ public class MediaConverter {
             // @Temporary Fix: If there is need to change the timestamp (due to change of timezone or camera time not correct), change here with an offset
             // lTimeStamp = DateUtils.addMinutes(lTimeStamp, -67);
 
-        return new SimpleDateFormat("yyyyMMdd_HHmmss").format(lTimeStamp);
+        return NameTransformer.formatTimestamp(lTimeStamp);
     }
 
     /**
@@ -456,23 +1819,90 @@ public class MediaConverter {
      * @param f the file that is being analysed
      * @return the camera model name
      */
-    private String getFileCameraModel(File f) {
-        return ArrayUtils.contains(fPhotoExtensions, getFileExtension(f)) ? getExifCameraModel(f) : getMediaCameraModel(f);
+    private String getFileCameraModel(MediaFile f) {
+        readFileMetadata(f);
+        if (null == f.cameraModel) return "";   // In case of any metadata error, return ""
+        // Registered name, or User confirmation (only the first time this Camera Model is found)
+        return getUserCameraModel(f.getName(), f.cameraModel);
+    }
+
+    /**
+     * Reads the timestamp and the original camera model of the file, from the metadata cache if the file did not
+     * change since it was cached, or otherwise from the file itself. The file is opened once: its first bytes give its
+     * format (see MediaFormat), whatever its extension, and the reader of that format reads the metadata from the same
+     * channel (the EXIF header for JPEG, TIFF based, HEIF and CR3 photos, the full EXIF parse for the other photos, the media
+     * metadata for movies). The files of no known format are not read any further.
+     * @param f the file that is being analysed; its timestamp and cameraModel properties are populated
+     */
+    void readFileMetadata(MediaFile f) {
+        if (f.metadataRead) return;
+        if (null != metadataCache && metadataCache.get(f)) {
+            metrics.metadataCacheHit();
+        } else {
+            long lStart = System.nanoTime();
+            MediaFormat lFormat = MediaFormat.UNKNOWN;
+            boolean lExifHeaderRead = false;
+            try (SeekableByteChannel lChannel = MediaChannels.open(f.toPath())) {
+                lFormat = MediaFormat.read(lChannel);
+                if (lFormat.hasExifHeader()) {
+                    lExifHeaderRead = setExifHeader(f, ExifHeaderReader.read(lChannel, lFormat));
+                } else if (lFormat.isMovie()) {
+                    f.mediaMetadata = MovieMetadataReader.read(lChannel, lFormat);
+                }
+            } catch (IOException e) {
+                if (!lFormat.hasFullExif()) {
+                    e.printStackTrace();    // Otherwise the full EXIF parse will report the error
+                }
+            }
+            f.format = lFormat;
+            if (!lExifHeaderRead && lFormat.hasFullExif()) {
+                f.timestamp = getExifTimestamp(f);
+                f.cameraModel = getExifCameraModel(f);
+            } else if (lFormat.isMovie() && null != f.mediaMetadata) {
+                f.timestamp = getMediaTimeStamp(f);
+                f.cameraModel = getMediaCameraModel(f);
+            }
+            metrics.record(RunMetrics.Stage.METADATA, lStart);
+            metrics.fileAnalysed(null != f.exifMetadata ? f.length() : 0);   // The full EXIF parse reads the whole file
+            if (lFormat.isPhoto() && (null == f.timestamp || null == f.cameraModel)) {
+                metrics.exifFailure();  // Unreadable EXIF, or no EXIF timestamp/camera model (e.g. modified photo)
+            }
+            if (null != metadataCache) {
+                metadataCache.put(f);
+            }
+        }
+        if (null == f.timestamp && null != f.companions) {
+            readCompanionMetadata(f);
+        }
+        f.metadataRead = true;
+    }
+
+    /**
+     * Reads the timestamp and the original camera model of a file without them (e.g. a movie) from its THM companion,
+     * which is a JPEG with EXIF
+     * @param f the file that is being analysed; its timestamp and cameraModel properties are populated
+     */
+    private void readCompanionMetadata(MediaFile f) {
+        for (MediaFile lCompanion : f.companions) {
+            if (".thm".equals(getFileExtension(lCompanion))) {
+                readFileMetadata(lCompanion);
+                if (null != lCompanion.timestamp) {
+                    f.timestamp = lCompanion.timestamp;
+                    f.cameraModel = null == f.cameraModel ? lCompanion.cameraModel : f.cameraModel;
+                    return;
+                }
+            }
+        }
     }
 
     /**
      * Checks whether the file can be renamed (if file has not yet been processed)
-     * @param f the file that is being analysed
+     * @param aName the name of the file that is being analysed
      * @return true if file needs to be processed
      */
-    private boolean isFileAlreadyHandled(File f) {
-            // @Temporary Fix: To avoid multiple interactions with the user when there are multiple files like "*.thm", use this, and then run again removing the comments
-            //   if (f.getName().toLowerCase().endsWith(".thm")) {
-            //      return true;
-            //   }
-
+    private boolean isFileAlreadyHandled(String aName) {
         // Avoid processing already processed files: Accept all names that do not start by "my" timestamp
-        return f.getName().matches("^(19|20)\\d\\d(0[1-9]|1[012])(0[1-9]|[12][0-9]|3[01])_([01][0-9]|2[0-3])[0-5][0-9][0-5][0-9]-.*");
+        return NameTransformer.hasTimestampPrefix(aName);
     }
 
     /**
@@ -480,7 +1910,7 @@ public class MediaConverter {
      * @param f the file that is being analysed
      * @return "" if a problem occurred (e.g., the file already has the new format); the new prefix name otherwise.
      */
-    private String getFilePrefix_TimestampCamera(File f) {
+    private String getFilePrefix_TimestampCamera(MediaFile f) {
         String lFilePrefix = getFileTimestamp(f);
         if (lFilePrefix.isEmpty()) return "";
         String lCameraModel = getFileCameraModel(f);
@@ -488,53 +1918,33 @@ public class MediaConverter {
     }
 
     /**
-     * Gets the new Filename path for media taken on: All Samsung Phones except Ace (change the lStaticInfo)
+     * Gets the new Filename for media taken on: All Samsung Phones except Ace (change the lStaticInfo)
      * @param f the file that is being analysed
-     * @return "" if the file does not need renaming; the new name otherwise.
+     * @param aName the name of the file, as given by the previous converters
+     * @return "" if the file does not need renaming; the new name (without folder) otherwise.
      */
-    private String getNewFilePath_samsung(File f) {
-        if (isFileAlreadyHandled(f)) return "";
+    private String getNewFilePath_samsung(MediaFile f, String aName) {
+        if (isFileAlreadyHandled(aName)) return "";
         // If the file has any prefix, store it
-        String lPrefix = "-" + f.getName().split("_")[0];
-        if (lPrefix.matches("^-(19|20)\\d\\d(0[1-9]|1[012])(0[1-9]|[12][0-9]|3[01])")) {
+        int lIndexPrefixEnd = aName.indexOf('_');
+        String lPrefix = "-" + (lIndexPrefixEnd < 0 ? aName : aName.substring(0, lIndexPrefixEnd));
+        if (NameTransformer.isDate(lPrefix.substring(1))) {
             lPrefix = "";
         }
-        String lTimestamp = f.getName().substring(lPrefix.length(), lPrefix.length() + 15);   // It is better to use the timestamp on the filename than to get it from Exif
-        String lNewFilePath = lTimestamp + "-" + getFileCameraModel(f) + lPrefix.toLowerCase() + getFileExtension(f);
-
-        // Add folder (in this case it is the same)
-        lNewFilePath = f.getParent() + File.separator + lNewFilePath;
-        return lNewFilePath;
+        String lTimestamp = aName.substring(lPrefix.length(), lPrefix.length() + 15);   // It is better to use the timestamp on the filename than to get it from Exif
+        return lTimestamp + "-" + getFileCameraModel(f) + lPrefix.toLowerCase() + getFileExtension(aName);
     }
 
     /**
-     * Gets the new Filename path for media taken on: All Samsung Phones except Ace (change the lStaticInfo)
-     * @param f the file that is being analysed
-     * @return "" if the file does not need renaming; the new name otherwise.
+     * Gets the new Filename for files named with the bulk replacement prefix, from the bulk replacement file
+     * @param aName the name of the file, as given by the previous converters
+     * @return "" if the file does not need renaming; the new name (without folder) otherwise.
      */
-    private String getNewFilePath_bulkrename(File f) {
-        if (f.getName().startsWith(bulkReplacementPrefix)) {
-            String lNameWithoutPrefix = f.getName();
-            lNameWithoutPrefix = lNameWithoutPrefix.substring(bulkReplacementPrefix.length());
-            try {
-                File fRename = new File(bulkReplacementFilename);
-                Scanner myReader = new Scanner(fRename);
-                while (myReader.hasNextLine()) {
-                    String[] data = myReader.nextLine().split("\t");
-                    String oldName = data[0] + ".pdf";
-                    if (oldName.equals(lNameWithoutPrefix)) {
-                        String[] studentNames = data[2].split(" ");
-                        String unaccentedName = studentNames[0] + studentNames[studentNames.length-1];
-                        unaccentedName = Normalizer.normalize(unaccentedName, Normalizer.Form.NFD);
-                        unaccentedName = unaccentedName.replaceAll("[\\p{InCombiningDiacriticalMarks}]", "");
-                        String newName = data[1] + "-" + unaccentedName + "-so-2023-teste-epoca-2.pdf";
-                        return f.getParent() + File.separator + newName;
-                    }
-                }
-                myReader.close();
-            } catch (FileNotFoundException e) {
-                System.out.println("An error occurred.");
-                e.printStackTrace();
+    private String getNewFilePath_bulkrename(String aName) {
+        if (aName.startsWith(bulkReplacementPrefix)) {
+            String lNewName = bulkReplacementIndex.get(aName.substring(bulkReplacementPrefix.length()));
+            if (null != lNewName) {
+                return lNewName;
             }
         }
         return "";
@@ -564,21 +1974,28 @@ public class MediaConverter {
     /**
      * Verifies if the file has the correct name according to its timestamp (coming from EXIF or other).
      * @param f the file that is being analysed
-     * @return "" if the file does not need renaming; the new name otherwise.
+     * @param aName the name of the file
+     * @return "" if the file does not need renaming; the new name (without folder) otherwise.
      */
-    private String verifyFile(File f) {
-        String lFilenameTimeStamp = f.getName().substring(0, 15);
-        final String lStaticInfo = f.getName().substring(15);
+    private String verifyFile(MediaFile f, String aName) {
+        String lFilenameTimeStamp = aName.substring(0, 15);
+        final String lStaticInfo = aName.substring(15);
         String lNewFilePath = getFileTimestamp(f) + lStaticInfo;
         if (!lFilenameTimeStamp.substring(0, 9).equals(lNewFilePath.substring(0, 9))) {
-            int lConfirmationResult = JOptionPane.showConfirmDialog(null, "We found a discrepancy in the following file:\n\nThe media file:  " + f.getName() + "\nshould be named: " + lNewFilePath + "\n\n", "Input Confirmation", JOptionPane.YES_NO_CANCEL_OPTION);
+            if (batchMode) {
+                // In batch mode, the discrepancy is only reported (the file is not renamed)
+                verificationReport.println(f.getAbsolutePath() + "\t" + lNewFilePath);
+                return "";
+            }
+            int lConfirmationResult;
+            synchronized (fUserDialogLock) {    // One discrepancy dialog at a time
+                lConfirmationResult = JOptionPane.showConfirmDialog(null, "We found a discrepancy in the following file:\n\nThe media file:  " + aName + "\nshould be named: " + lNewFilePath + "\n\n", "Input Confirmation", JOptionPane.YES_NO_CANCEL_OPTION);
+            }
             if (JOptionPane.CANCEL_OPTION == lConfirmationResult) {
                 System.out.println("Verification Cancelled.");
                 System.exit(0);
             }
             else if (JOptionPane.YES_OPTION == lConfirmationResult) {
-                // Add folder (in this case it is the same)
-                lNewFilePath = f.getParent() + File.separator + lNewFilePath;
                 return lNewFilePath;
             }
         }
@@ -586,15 +2003,16 @@ public class MediaConverter {
     }
 
     /**
-     * Gets the new Filename path for media taken on any source, prefixing it with Timestamp and Camera Model
+     * Gets the new Filename for media taken on any source, prefixing it with Timestamp and Camera Model
      * @param f the file that is being analysed
-     * @return "" if the file does not need renaming; the new name otherwise.
+     * @param aName the name of the file, as given by the previous converters
+     * @return "" if the file does not need renaming; the new name (without folder) otherwise.
      */
-    private String getNewFilePath_AddPrefixTimestampCamera(File f) {
-        if (isFileAlreadyHandled(f)) return ""; // This check is to avoid reprocessing files already handled
+    private String getNewFilePath_AddPrefixTimestampCamera(MediaFile f, String aName) {
+        if (isFileAlreadyHandled(aName)) return ""; // This check is to avoid reprocessing files already handled
         String lNewFilePath = getFilePrefix_TimestampCamera(f);
         if (lNewFilePath.isEmpty()) return "";
-        String lOldName = f.getName().toLowerCase().replaceAll("[^\\w.]", "_");
+        String lOldName = NameTransformer.sanitize(aName.toLowerCase(), ".");
 
         /*  // @TODO Uncomment this code to change the photo numbering
             int lIdxNumberStt = lOldName.indexOf("_") + 1;  // File names are typically "text_123[_1].extension"
@@ -612,68 +2030,68 @@ public class MediaConverter {
             }
         */
 
-        lNewFilePath += "-" + lOldName;
-
-        // Add folder (in this case it is the same)
-        lNewFilePath = f.getParent() + File.separator + lNewFilePath;
-        return lNewFilePath;
+        return lNewFilePath + "-" + lOldName;
     }
 
     /**
-     * Gets the new Filename path for media, removing the input Regex and prefixing it with Timestamp and Camera Model
+     * Gets the new Filename for media, removing the input Regex and prefixing it with Timestamp and Camera Model
      * @param f the file that is being analysed
-     * @return "" if the file does not need renaming; the new name otherwise.
+     * @param aName the name of the file, as given by the previous converters
+     * @return "" if the file does not need renaming; the new name (without folder) otherwise.
      * Example: To change the photo time, call this with Regex: "^(19|20)\d\d(0[1-9]|1[012])(0[1-9]|[12][0-9]|3[01])_([01][0-9]|2[0-3])[0-5][0-9][0-5][0-9]-canon_ixus70_101-"
      */
-    private String getNewFilePath_RemoveRegexAddPrefixTimestampCamera(File f) {
-            // @Temporary Fix: To avoid multiple interactions with the user when there are multiple files like "*.thm", use this, and then run again removing the comments
-            //   if (f.getName().toLowerCase().endsWith(".thm")) {
-            //      return "";
-            //   }
-
-        String lOldFilename = f.getName().toLowerCase().replaceAll(replaceRegex, "");
-        if (f.getName().toLowerCase().equals(lOldFilename)) return "";    // If Regex not found, do not rename file
+    private String getNewFilePath_RemoveRegexAddPrefixTimestampCamera(MediaFile f, String aName) {
+        String lOldFilename = nameTransformer.removeRegex(aName.toLowerCase());
+        if (aName.toLowerCase().equals(lOldFilename)) return "";    // If Regex not found, do not rename file
         String lNewFilePath = getFilePrefix_TimestampCamera(f);
         if (lNewFilePath.isEmpty()) return "";
-        lNewFilePath += (lOldFilename.startsWith(".") || lOldFilename.startsWith("-") || lOldFilename.startsWith("_") ? "" : "-") + lOldFilename.replaceAll("[^\\w.]", "_");
-
-        // Add folder (in this case it is the same)
-        lNewFilePath = f.getParent() + File.separator + lNewFilePath;
-        return lNewFilePath;
+        return lNewFilePath + (lOldFilename.startsWith(".") || lOldFilename.startsWith("-") || lOldFilename.startsWith("_") ? "" : "-") + NameTransformer.sanitize(lOldFilename, ".");
     }
 
     /**
-     * Gets the new Filename path for media, replacing the input Regex by a user fixed text
-     * @param f the file that is being analysed
-     * @return "" if the file does not need renaming; the new name otherwise.
+     * Gets the new Filename for media, replacing the input Regex by a user fixed text
+     * @param aName the name of the file, as given by the previous converters
+     * @return "" if the file does not need renaming; the new name (without folder) otherwise.
      */
-    private String getNewFilePath_ReplaceRegexByUserText(File f) {
-        String lNewFilePath = f.getName().toLowerCase().replaceAll(replaceRegex, replacementUserText).replaceAll("[^\\w._-]", "_");
-        if (f.getName().toLowerCase().equals(lNewFilePath)) return "";    // If Regex not found, do not rename file
-
-        // Add folder (in this case it is the same)
-        lNewFilePath = f.getParent() + File.separator + lNewFilePath;
+    private String getNewFilePath_ReplaceRegexByUserText(String aName) {
+        String lNewFilePath = NameTransformer.sanitize(nameTransformer.replaceRegex(aName.toLowerCase()), "._-");
+        if (aName.toLowerCase().equals(lNewFilePath)) return "";    // If Regex not found, do not rename file
         return lNewFilePath;
     }
 
     /**
-     * Gets the new Filename path for media, updating the existing file timestamp by adding minutes to that timestamp
+     * Gets the new Filename for media, updating the existing file timestamp by adding minutes to that timestamp
      * @param f the file that is being analysed
-     * @return "" if the file does not need renaming; the new name otherwise.
+     * @param aName the name of the file, as given by the previous converters
+     * @return "" if the file does not need renaming; the new name (without folder) otherwise.
      */
-    private String getNewFilePath_UpdatePrefixTimeAddMinutes(File f) {
-        String lFilenameTimeStamp = f.getName().substring(0, 15);
-        Date lFilenameTimestamp;
-        try {
-            lFilenameTimestamp = new SimpleDateFormat("yyyyMMdd_HHmmss").parse(lFilenameTimeStamp);
-        } catch (ParseException e) {
+    private String getNewFilePath_UpdatePrefixTimeAddMinutes(MediaFile f, String aName) {
+        String lFilenameTimestamp = NameTransformer.addMinutes(aName, minutesToBeAdded);
+        if (null == lFilenameTimestamp) {
             return "";
         }
-        lFilenameTimestamp = DateUtils.addMinutes(lFilenameTimestamp, minutesToBeAdded);
-        String lNewFilePath = new SimpleDateFormat("yyyyMMdd_HHmmss").format(lFilenameTimestamp) + f.getName().toLowerCase().substring(15).replaceAll("[^\\w._-]", "_");
+        if (shiftExifTimestamp && getFileFormat(f).hasExifHeader()) {
+            planExifTimestampShift(f);
+        }
+        return lFilenameTimestamp + NameTransformer.sanitize(aName.toLowerCase().substring(15), "._-");
+    }
 
-        // Add folder (in this case it is the same)
-        lNewFilePath = f.getParent() + File.separator + lNewFilePath;
-        return lNewFilePath;
+    /**
+     * Finds the EXIF DateTimeOriginal of a photo, and computes it shifted by minutesToBeAdded. It is rewritten in
+     * place when the plan is applied (see ExifTimestampWriter).
+     * @param f the file that is being analysed; its exifTimestamp and newExifTimestamp properties are populated
+     */
+    private void planExifTimestampShift(MediaFile f) {
+        try {
+            ExifHeaderReader.Result lExif = ExifHeaderReader.read(f.toPath());
+            if (null == lExif || lExif.dateTimeOriginalPosition < 0) {
+                System.out.println("Shift EXIF timestamp: " + f.getAbsolutePath() + ": No EXIF timestamp found");
+                return;
+            }
+            f.newExifTimestamp = ExifTimestampWriter.addMinutes(lExif.dateTimeOriginal, minutesToBeAdded);
+            f.exifTimestamp = null == f.newExifTimestamp ? null : lExif.dateTimeOriginal;
+        } catch (IOException e) {
+            System.out.println("Shift EXIF timestamp: " + f.getAbsolutePath() + ": Error in read (" + e + ")");
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,68 @@
+package pt.cackossoft;
+
+import com.drew.metadata.Metadata;
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Processing context of a single media file.
+ * Everything that is read from the file while it is being analysed lives here, so that several files can be analysed
+ * at the same time (each by its own thread) without sharing any state.
+ */
+@SuppressWarnings("serial")     // Never serialized (it only extends File to be passed to the java.io.File based APIs)
+class MediaFile extends File {
+    Metadata exifMetadata;          // Exif Metadata for this photo (read on first use).
+    Map<String, String> mediaMetadata;  // Media Metadata for this file, by mediainfo key (read on first use).
+    boolean metadataRead;           // Whether timestamp and cameraModel were already read (from the file or the cache)
+    MediaFormat format;             // Container format, from the first bytes of the file (read on first use)
+    Date timestamp;                 // Capture timestamp from the metadata (null if none)
+    String cameraModel;             // Original camera model from the metadata (null if none)
+    List<MediaFile> companions;     // Sidecar files renamed with this file (null if none, see MediaGroups)
+    String exifTimestamp;           // EXIF DateTimeOriginal to be rewritten when renamed (null if it is not)
+    String newExifTimestamp;        // Its new value
+    private final Path fPath;       // The file (of the default filesystem, or e.g. an entry of a ZIP archive)
+    private final BasicFileAttributes fAttributes;  // Attributes read when the file was listed (avoids one stat per query)
+
+    /**
+     * Creates the processing context for a file
+     * @param aPath the absolute path of the file that is going to be analysed (of any filesystem; only the name is
+     *              meaningful to the java.io.File methods if it is not the default one)
+     * @param aAttributes the file attributes, as read when the folder was listed
+     */
+    MediaFile(Path aPath, BasicFileAttributes aAttributes) {
+        super(aPath.toString());
+        fPath = aPath;
+        fAttributes = aAttributes;
+    }
+
+    @Override
+    public Path toPath() {
+        return fPath;
+    }
+
+    /**
+     * @return the file attributes, as read when the folder was listed
+     */
+    BasicFileAttributes getAttributes() {
+        return fAttributes;
+    }
+
+    @Override
+    public boolean isFile() {
+        return fAttributes.isRegularFile();
+    }
+
+    @Override
+    public long lastModified() {
+        return fAttributes.lastModifiedTime().toMillis();
+    }
+
+    @Override
+    public long length() {
+        return fAttributes.size();
+    }
+}
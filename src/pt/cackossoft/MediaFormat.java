@@ -0,0 +1,114 @@
+package pt.cackossoft;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Container format of a media file, identified by its first bytes (its magic number) instead of by its extension, so
+ * that any extension (.jpeg, .heic, .mp4, .cr2, .cr3, .nef, ...) and misnamed files go to the metadata reader of their format,
+ * and the files of no known format are not read at all.
+ */
+enum MediaFormat {
+    JPEG,       // Also the THM thumbnails of the movies
+    TIFF,       // Also the RAW formats based on it (CR2, NEF, ARW, DNG, ORF, RW2, ...)
+    HEIF,       // ISO BMFF with an image brand (HEIC, AVIF)
+    CR3,        // ISO BMFF with the Canon RAW brand: a photo, whose EXIF is in the Canon uuid box of its moov box
+    ISO_BMFF,   // MP4, MOV (QuickTime), 3GP
+    AVI,        // RIFF AVI
+    PNG,
+    GIF,
+    UNKNOWN;
+
+    private static final int HEADER_LENGTH = 12;
+    // Major brands of the ISO BMFF images (the others, except CR3_BRAND, are movies)
+    private static final String[] HEIF_BRANDS = { "heic", "heix", "heim", "heis", "hevc", "hevx", "mif1", "msf1", "avif", "avis" };
+    private static final String CR3_BRAND = "crx ";
+    // Types of the first box of the QuickTime files without "ftyp"
+    private static final String[] QUICKTIME_BOXES = { "moov", "mdat", "wide", "free", "skip", "pnot" };
+
+    /**
+     * Identifies the format of a file by its first bytes
+     * @param aChannel the file (read from its start)
+     * @return the format (UNKNOWN if none of the above)
+     * @throws IOException if the file cannot be read
+     */
+    static MediaFormat read(SeekableByteChannel aChannel) throws IOException {
+        ByteBuffer lHeader = MediaChannels.readFully(aChannel, 0, (int) Math.min(HEADER_LENGTH, aChannel.size()));
+        if (null == lHeader || lHeader.limit() < 4) {
+            return UNKNOWN;
+        }
+        int b0 = lHeader.get(0) & 0xFF;
+        int b1 = lHeader.get(1) & 0xFF;
+        int b2 = lHeader.get(2) & 0xFF;
+        int b3 = lHeader.get(3) & 0xFF;
+        if (b0 == 0xFF && b1 == 0xD8 && b2 == 0xFF) {
+            return JPEG;
+        }
+        if ((b0 == 'I' && b1 == 'I' && ((b2 == 0x2A && b3 == 0) || (b2 == 'R' && (b3 == 'O' || b3 == 'S')) || (b2 == 0x55 && b3 == 0)))
+                || (b0 == 'M' && b1 == 'M' && b2 == 0 && b3 == 0x2A)) {
+            return TIFF;
+        }
+        if (b0 == 0x89 && b1 == 'P' && b2 == 'N' && b3 == 'G') {
+            return PNG;
+        }
+        if (b0 == 'G' && b1 == 'I' && b2 == 'F' && b3 == '8') {
+            return GIF;
+        }
+        if (lHeader.limit() < HEADER_LENGTH) {
+            return UNKNOWN;
+        }
+        String lType = getType(lHeader, 4);
+        if ("RIFF".equals(getType(lHeader, 0)) && "AVI ".equals(getType(lHeader, 8))) {
+            return AVI;
+        }
+        if ("ftyp".equals(lType)) {
+            String lBrand = getType(lHeader, 8);
+            for (String lHeifBrand : HEIF_BRANDS) {
+                if (lHeifBrand.equals(lBrand)) {
+                    return HEIF;
+                }
+            }
+            return CR3_BRAND.equals(lBrand) ? CR3 : ISO_BMFF;
+        }
+        for (String lBox : QUICKTIME_BOXES) {
+            if (lBox.equals(lType)) {
+                return ISO_BMFF;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * @return whether the files of this format are photos (their metadata is EXIF)
+     */
+    boolean isPhoto() {
+        return JPEG == this || TIFF == this || HEIF == this || CR3 == this || PNG == this || GIF == this;
+    }
+
+    /**
+     * @return whether ExifHeaderReader reads the files of this format (otherwise metadata-extractor parses the photos)
+     */
+    boolean hasExifHeader() {
+        return JPEG == this || TIFF == this || HEIF == this || CR3 == this;
+    }
+
+    /**
+     * @return whether metadata-extractor parses the photos of this format, when ExifHeaderReader cannot
+     */
+    boolean hasFullExif() {
+        return JPEG == this || TIFF == this || PNG == this || GIF == this;
+    }
+
+    /**
+     * @return whether the files of this format are movies (read by MovieMetadataReader)
+     */
+    boolean isMovie() {
+        return ISO_BMFF == this || AVI == this;
+    }
+
+    private static String getType(ByteBuffer aBuffer, int aPosition) {
+        return new String(aBuffer.array(), aPosition, 4, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,177 @@
+package pt.cackossoft;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Groups the files of a folder into media groups: a primary file (photo, movie, RAW, ...) with its companions, the
+ * sidecar files with the same base name ("MVI_0001.AVI" with "MVI_0001.THM", "IMG_0001.CR2" with "IMG_0001.xmp" or
+ * "IMG_0001.CR2.xmp", "IMG_0001.HEIC" with "IMG_0001.AAE"). Only the primary file is analysed: its companions are renamed
+ * with it, to the same new name (with their own extension). A sidecar file without a primary file is a group of its own.
+ * The files of a folder sorted in NAME_ORDER are grouped without any map: the files of a group all start with the same
+ * base name (in any case), so they are neighbours in that order, and are found by a binary search. The rule (see
+ * getPrimary) is the same whether the files are walked (FolderWalker) or given (group).
+ */
+class MediaGroups {
+    private static final String[] SIDECAR_EXTENSIONS = { ".thm", ".xmp", ".aae" };
+
+    // Order of the names of a folder: in any case, then (for names that only differ in case) by their characters
+    static final Comparator<String> NAME_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String aName1, String aName2) {
+            int lCompare = String.CASE_INSENSITIVE_ORDER.compare(aName1, aName2);
+            return 0 != lCompare ? lCompare : aName1.compareTo(aName2);
+        }
+    };
+
+    // Order of the files of a folder: by name, in NAME_ORDER
+    private static final Comparator<MediaFile> FILE_ORDER = new Comparator<MediaFile>() {
+        @Override
+        public int compare(MediaFile aFile1, MediaFile aFile2) {
+            return NAME_ORDER.compare(aFile1.getName(), aFile2.getName());
+        }
+    };
+
+    private MediaGroups() {
+    }
+
+    /**
+     * Groups the files of a folder, setting the companions of each primary file. The files are sorted in NAME_ORDER,
+     * and each one is grouped with the primary file found by getPrimary, as FolderWalker does with the files it lists.
+     * @param aFiles the files of a folder
+     * @return the primary files (and the sidecar files without a primary file), in the order of aFiles
+     */
+    static List<MediaFile> group(List<MediaFile> aFiles) {
+        MediaFile[] lFiles = aFiles.toArray(new MediaFile[aFiles.size()]);
+        Arrays.sort(lFiles, FILE_ORDER);
+        String[] lNames = new String[lFiles.length];
+        for (int i = 0; i < lFiles.length; ++i) {
+            lNames[i] = lFiles[i].getName();
+        }
+        Set<MediaFile> lCompanions = new HashSet<>();
+        for (int i = 0; i < lFiles.length; ++i) {
+            int lPrimary = getPrimary(lNames, i);
+            if (lPrimary >= 0) {
+                if (null == lFiles[lPrimary].companions) {
+                    lFiles[lPrimary].companions = new ArrayList<>();
+                }
+                lFiles[lPrimary].companions.add(lFiles[i]);
+                lCompanions.add(lFiles[i]);
+            }
+        }
+        List<MediaFile> lGroups = new ArrayList<>();
+        for (MediaFile f : aFiles) {
+            if (!lCompanions.contains(f)) {
+                lGroups.add(f);
+            }
+        }
+        return lGroups;
+    }
+
+    /**
+     * Finds the primary file of a sidecar file, among the files of its folder: the (first) file named as its base name,
+     * or else the first file with the same base name (e.g. "IMG_0001.CR2" for "IMG_0001.CR2.xmp", "MVI_0001.AVI" for
+     * "MVI_0001.THM")
+     * @param aNames the names of the files of a folder, sorted in NAME_ORDER
+     * @param aIndex the index of a file in aNames
+     * @return the index of its primary file, or -1 if it is not a sidecar file, or has no primary file
+     */
+    static int getPrimary(String[] aNames, int aIndex) {
+        if (!isSidecar(aNames[aIndex])) {
+            return -1;
+        }
+        String lBaseName = getBaseName(aNames[aIndex]);
+        for (int i = findFirst(aNames, lBaseName); i < aNames.length && aNames[i].equalsIgnoreCase(lBaseName); ++i) {
+            if (!isSidecar(aNames[i])) {
+                return i;
+            }
+        }
+        String lPrefix = lBaseName + ".";
+        for (int i = findFirst(aNames, lPrefix); i < aNames.length && aNames[i].regionMatches(true, 0, lPrefix, 0, lPrefix.length()); ++i) {
+            if (!isSidecar(aNames[i]) && getBaseName(aNames[i]).equalsIgnoreCase(lBaseName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the companions of a primary file, among the files of its folder
+     * @param aNames the names of the files of a folder, sorted in NAME_ORDER
+     * @param aIndex the index of a primary file in aNames
+     * @return the indexes of its companions, in order (empty if none)
+     */
+    static List<Integer> getCompanions(String[] aNames, int aIndex) {
+        List<Integer> lCompanions = new ArrayList<>();
+        // All its sidecar files start with its base name and "." (those named after its whole name, too)
+        String lPrefix = getBaseName(aNames[aIndex]) + ".";
+        for (int i = findFirst(aNames, lPrefix); i < aNames.length && aNames[i].regionMatches(true, 0, lPrefix, 0, lPrefix.length()); ++i) {
+            if (aIndex == getPrimary(aNames, i)) {
+                lCompanions.add(i);
+            }
+        }
+        return lCompanions;
+    }
+
+    /**
+     * @param aNames names sorted in NAME_ORDER
+     * @param aPrefix a name (or the start of one)
+     * @return the index of the first name not before aPrefix in any case (aNames.length if none)
+     */
+    private static int findFirst(String[] aNames, String aPrefix) {
+        int lLow = 0;
+        int lHigh = aNames.length;
+        while (lLow < lHigh) {
+            int lMiddle = (lLow + lHigh) >>> 1;
+            if (String.CASE_INSENSITIVE_ORDER.compare(aNames[lMiddle], aPrefix) < 0) {
+                lLow = lMiddle + 1;
+            } else {
+                lHigh = lMiddle;
+            }
+        }
+        return lLow;
+    }
+
+    /**
+     * Returns the new name of a companion, following the new name of its primary file
+     * @param aCompanion the companion
+     * @param aPrimary its primary file
+     * @param aPrimaryTarget the new name of the primary file
+     * @return the new name of the companion: the new name of the primary file with the extension of the companion
+     *         (added to it, if the companion name includes the extension of the primary file)
+     */
+    static Path getCompanionTarget(MediaFile aCompanion, MediaFile aPrimary, Path aPrimaryTarget) {
+        String lName = aCompanion.getName();
+        String lExtension = lName.substring(lName.lastIndexOf('.')).toLowerCase(Locale.ROOT);
+        String lTargetName = aPrimaryTarget.getFileName().toString();
+        if (getBaseName(lName).equalsIgnoreCase(aPrimary.getName())) {
+            return aPrimaryTarget.resolveSibling(lTargetName + lExtension);
+        }
+        return aPrimaryTarget.resolveSibling(getBaseName(lTargetName) + lExtension);
+    }
+
+    /**
+     * @param aName a file name
+     * @return true if the file is a sidecar file (by its extension)
+     */
+    static boolean isSidecar(String aName) {
+        String lName = aName.toLowerCase(Locale.ROOT);
+        for (String lExtension : SIDECAR_EXTENSIONS) {
+            if (lName.endsWith(lExtension) && lName.length() > lExtension.length()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String getBaseName(String aName) {
+        int lIndexExtension = aName.lastIndexOf('.');
+        return lIndexExtension <= 0 ? aName : aName.substring(0, lIndexExtension);
+    }
+}
@@ -0,0 +1,293 @@
+package pt.cackossoft;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistent cache of the metadata read from the media files (capture timestamp and original camera model), so that
+ * a rerun over the same files does not need to open them again.
+ * Entries are keyed by absolute path, and are only valid while the file keeps the same size and last modified time.
+ * Only the entries of the folder being converted are loaded. When saving, the cache file is merged with the entries
+ * written meanwhile by other processes (under a lock file) and atomically replaced. Entries that were not used for a
+ * long time are evicted if their file is gone; entries of the converted folder whose file was not found in a complete
+ * run are evicted at once.
+ * The file is a sequence of binary records: (1, path, size, last modified, timestamp, has camera, [camera], last used),
+ * ended by 0. All methods are thread-safe.
+ */
+class MetadataCache {
+    private static final int MAGIC = 0x4D434D43;    // "MCMC"
+    private static final int VERSION = 1;
+    private static final long NO_TIMESTAMP = Long.MIN_VALUE;
+    private static final long STALE_AGE = 180L * 24 * 60 * 60 * 1000;    // Unused entries are checked after 180 days
+
+    /**
+     * Cached metadata of a file
+     */
+    private static final class Entry {
+        final String path;
+        final long size;
+        final long lastModified;
+        final long timestamp;       // Capture timestamp (NO_TIMESTAMP if none)
+        final String cameraModel;   // Original camera model (null if none)
+        long lastUsed;
+
+        Entry(String aPath, long aSize, long aLastModified, long aTimestamp, String aCameraModel, long aLastUsed) {
+            path = aPath;
+            size = aSize;
+            lastModified = aLastModified;
+            timestamp = aTimestamp;
+            cameraModel = aCameraModel;
+            lastUsed = aLastUsed;
+        }
+    }
+
+    private final Path fCacheFile;
+    private final Path fLockFile;
+    private final String fFolder;           // Folder being converted (with a trailing separator)
+    private final boolean fRecursive;       // Whether its subfolders are also being converted
+    private final long fRunStart = System.currentTimeMillis();
+    private final Map<String, Entry> fEntries = new HashMap<>();    // Entries of the folder being converted, by path
+    private final Set<String> fRemoved = new HashSet<>();           // Paths no longer valid (e.g., renamed files)
+
+    /**
+     * Opens the cache, loading the entries of the folder being converted
+     * @param aCacheFile the cache file (created on save, if it does not exist)
+     * @param aFolder the folder being converted
+     * @param aRecursive whether its subfolders are also being converted
+     * @throws IOException if the cache file cannot be read
+     */
+    MetadataCache(String aCacheFile, String aFolder, boolean aRecursive) throws IOException {
+        fCacheFile = Paths.get(aCacheFile).toAbsolutePath();
+        fLockFile = Paths.get(fCacheFile + ".lock");
+        fFolder = Paths.get(aFolder).toAbsolutePath() + File.separator;
+        fRecursive = aRecursive;
+        try (FileChannel lLockChannel = openLock()) {
+            FileLock lLock = lLockChannel.lock(0, Long.MAX_VALUE, true);
+            try (DataInputStream lInput = openCache()) {
+                if (null != lInput) {
+                    for (Entry lEntry; null != (lEntry = readEntry(lInput));) {
+                        if (lEntry.path.startsWith(fFolder)) {
+                            fEntries.put(lEntry.path, lEntry);
+                        }
+                    }
+                }
+            } finally {
+                lLock.release();
+            }
+        }
+    }
+
+    /**
+     * Fills the file metadata from the cache, if the file did not change since it was cached
+     * @param f the file that is being analysed
+     * @return true if f.timestamp and f.cameraModel were filled
+     */
+    synchronized boolean get(MediaFile f) {
+        Entry lEntry = fEntries.get(f.getAbsolutePath());
+        if (null == lEntry || lEntry.size != f.length() || lEntry.lastModified != f.lastModified()) {
+            return false;
+        }
+        lEntry.lastUsed = System.currentTimeMillis();
+        f.timestamp = NO_TIMESTAMP == lEntry.timestamp ? null : new Date(lEntry.timestamp);
+        f.cameraModel = lEntry.cameraModel;
+        return true;
+    }
+
+    /**
+     * Stores the file metadata in the cache
+     * @param f the file that was analysed
+     */
+    synchronized void put(MediaFile f) {
+        fEntries.put(f.getAbsolutePath(), new Entry(f.getAbsolutePath(), f.length(), f.lastModified(),
+                null == f.timestamp ? NO_TIMESTAMP : f.timestamp.getTime(), f.cameraModel, System.currentTimeMillis()));
+        fRemoved.remove(f.getAbsolutePath());
+    }
+
+    /**
+     * Marks the entry of a file as used (the file still exists), even if its metadata is not needed in this run
+     * @param aPath the absolute path of the file
+     */
+    synchronized void touch(String aPath) {
+        Entry lEntry = fEntries.get(aPath);
+        if (null != lEntry) {
+            lEntry.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Moves the entry of a renamed file to its new path (the size and last modified time do not change on rename)
+     * @param aOldPath the absolute path before the rename
+     * @param aNewPath the absolute path after the rename
+     */
+    synchronized void rename(String aOldPath, String aNewPath) {
+        Entry lEntry = fEntries.remove(aOldPath);
+        fRemoved.add(aOldPath);
+        if (null != lEntry) {
+            fEntries.put(aNewPath, new Entry(aNewPath, lEntry.size, lEntry.lastModified, lEntry.timestamp, lEntry.cameraModel, System.currentTimeMillis()));
+            fRemoved.remove(aNewPath);
+        }
+    }
+
+    /**
+     * Saves the cache, merging it with the entries saved meanwhile by other processes. The entries of this process are
+     * all kept in memory (also those replaced by more recent ones of other processes), so it can go on using them after
+     * a save (e.g. in watch mode).
+     * @param aCompleteRun whether the whole folder was walked (only then the entries of files not found are evicted)
+     * @throws IOException if the cache file cannot be written
+     */
+    synchronized void save(boolean aCompleteRun) throws IOException {
+        if (aCompleteRun) {
+            for (Iterator<Entry> i = fEntries.values().iterator(); i.hasNext();) {
+                Entry lEntry = i.next();
+                if (lEntry.lastUsed < fRunStart && isInConvertedFolder(lEntry.path)) {
+                    fRemoved.add(lEntry.path);
+                    i.remove();
+                }
+            }
+        }
+        Map<String, Entry> lEntries = new HashMap<>(fEntries);  // The entries of this run still to be written
+        Path lTempFile = Paths.get(fCacheFile + ".tmp");
+        try (FileChannel lLockChannel = openLock()) {
+            FileLock lLock = lLockChannel.lock();
+            try {
+                long lStaleTime = System.currentTimeMillis() - STALE_AGE;
+                try (DataInputStream lInput = openCache();
+                     DataOutputStream lOutput = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(lTempFile)))) {
+                    lOutput.writeInt(MAGIC);
+                    lOutput.writeInt(VERSION);
+                    // Entries of the cache file, except those replaced/removed by this run and stale ones of deleted files
+                    if (null != lInput) {
+                        for (Entry lEntry; null != (lEntry = readEntry(lInput));) {
+                            Entry lOwnEntry = lEntries.get(lEntry.path);
+                            if (null != lOwnEntry ? lOwnEntry.lastUsed >= lEntry.lastUsed : fRemoved.contains(lEntry.path)) {
+                                continue;
+                            }
+                            if (null != lOwnEntry) {
+                                lEntries.remove(lEntry.path);   // Another process used it later: keep theirs
+                            }
+                            if (lEntry.lastUsed < lStaleTime && !new File(lEntry.path).exists()) {
+                                continue;
+                            }
+                            writeEntry(lOutput, lEntry);
+                        }
+                    }
+                    // Entries of this run
+                    for (Entry lEntry : lEntries.values()) {
+                        writeEntry(lOutput, lEntry);
+                    }
+                    lOutput.writeByte(0);
+                }
+                Files.move(lTempFile, fCacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                lLock.release();
+            }
+        }
+    }
+
+    /**
+     * Checks whether a path is of a file that the run would have found
+     * @param aPath the absolute path
+     * @return true if the file is in the folder being converted (or in its subfolders, if recursive)
+     */
+    private boolean isInConvertedFolder(String aPath) {
+        return aPath.startsWith(fFolder) && (fRecursive || aPath.indexOf(File.separatorChar, fFolder.length()) < 0);
+    }
+
+    /**
+     * Opens the lock file, which serializes the access of several processes to the cache file
+     * @return the channel of the lock file
+     * @throws IOException if the lock file cannot be created
+     */
+    private FileChannel openLock() throws IOException {
+        Files.createDirectories(fLockFile.getParent());
+        return FileChannel.open(fLockFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Opens the cache file for reading, checking its header
+     * @return the cache file stream, positioned on the first entry, or null if there is no (valid) cache file
+     * @throws IOException if the cache file cannot be read
+     */
+    private DataInputStream openCache() throws IOException {
+        DataInputStream lInput;
+        try {
+            lInput = new DataInputStream(new BufferedInputStream(Files.newInputStream(fCacheFile)));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        try {
+            if (lInput.readInt() == MAGIC && lInput.readInt() == VERSION) {
+                return lInput;
+            }
+        } catch (EOFException e) {
+            // An empty or truncated cache file is ignored
+        }
+        System.out.println("Metadata cache " + fCacheFile + " is not valid: it will be replaced");
+        lInput.close();
+        return null;
+    }
+
+    /**
+     * Reads an entry of the cache file
+     * @param aInput the cache file stream
+     * @return the entry, or null at the end of the file (or where it is truncated or damaged: the entries read so far
+     *         are kept, and the next save rewrites the file)
+     * @throws IOException if the cache file cannot be read
+     */
+    private static Entry readEntry(DataInputStream aInput) throws IOException {
+        try {
+            byte lMarker = aInput.readByte();
+            if (lMarker != 1) {
+                return null;    // The end of the file (0), or a damaged entry
+            }
+            String lPath = aInput.readUTF();
+            long lSize = aInput.readLong();
+            long lLastModified = aInput.readLong();
+            long lTimestamp = aInput.readLong();
+            String lCameraModel = aInput.readBoolean() ? aInput.readUTF() : null;
+            long lLastUsed = aInput.readLong();
+            return lSize < 0 ? null : new Entry(lPath, lSize, lLastModified, lTimestamp, lCameraModel, lLastUsed);
+        } catch (EOFException | UTFDataFormatException e) {
+            return null;    // A truncated (or damaged) cache file keeps the entries read so far
+        }
+    }
+
+    /**
+     * Writes an entry to the cache file
+     * @param aOutput the cache file stream
+     * @param aEntry the entry
+     * @throws IOException if the cache file cannot be written
+     */
+    private static void writeEntry(DataOutputStream aOutput, Entry aEntry) throws IOException {
+        aOutput.writeByte(1);
+        aOutput.writeUTF(aEntry.path);
+        aOutput.writeLong(aEntry.size);
+        aOutput.writeLong(aEntry.lastModified);
+        aOutput.writeLong(aEntry.timestamp);
+        aOutput.writeBoolean(null != aEntry.cameraModel);
+        if (null != aEntry.cameraModel) {
+            aOutput.writeUTF(aEntry.cameraModel);
+        }
+        aOutput.writeLong(aEntry.lastUsed);
+    }
+}
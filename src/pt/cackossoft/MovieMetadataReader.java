@@ -0,0 +1,329 @@
+package pt.cackossoft;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * In-process reader of the movie metadata, which replaces the "mediainfo" external program.
+ * It walks the box/atom tree of ISO BMFF / QuickTime / 3GP files (moov/mvhd creation time, moov/udta "(c)mak", "(c)mod",
+ * "(c)swr", "(c)nam", moov/meta keys/ilst) and the chunks of AVI RIFF files (hdrl IDIT, INFO ISFT/INAM), seeking over
+ * everything else, so the media payload is never read.
+ * The values are returned with the keys and formats that mediainfo uses ("Mastered date", "Encoded date",
+ * "Writing application", "Title"), plus "Camera model" (make + " " + model).
+ */
+class MovieMetadataReader {
+    private static final long SECONDS_1904_TO_1970 = 2082844800L;
+    private static final int MAX_BOX_READ = 1024 * 1024;   // Largest metadata box that is read into memory
+    private static final int MAX_BOXES = 10000;            // Guard against corrupted files
+
+    private final SeekableByteChannel fChannel;
+    private final Map<String, String> fValues = new HashMap<>();
+    private String fMake;
+    private String fModel;
+    private int fBoxes;
+
+    private MovieMetadataReader(SeekableByteChannel aChannel) {
+        fChannel = aChannel;
+    }
+
+    /**
+     * Reads the metadata of a movie file
+     * @param aPath the file that is being analysed
+     * @return the metadata values by (mediainfo) key; empty if the format is not known
+     * @throws IOException if the file cannot be read
+     */
+    static Map<String, String> read(Path aPath) throws IOException {
+        try (SeekableByteChannel lChannel = MediaChannels.open(aPath)) {
+            return read(lChannel, MediaFormat.read(lChannel));
+        }
+    }
+
+    /**
+     * Reads the metadata of a movie file already open (and whose format is known)
+     * @param aChannel the file that is being analysed
+     * @param aFormat its format
+     * @return the metadata values by (mediainfo) key; empty if the format is not a movie format
+     * @throws IOException if the file cannot be read
+     */
+    static Map<String, String> read(SeekableByteChannel aChannel, MediaFormat aFormat) throws IOException {
+        MovieMetadataReader lReader = new MovieMetadataReader(aChannel);
+        if (MediaFormat.AVI == aFormat) {
+            ByteBuffer lHeader = MediaChannels.readFully(aChannel, 0, 12);
+            if (null != lHeader) {
+                lHeader.order(ByteOrder.LITTLE_ENDIAN);     // RIFF sizes are little-endian
+                lReader.readRiffChunks(12, Math.min(aChannel.size(), 8 + (lHeader.getInt(4) & 0xFFFFFFFFL)));
+            }
+        } else if (MediaFormat.ISO_BMFF == aFormat) {
+            lReader.readBoxes(0, aChannel.size(), "");
+        }
+        if (null != lReader.fMake || null != lReader.fModel) {
+            lReader.fValues.put("Camera model", (null == lReader.fMake ? "" : lReader.fMake + " ") + (null == lReader.fModel ? "" : lReader.fModel));
+        }
+        return lReader.fValues;
+    }
+
+    /**
+     * Walks the ISO BMFF / QuickTime boxes between two positions, descending into moov, udta and meta only
+     * @param aStart position of the first box
+     * @param aEnd position after the last box
+     * @param aParent type of the parent box ("" at the top level)
+     * @throws IOException if the file cannot be read
+     */
+    private void readBoxes(long aStart, long aEnd, String aParent) throws IOException {
+        for (long lPosition = aStart; lPosition + 8 <= aEnd && ++fBoxes < MAX_BOXES;) {
+            ByteBuffer lHeader = MediaChannels.readFully(fChannel, lPosition, 8);
+            if (null == lHeader) {
+                return;
+            }
+            long lSize = lHeader.getInt(0) & 0xFFFFFFFFL;
+            String lType = getType(lHeader, 4);
+            int lHeaderSize = 8;
+            if (lSize == 1) {           // 64 bits size
+                ByteBuffer lLargeSize = MediaChannels.readFully(fChannel, lPosition + 8, 8);
+                if (null == lLargeSize) {
+                    return;
+                }
+                lSize = lLargeSize.getLong(0);
+                lHeaderSize = 16;
+            } else if (lSize == 0) {    // Up to the end of the file
+                lSize = aEnd - lPosition;
+            }
+            if (lSize < lHeaderSize || lPosition + lSize > aEnd) {
+                return;
+            }
+            long lContent = lPosition + lHeaderSize;
+            long lContentSize = lSize - lHeaderSize;
+            if ("moov".equals(lType) || "udta".equals(lType)) {
+                readBoxes(lContent, lContent + lContentSize, lType);
+            } else if ("mvhd".equals(lType)) {
+                readMovieHeader(lContent, lContentSize);
+            } else if ("meta".equals(lType) && lContentSize <= MAX_BOX_READ) {
+                readMeta(lContent, lContentSize);
+            } else if ("udta".equals(aParent) && (lType.charAt(0) == '\u00A9') && lContentSize <= MAX_BOX_READ) {
+                ByteBuffer lContentBytes = MediaChannels.readFully(fChannel, lContent, (int) lContentSize);
+                if (null != lContentBytes) {
+                    setUserDataValue(lType, getUserDataText(lContentBytes));
+                }
+            }
+            lPosition += lSize;
+        }
+    }
+
+    /**
+     * Reads the creation time of the movie header ("Encoded date")
+     * @param aContent position of the mvhd content
+     * @param aContentSize size of the mvhd content
+     * @throws IOException if the file cannot be read
+     */
+    private void readMovieHeader(long aContent, long aContentSize) throws IOException {
+        ByteBuffer lHeader = MediaChannels.readFully(fChannel, aContent, (int) Math.min(aContentSize, 12));
+        if (null == lHeader || lHeader.limit() < 8) {
+            return;
+        }
+        long lCreationTime = lHeader.get(0) == 1 && lHeader.limit() >= 12 ? lHeader.getLong(4) : lHeader.getInt(4) & 0xFFFFFFFFL;
+        if (lCreationTime > SECONDS_1904_TO_1970) {    // Many cameras write 0 (1904) when the clock is not set
+            SimpleDateFormat lFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+            lFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+            fValues.put("Encoded date", "UTC " + lFormat.format(new Date((lCreationTime - SECONDS_1904_TO_1970) * 1000)));
+        }
+    }
+
+    /**
+     * Reads a meta box: either an ISO full box with an iTunes style item list (hdlr + ilst), or a QuickTime box with
+     * keys (mdta) + ilst
+     * @param aContent position of the meta content
+     * @param aContentSize size of the meta content
+     * @throws IOException if the file cannot be read
+     */
+    private void readMeta(long aContent, long aContentSize) throws IOException {
+        ByteBuffer lMeta = MediaChannels.readFully(fChannel, aContent, (int) aContentSize);
+        if (null == lMeta) {
+            return;
+        }
+        // The ISO meta box has 4 bytes of version/flags before its children; the QuickTime one does not
+        int lStart = lMeta.limit() >= 8 && "hdlr".equals(getType(lMeta, 4)) ? 0 : 4;
+        List<String> lKeys = new ArrayList<>();
+        for (int lPosition = lStart; lPosition + 8 <= lMeta.limit();) {
+            int lSize = lMeta.getInt(lPosition);
+            if (lSize < 8 || lPosition + lSize > lMeta.limit()) {
+                return;
+            }
+            String lType = getType(lMeta, lPosition + 4);
+            if ("keys".equals(lType)) {
+                // version/flags, count, then (size, namespace, name) for each key
+                for (int lKey = lPosition + 16; lKey + 8 <= lPosition + lSize;) {
+                    int lKeySize = lMeta.getInt(lKey);
+                    if (lKeySize < 8 || lKey + lKeySize > lPosition + lSize) {
+                        break;
+                    }
+                    lKeys.add(getText(lMeta, lKey + 8, lKeySize - 8));
+                    lKey += lKeySize;
+                }
+            } else if ("ilst".equals(lType)) {
+                for (int lItem = lPosition + 8; lItem + 8 <= lPosition + lSize;) {
+                    int lItemSize = lMeta.getInt(lItem);
+                    if (lItemSize < 8 || lItem + lItemSize > lPosition + lSize) {
+                        break;
+                    }
+                    String lValue = getDataText(lMeta, lItem + 8, lItemSize - 8);
+                    if (null != lValue) {
+                        int lKeyIndex = lMeta.getInt(lItem + 4);
+                        if (lKeyIndex >= 1 && lKeyIndex <= lKeys.size()) {
+                            setMetadataKeyValue(lKeys.get(lKeyIndex - 1), lValue);
+                        } else {
+                            setUserDataValue(getType(lMeta, lItem + 4), lValue);
+                        }
+                    }
+                    lItem += lItemSize;
+                }
+            }
+            lPosition += lSize;
+        }
+    }
+
+    /**
+     * Stores a user data value ("(c)xxx" atoms)
+     * @param aType the atom type
+     * @param aValue the text value (ignored if null)
+     */
+    private void setUserDataValue(String aType, String aValue) {
+        if (null == aValue) {
+            return;
+        }
+        switch (aType) {
+            case "\u00A9mak": fMake = aValue; break;
+            case "\u00A9mod": fModel = aValue; break;
+            case "\u00A9swr": fValues.put("Writing application", aValue); break;
+            case "\u00A9nam": fValues.put("Title", aValue); break;
+        }
+    }
+
+    /**
+     * Stores a QuickTime metadata value (keys + ilst)
+     * @param aKey the key name (e.g., "com.apple.quicktime.make")
+     * @param aValue the text value
+     */
+    private void setMetadataKeyValue(String aKey, String aValue) {
+        switch (aKey) {
+            case "com.apple.quicktime.make": fMake = aValue; break;
+            case "com.apple.quicktime.model": fModel = aValue; break;
+            case "com.apple.quicktime.software": fValues.put("Writing application", aValue); break;
+            case "com.apple.quicktime.title": fValues.put("Title", aValue); break;
+            case "com.apple.quicktime.creationdate":
+                // ISO 8601 with the local time zone (e.g., "2019-05-04T10:11:12+0100"): keep the local time
+                if (aValue.length() >= 19) {
+                    fValues.put("Mastered date", aValue.substring(0, 10) + " " + aValue.substring(11, 19));
+                }
+                break;
+        }
+    }
+
+    /**
+     * Returns the text of a "(c)xxx" user data atom: either a list of (size, language, text) QuickTime strings, or an
+     * iTunes style data box
+     * @param aContent the atom content
+     * @return the (first) text, or null if there is none
+     */
+    private static String getUserDataText(ByteBuffer aContent) {
+        if (aContent.limit() >= 16 && "data".equals(getType(aContent, 4))) {
+            return getDataText(aContent, 0, aContent.limit());
+        }
+        if (aContent.limit() < 4) {
+            return null;
+        }
+        int lLength = aContent.getShort(0) & 0xFFFF;
+        return lLength == 0 || 4 + lLength > aContent.limit() ? null : getText(aContent, 4, lLength);
+    }
+
+    /**
+     * Returns the text of the data box found at a position (iTunes style item)
+     * @param aBuffer the buffer with the item content
+     * @param aStart position of the data box
+     * @param aLength length of the item content
+     * @return the text, or null if there is no UTF-8 data box
+     */
+    private static String getDataText(ByteBuffer aBuffer, int aStart, int aLength) {
+        if (aLength < 16 || !"data".equals(getType(aBuffer, aStart + 4))) {
+            return null;
+        }
+        int lSize = Math.min(aBuffer.getInt(aStart), aLength);
+        int lDataType = aBuffer.getInt(aStart + 8) & 0xFFFFFF;
+        return lSize < 16 || lDataType != 1 ? null : getText(aBuffer, aStart + 16, lSize - 16);
+    }
+
+    /**
+     * Walks the AVI RIFF chunks between two positions, descending into the hdrl and INFO lists only
+     * @param aStart position of the first chunk
+     * @param aEnd position after the last chunk
+     * @throws IOException if the file cannot be read
+     */
+    private void readRiffChunks(long aStart, long aEnd) throws IOException {
+        for (long lPosition = aStart; lPosition + 8 <= aEnd && ++fBoxes < MAX_BOXES;) {
+            ByteBuffer lHeader = MediaChannels.readFully(fChannel, lPosition, 12);
+            if (null == lHeader) {
+                return;
+            }
+            lHeader.order(ByteOrder.LITTLE_ENDIAN);
+            String lId = getType(lHeader, 0);
+            long lSize = lHeader.getInt(4) & 0xFFFFFFFFL;
+            long lContent = lPosition + 8;
+            if ("LIST".equals(lId)) {
+                String lListType = getType(lHeader, 8);
+                if ("hdrl".equals(lListType) || "INFO".equals(lListType)) {
+                    readRiffChunks(lContent + 4, Math.min(aEnd, lContent + lSize));
+                }
+            } else if (("IDIT".equals(lId) || "ISFT".equals(lId) || "INAM".equals(lId)) && lSize <= MAX_BOX_READ) {
+                ByteBuffer lText = MediaChannels.readFully(fChannel, lContent, (int) lSize);
+                String lValue = null == lText ? null : getText(lText, 0, (int) lSize);
+                if (null != lValue && !lValue.isEmpty()) {
+                    fValues.put("IDIT".equals(lId) ? "Mastered date" : "ISFT".equals(lId) ? "Writing application" : "Title", lValue);
+                }
+            }
+            lPosition = lContent + lSize + (lSize & 1);     // Chunks are word aligned
+        }
+    }
+
+    /**
+     * Returns the four character type at a position
+     * @param aBuffer the buffer
+     * @param aPosition the position of the type
+     * @return the type (ISO 8859-1, so that "(c)" is kept)
+     */
+    private static String getType(ByteBuffer aBuffer, int aPosition) {
+        if (aPosition + 4 > aBuffer.limit()) {
+            return "";
+        }
+        byte[] lType = new byte[4];
+        for (int i = 0; i < 4; ++i) {
+            lType[i] = aBuffer.get(aPosition + i);
+        }
+        return new String(lType, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Returns a text value, without trailing null characters and spaces
+     * @param aBuffer the buffer
+     * @param aPosition the position of the text
+     * @param aLength the length of the text
+     * @return the text (UTF-8)
+     */
+    private static String getText(ByteBuffer aBuffer, int aPosition, int aLength) {
+        int lLength = Math.max(0, Math.min(aLength, aBuffer.limit() - aPosition));
+        byte[] lText = new byte[lLength];
+        for (int i = 0; i < lLength; ++i) {
+            lText[i] = aBuffer.get(aPosition + i);
+        }
+        return new String(lText, StandardCharsets.UTF_8).replaceAll("[\\s\\u0000]+$", "");
+    }
+}
@@ -0,0 +1,25 @@
+package pt.cackossoft;
+
+/**
+ * A stage of the conversion of the file names (e.g., one of the converters of MediaConverter). The stages of a run are
+ * chained by a ConverterPipeline: each one gets the name given by the previous stages, and all share the MediaFile of
+ * the file, so its metadata is read at most once, by the first stage that needs it.
+ * Implementations must be thread-safe: the files are converted by several workers at the same time.
+ */
+interface NameConverter {
+    /**
+     * Computes the new name of a file
+     * @param f the file that is being analysed
+     * @param aName the name of the file, as given by the previous stages (its own name for the first stage)
+     * @return "" if this stage does not change the name; the new name (without folder) otherwise
+     */
+    String convert(MediaFile f, String aName);
+
+    /**
+     * Checks whether the new name given by this stage includes the camera model of the file
+     * @param f the file that is being analysed
+     * @param aName the name of the file, as given by the previous stages
+     * @return true if the camera model of the file will be needed
+     */
+    boolean needsCameraModel(MediaFile f, String aName);
+}
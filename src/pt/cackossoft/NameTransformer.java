@@ -0,0 +1,195 @@
+package pt.cackossoft;
+
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Building blocks of the new file names: the user regex (compiled once per run), the name sanitizers, and the
+ * "yyyyMMdd_HHmmss" timestamps (checked by a character scanner, and formatted/parsed with cached java.time formatters).
+ * Instances and formatters are immutable, so they can be used by several threads at the same time.
+ */
+class NameTransformer {
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss");
+    private static final int TIMESTAMP_LENGTH = 15;
+    // Date formats of the media metadata (e.g., "Mon Mar 03 10:20:30 2008", "2008-03-03 10:20:30", "UTC 2008-03-03 10:20:30")
+    private static final DateTimeFormatter MEDIA_TEXT_FORMAT = DateTimeFormatter.ofPattern("EEE MMM dd HH:mm:ss yyyy", Locale.ENGLISH);
+    private static final DateTimeFormatter MEDIA_LOCAL_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final DateTimeFormatter MEDIA_ZONED_FORMAT = DateTimeFormatter.ofPattern("z yyyy-MM-dd HH:mm:ss", Locale.ENGLISH);
+
+    private final Pattern fReplaceRegex;        // Regex to be replaced (null if the converter does not use it)
+    private final String fReplacementText;      // Text that replaces the regex
+
+    /**
+     * Compiles the user regex of a run
+     * @param aReplaceRegex the regex to be replaced/removed (null if not used)
+     * @param aReplacementText the text that replaces the regex (null if not used)
+     * @throws java.util.regex.PatternSyntaxException if the regex is not valid
+     */
+    NameTransformer(String aReplaceRegex, String aReplacementText) {
+        fReplaceRegex = null == aReplaceRegex ? null : Pattern.compile(aReplaceRegex);
+        fReplacementText = null == aReplacementText ? "" : aReplacementText;
+    }
+
+    /**
+     * Removes the user regex from a name
+     * @param aName the name
+     * @return the name without the matches of the regex
+     */
+    String removeRegex(String aName) {
+        return fReplaceRegex.matcher(aName).replaceAll("");
+    }
+
+    /**
+     * Replaces the user regex by the user text in a name
+     * @param aName the name
+     * @return the name with the matches of the regex replaced
+     */
+    String replaceRegex(String aName) {
+        return fReplaceRegex.matcher(aName).replaceAll(fReplacementText);
+    }
+
+    /**
+     * Replaces by "_" all the characters that are not word characters ([a-zA-Z_0-9]) nor in a set of allowed ones
+     * @param aName the name
+     * @param aAllowed other characters that are kept (e.g., ".")
+     * @return the sanitized name (the same String if nothing had to be replaced)
+     */
+    static String sanitize(String aName, String aAllowed) {
+        char[] lName = null;
+        for (int i = 0; i < aName.length(); ++i) {
+            char c = aName.charAt(i);
+            if (!isWordChar(c) && aAllowed.indexOf(c) < 0) {
+                if (null == lName) {
+                    lName = aName.toCharArray();
+                }
+                lName[i] = '_';
+            }
+        }
+        return null == lName ? aName : new String(lName);
+    }
+
+    /**
+     * Checks whether a name starts by a "yyyyMMdd_HHmmss-" timestamp (of the years 1900-2099)
+     * @param aName the name
+     * @return true if the name has the timestamp prefix
+     */
+    static boolean hasTimestampPrefix(String aName) {
+        return aName.length() > TIMESTAMP_LENGTH && isTimestamp(aName) && aName.charAt(TIMESTAMP_LENGTH) == '-';
+    }
+
+    /**
+     * Checks whether a text is exactly a "yyyyMMdd" date (of the years 1900-2099)
+     * @param aText the text
+     * @return true if the text is a date
+     */
+    static boolean isDate(String aText) {
+        return aText.length() == 8 && isDateAt(aText);
+    }
+
+    /**
+     * Formats a timestamp (in the default time zone)
+     * @param aTimestamp the timestamp
+     * @return the "yyyyMMdd_HHmmss" text
+     */
+    static String formatTimestamp(Date aTimestamp) {
+        return TIMESTAMP_FORMAT.format(LocalDateTime.ofInstant(aTimestamp.toInstant(), ZoneId.systemDefault()));
+    }
+
+    /**
+     * Adds minutes to the "yyyyMMdd_HHmmss" timestamp that starts a name (in the default time zone)
+     * @param aName the name
+     * @param aMinutes the minutes to be added (may be negative)
+     * @return the new "yyyyMMdd_HHmmss" timestamp, or null if the name does not start by a valid timestamp
+     */
+    static String addMinutes(String aName, int aMinutes) {
+        if (aName.length() < TIMESTAMP_LENGTH || !isTimestamp(aName)) {
+            return null;
+        }
+        try {
+            LocalDateTime lTimestamp = LocalDateTime.of(getNumber(aName, 0, 4), getNumber(aName, 4, 6), getNumber(aName, 6, 8),
+                    getNumber(aName, 9, 11), getNumber(aName, 11, 13), getNumber(aName, 13, 15));
+            return TIMESTAMP_FORMAT.format(lTimestamp.atZone(ZoneId.systemDefault()).plusMinutes(aMinutes).toLocalDateTime());
+        } catch (DateTimeException e) {
+            return null;    // A day that does not exist in the month (e.g., 20140231)
+        }
+    }
+
+    /**
+     * Parses a date of the media metadata, choosing its format by its first characters
+     * @param aText the date, in one of the formats written by mediainfo/MovieMetadataReader
+     * @return the date, or null if it has none of those formats
+     */
+    static Date parseMediaTimestamp(String aText) {
+        try {
+            if (!aText.isEmpty() && isDigit(aText.charAt(0))) {
+                return Date.from(LocalDateTime.parse(aText, MEDIA_LOCAL_FORMAT).atZone(ZoneId.systemDefault()).toInstant());
+            }
+            int lSpace = aText.indexOf(' ');
+            if (lSpace > 0 && lSpace + 1 < aText.length() && isDigit(aText.charAt(lSpace + 1))) {
+                return Date.from(ZonedDateTime.parse(aText, MEDIA_ZONED_FORMAT).toInstant());
+            }
+            return Date.from(LocalDateTime.parse(aText, MEDIA_TEXT_FORMAT).atZone(ZoneId.systemDefault()).toInstant());
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks the "yyyyMMdd_HHmmss" timestamp at the start of a text (at least 15 characters long)
+     * @param aText the text
+     * @return true if the timestamp is valid
+     */
+    private static boolean isTimestamp(String aText) {
+        return isDateAt(aText) && aText.charAt(8) == '_'
+                && isDigit(aText.charAt(9)) && isDigit(aText.charAt(10)) && getNumber(aText, 9, 11) <= 23
+                && isDigit(aText.charAt(11)) && isDigit(aText.charAt(12)) && aText.charAt(11) <= '5'
+                && isDigit(aText.charAt(13)) && isDigit(aText.charAt(14)) && aText.charAt(13) <= '5';
+    }
+
+    /**
+     * Checks the "yyyyMMdd" date at the start of a text (at least 8 characters long)
+     * @param aText the text
+     * @return true if the date is valid (day 01-31, whatever the month)
+     */
+    private static boolean isDateAt(String aText) {
+        for (int i = 0; i < 8; ++i) {
+            if (!isDigit(aText.charAt(i))) {
+                return false;
+            }
+        }
+        int lCentury = getNumber(aText, 0, 2);
+        int lMonth = getNumber(aText, 4, 6);
+        int lDay = getNumber(aText, 6, 8);
+        return (lCentury == 19 || lCentury == 20) && lMonth >= 1 && lMonth <= 12 && lDay >= 1 && lDay <= 31;
+    }
+
+    /**
+     * Returns the number written in a range of digits
+     * @param aText the text
+     * @param aStart the first digit
+     * @param aEnd the position after the last digit
+     * @return the number
+     */
+    private static int getNumber(String aText, int aStart, int aEnd) {
+        int lNumber = 0;
+        for (int i = aStart; i < aEnd; ++i) {
+            lNumber = lNumber * 10 + (aText.charAt(i) - '0');
+        }
+        return lNumber;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isWordChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || isDigit(c) || c == '_';
+    }
+}
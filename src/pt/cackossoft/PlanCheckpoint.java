@@ -0,0 +1,117 @@
+package pt.cackossoft;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Progress of a plan being written, saved periodically so that an interrupted planning (crash, reboot, cancelled
+ * dialog) can be resumed where it was: the renames already planned stay in the (temporary) plan file, and the walk
+ * goes on after the last file planned (see FolderWalker), without walking again the folders before it.
+ * The file is binary: the run (folder, recursive, options), the valid length and entries of the temporary plan, the
+ * last file planned and the run counters (see RunMetrics.getPlanningCounters).
+ */
+class PlanCheckpoint {
+    private static final int MAGIC = 0x4D434350;    // "MCCP"
+    private static final int VERSION = 2;       // 2: the walk is in MediaGroups.NAME_ORDER (version 1 checkpoints are not resumed)
+
+    final String folder;        // The folder being converted (absolute)
+    final boolean recursive;
+    final String options;       // The converter and its options (the plan is only resumed with the same ones)
+    final long planLength;      // Length of the temporary plan file up to the last entry planned
+    final int planSize;         // Number of entries in it
+    final Path lastFile;        // Primary file of the last group planned
+    final long[] counters;      // Run counters so far
+
+    PlanCheckpoint(String aFolder, boolean aRecursive, String aOptions, long aPlanLength, int aPlanSize, Path aLastFile, long[] aCounters) {
+        folder = aFolder;
+        recursive = aRecursive;
+        options = aOptions;
+        planLength = aPlanLength;
+        planSize = aPlanSize;
+        lastFile = aLastFile;
+        counters = aCounters;
+    }
+
+    /**
+     * Checks whether the checkpoint is of a given run
+     * @param aFolder the folder being converted (absolute)
+     * @param aRecursive whether its subfolders are also converted
+     * @param aOptions the converter and its options
+     * @return true if the run can be resumed from this checkpoint
+     */
+    boolean isOf(String aFolder, boolean aRecursive, String aOptions) {
+        return folder.equals(aFolder) && recursive == aRecursive && options.equals(aOptions);
+    }
+
+    /**
+     * Reads a checkpoint
+     * @param aFile the checkpoint file
+     * @return the checkpoint, or null if there is none (or it is not valid)
+     */
+    static PlanCheckpoint read(Path aFile) {
+        try (DataInputStream lInput = new DataInputStream(new BufferedInputStream(Files.newInputStream(aFile)))) {
+            if (lInput.readInt() != MAGIC || lInput.readInt() != VERSION) {
+                return null;
+            }
+            String lFolder = lInput.readUTF();
+            boolean lRecursive = lInput.readBoolean();
+            String lOptions = lInput.readUTF();
+            long lPlanLength = lInput.readLong();
+            int lPlanSize = lInput.readInt();
+            Path lLastFile = Paths.get(lInput.readUTF());
+            long[] lCounters = new long[lInput.readInt()];
+            for (int i = 0; i < lCounters.length; ++i) {
+                lCounters[i] = lInput.readLong();
+            }
+            return new PlanCheckpoint(lFolder, lRecursive, lOptions, lPlanLength, lPlanSize, lLastFile, lCounters);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            System.out.println("Plan checkpoint " + aFile + ": Error in read (" + e + ")");
+            return null;
+        }
+    }
+
+    /**
+     * Writes the checkpoint to disk (atomically replacing the previous one)
+     * @param aFile the checkpoint file
+     * @throws IOException if the checkpoint cannot be written
+     */
+    void write(Path aFile) throws IOException {
+        ByteArrayOutputStream lBytes = new ByteArrayOutputStream();
+        try (DataOutputStream lOutput = new DataOutputStream(lBytes)) {
+            lOutput.writeInt(MAGIC);
+            lOutput.writeInt(VERSION);
+            lOutput.writeUTF(folder);
+            lOutput.writeBoolean(recursive);
+            lOutput.writeUTF(options);
+            lOutput.writeLong(planLength);
+            lOutput.writeInt(planSize);
+            lOutput.writeUTF(lastFile.toString());
+            lOutput.writeInt(counters.length);
+            for (long lCounter : counters) {
+                lOutput.writeLong(lCounter);
+            }
+        }
+        Path lTempFile = Paths.get(aFile + ".tmp");
+        try (FileChannel lChannel = FileChannel.open(lTempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer lBuffer = ByteBuffer.wrap(lBytes.toByteArray());
+            while (lBuffer.hasRemaining()) {
+                lChannel.write(lBuffer);
+            }
+            lChannel.force(false);
+        }
+        Files.move(lTempFile, aFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
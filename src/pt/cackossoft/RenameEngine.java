@@ -0,0 +1,219 @@
+package pt.cackossoft;
+
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Renames files without name collisions.
+ * The names in use in each folder are loaded once (with a single folder listing) into a reservation table, so a free
+ * name (appending "-1", "-2", ... when needed) is found in memory, without asking the filesystem about each candidate.
+ * The tables of the most recently used folders are kept, and all methods are thread-safe.
+ */
+class RenameEngine {
+    /**
+     * Outcome of a rename
+     */
+    enum Status {
+        RENAMED("Renamed successfully"),
+        SOURCE_MISSING("Error in rename: the file no longer exists"),
+        TARGET_EXISTS("Error in rename: the new name is already in use"),
+        ACCESS_DENIED("Error in rename: access denied"),
+        OTHER_FILESYSTEM("Error in rename: the new name is on another filesystem"),
+        FAILED("Error in rename"),
+        EXIF_CHANGED("Error in rename: the EXIF timestamp is not the planned one");     // Last: the journal records the ordinal
+
+        private final String fDescription;
+
+        Status(String aDescription) {
+            fDescription = aDescription;
+        }
+
+        /**
+         * @return the message shown to the user
+         */
+        String getDescription() {
+            return fDescription;
+        }
+    }
+
+    /**
+     * Names in use in a folder
+     */
+    private static final class Folder {
+        final Set<String> fNames = new HashSet<>();                 // Names of the files in the folder (and reserved ones)
+        final Map<String, Integer> fNextSuffix = new HashMap<>();   // Next number to try, by wanted name
+        boolean loaded;                                             // Whether the folder was already listed
+    }
+
+    private static final int MAX_FOLDERS = 64;  // Number of folder tables kept in memory
+
+    private final Map<Path, Folder> fFolders = new LinkedHashMap<Path, Folder>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Folder> aEldest) {
+            if (size() > MAX_FOLDERS) {
+                // The least recently used folder that is not pinned (never the one just added, the most recent)
+                Iterator<Path> i = keySet().iterator();
+                for (int lCandidates = size() - 1; lCandidates > 0; --lCandidates) {
+                    Path lFolderPath = i.next();
+                    if (null == pinnedRoot || !lFolderPath.startsWith(pinnedRoot)) {
+                        i.remove();
+                        break;
+                    }
+                }
+            }
+            return false;
+        }
+    };
+    private Path pinnedRoot;    // Tree whose folder tables are never dropped (e.g. the destination tree), guarded by fFolders
+
+    /**
+     * Pins the folder tables of a tree: they are kept while the engine is used, because names are reserved in its
+     * folders in any order (e.g. a destination tree, see FolderLayout), not one folder after the other
+     * @param aRoot the root of the tree (absolute), or null for none
+     */
+    void pin(Path aRoot) {
+        synchronized (fFolders) {
+            pinnedRoot = aRoot;
+        }
+    }
+
+    /**
+     * Reserves a free name in the target folder. The name stays reserved until it is released.
+     * @param aTarget the wanted name (with folder)
+     * @return the wanted name, or, if it is in use, the first free one with a number appended
+     */
+    Path reserve(Path aTarget) {
+        String lName = aTarget.getFileName().toString();
+        Folder lFolder = getFolder(aTarget.getParent());
+        synchronized (lFolder) {
+            if (lFolder.fNames.add(lName)) {
+                return aTarget;
+            }
+            // This is to cover different versions of the same file, if the file already exists (appends a number)
+            int lIndexExtension = lName.lastIndexOf('.');
+            String lBaseName = lIndexExtension < 0 ? lName : lName.substring(0, lIndexExtension);
+            String lExtension = lIndexExtension < 0 ? "" : lName.substring(lIndexExtension);
+            Integer lNextSuffix = lFolder.fNextSuffix.get(lName);
+            for (int lNum = null == lNextSuffix ? 1 : lNextSuffix;; ++lNum) {
+                String lNewName = lBaseName + "-" + lNum + lExtension;
+                if (lFolder.fNames.add(lNewName)) {
+                    lFolder.fNextSuffix.put(lName, lNum + 1);
+                    return aTarget.resolveSibling(lNewName);
+                }
+            }
+        }
+    }
+
+    /**
+     * Releases a name (reserved, or of a file that was renamed/moved away)
+     * @param aPath the name (with folder)
+     */
+    void release(Path aPath) {
+        Folder lFolder;
+        synchronized (fFolders) {
+            lFolder = fFolders.get(aPath.getParent());
+        }
+        if (null != lFolder) {
+            synchronized (lFolder) {
+                lFolder.fNames.remove(aPath.getFileName().toString());
+            }
+        }
+    }
+
+    /**
+     * Forgets the names in use in all the folders (and the reserved ones), so each folder is listed again when needed:
+     * other programs may have added files to it meanwhile
+     */
+    void clear() {
+        synchronized (fFolders) {
+            fFolders.clear();
+        }
+    }
+
+    /**
+     * Atomically moves a file to a (reserved) name, never replacing an existing file; the folder of the new name is
+     * created if it does not exist
+     * @param aSource the file to be moved
+     * @param aTarget the new name (with folder)
+     * @return the status of the move
+     */
+    static Status move(Path aSource, Path aTarget) {
+        if (Files.exists(aTarget, LinkOption.NOFOLLOW_LINKS)) {  // An atomic move would replace it
+            return Status.TARGET_EXISTS;
+        }
+        try {
+            Files.move(aSource, aTarget, StandardCopyOption.ATOMIC_MOVE);
+            return Status.RENAMED;
+        } catch (NoSuchFileException e) {
+            if (!Files.exists(aSource, LinkOption.NOFOLLOW_LINKS)) {
+                return Status.SOURCE_MISSING;
+            }
+            if (Files.exists(aTarget.getParent())) {
+                return Status.FAILED;
+            }
+            // A new folder of a destination tree (only checked when missing, so other renames cost nothing more)
+            try {
+                Files.createDirectories(aTarget.getParent());
+            } catch (IOException e2) {
+                e2.printStackTrace();
+                return Status.FAILED;
+            }
+            return move(aSource, aTarget);
+        } catch (FileAlreadyExistsException e) {
+            return Status.TARGET_EXISTS;
+        } catch (AccessDeniedException e) {
+            return Status.ACCESS_DENIED;
+        } catch (AtomicMoveNotSupportedException e) {
+            return Status.OTHER_FILESYSTEM;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return Status.FAILED;
+        }
+    }
+
+    /**
+     * Returns the reservation table of a folder, listing the folder the first time it is used
+     * @param aFolderPath the folder
+     * @return the names in use in the folder
+     */
+    private Folder getFolder(Path aFolderPath) {
+        Folder lFolder;
+        synchronized (fFolders) {
+            lFolder = fFolders.get(aFolderPath);
+            if (null == lFolder) {
+                lFolder = new Folder();
+                fFolders.put(aFolderPath, lFolder);
+            }
+        }
+        // The folder is listed holding only its own lock, so that the other folders are not blocked meanwhile
+        synchronized (lFolder) {
+            if (!lFolder.loaded) {
+                try (DirectoryStream<Path> lStream = Files.newDirectoryStream(aFolderPath)) {
+                    for (Path lPath : lStream) {
+                        lFolder.fNames.add(lPath.getFileName().toString());
+                    }
+                } catch (NoSuchFileException e) {
+                    // A folder still to be created (see move): no name is in use
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                lFolder.loaded = true;
+            }
+        }
+        return lFolder;
+    }
+}
@@ -0,0 +1,177 @@
+package pt.cackossoft;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Write-ahead journal of the renames of a plan (applied or undone), which allows resuming an interrupted run and
+ * undoing the renames that were done.
+ * The entries of the plan are renamed in batches of consecutive entries. Before a batch is started, a BEGIN record is
+ * appended and the journal is forced to disk; when it ends, a COMMIT record with the state of each entry of the batch
+ * is appended, and is forced to disk with the BEGIN record of the next batch (or when the journal is closed). So
+ * there is a single disk sync per batch, instead of one per rename.
+ * The entries of a batch that was begun but not committed (the run was interrupted) are PENDING: whether each of them
+ * was renamed is found by checking its source and target on disk (see resolve).
+ * The file is a sequence of binary records: (BEGIN, first entry, count) and (COMMIT, first entry, count, states).
+ */
+class RenameJournal implements Closeable {
+    private static final int MAGIC = 0x4D43524A;    // "MCRJ"
+    private static final int VERSION = 1;
+    private static final byte BEGIN = 1;
+    private static final byte COMMIT = 2;
+
+    static final byte NOT_STARTED = 0;  // The file has its source name (never renamed, or the rename was undone)
+    static final byte PENDING = 1;      // The rename (or its undo) may or may not have been done
+    private static final byte STATUS = 2;   // The file was (tried to be) renamed: STATUS + RenameEngine.Status.ordinal()
+
+    private final FileChannel fChannel;
+    private byte[] fStates = new byte[1024];    // State of each entry of the plan, by entry index
+    private boolean fForced = true;             // Whether all the records were already forced to disk
+
+    /**
+     * Opens the journal, reading the states that it records (a torn last record, from a crash, is discarded)
+     * @param aJournalFile the journal file (created if it does not exist)
+     * @throws IOException if the journal cannot be read or is not valid
+     */
+    RenameJournal(Path aJournalFile) throws IOException {
+        fChannel = FileChannel.open(aJournalFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (fChannel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Rename journal is too large: " + aJournalFile);
+            }
+            ByteBuffer lJournal = ByteBuffer.allocate((int) fChannel.size());
+            while (lJournal.hasRemaining() && fChannel.read(lJournal, lJournal.position()) >= 0) {
+                // Read the whole journal (about one byte per entry)
+            }
+            lJournal.flip();
+            if (lJournal.remaining() < 8) {     // New (or torn while being created)
+                ByteBuffer lHeader = ByteBuffer.allocate(8).putInt(MAGIC).putInt(VERSION);
+                lHeader.flip();
+                fChannel.truncate(0);
+                fChannel.write(lHeader, 0);
+                fChannel.position(8);
+                fForced = false;
+                return;
+            }
+            if (lJournal.getInt() != MAGIC || lJournal.getInt() != VERSION) {
+                throw new IOException("Not a rename journal: " + aJournalFile);
+            }
+            int lEnd = lJournal.position();     // End of the last complete record
+            while (lJournal.remaining() >= 9) {
+                byte lRecord = lJournal.get();
+                int lFirst = lJournal.getInt();
+                int lCount = lJournal.getInt();
+                if (lFirst < 0 || lCount < 0 || (BEGIN != lRecord && COMMIT != lRecord)) {
+                    throw new IOException("Rename journal is not valid: " + aJournalFile);
+                }
+                if (COMMIT == lRecord && lJournal.remaining() < lCount) {
+                    break;
+                }
+                ensureCapacity(lFirst + lCount);
+                if (BEGIN == lRecord) {
+                    Arrays.fill(fStates, lFirst, lFirst + lCount, PENDING);
+                } else {
+                    lJournal.get(fStates, lFirst, lCount);
+                }
+                lEnd = lJournal.position();
+            }
+            fChannel.truncate(lEnd);
+            fChannel.position(lEnd);
+        } catch (IOException e) {
+            fChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the state of an entry
+     * @param aIndex the entry index
+     * @return NOT_STARTED, PENDING, or the status of its rename (see getStatus)
+     */
+    byte getState(int aIndex) {
+        return aIndex < fStates.length ? fStates[aIndex] : NOT_STARTED;
+    }
+
+    /**
+     * Returns the state of an entry that was renamed
+     * @param aStatus the status of the rename
+     * @return the state recorded for it
+     */
+    static byte getState(RenameEngine.Status aStatus) {
+        return (byte) (STATUS + aStatus.ordinal());
+    }
+
+    /**
+     * Resolves the state of a PENDING entry, by checking its files
+     * @param aEntry the entry
+     * @return the RENAMED state if only its target exists, otherwise NOT_STARTED
+     */
+    static byte resolve(RenamePlan.Entry aEntry) {
+        return Files.exists(aEntry.target, LinkOption.NOFOLLOW_LINKS) && !Files.exists(aEntry.source, LinkOption.NOFOLLOW_LINKS)
+                ? getState(RenameEngine.Status.RENAMED) : NOT_STARTED;
+    }
+
+    /**
+     * Records that the renames of a batch are about to start, forcing the journal (and the previous commit) to disk
+     * @param aFirst the index of the first entry of the batch
+     * @param aCount the number of entries of the batch
+     * @throws IOException if the journal cannot be written
+     */
+    void begin(int aFirst, int aCount) throws IOException {
+        ByteBuffer lRecord = ByteBuffer.allocate(9).put(BEGIN).putInt(aFirst).putInt(aCount);
+        write(lRecord);
+        fChannel.force(false);
+        fForced = true;
+        ensureCapacity(aFirst + aCount);
+        Arrays.fill(fStates, aFirst, aFirst + aCount, PENDING);
+    }
+
+    /**
+     * Records the states of the entries of a batch after its renames (forced to disk with the next batch)
+     * @param aFirst the index of the first entry of the batch
+     * @param aStates the state of each entry of the batch
+     * @throws IOException if the journal cannot be written
+     */
+    void commit(int aFirst, byte[] aStates) throws IOException {
+        ByteBuffer lRecord = ByteBuffer.allocate(9 + aStates.length).put(COMMIT).putInt(aFirst).putInt(aStates.length).put(aStates);
+        write(lRecord);
+        fForced = false;
+        ensureCapacity(aFirst + aStates.length);
+        System.arraycopy(aStates, 0, fStates, aFirst, aStates.length);
+    }
+
+    /**
+     * Forces the last records to disk and closes the journal
+     * @throws IOException if the journal cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!fForced) {
+                fChannel.force(false);
+            }
+        } finally {
+            fChannel.close();
+        }
+    }
+
+    private void write(ByteBuffer aRecord) throws IOException {
+        aRecord.flip();
+        while (aRecord.hasRemaining()) {
+            fChannel.write(aRecord);
+        }
+    }
+
+    private void ensureCapacity(int aSize) {
+        if (aSize > fStates.length) {
+            fStates = Arrays.copyOf(fStates, Math.max(aSize, 2 * fStates.length));
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package pt.cackossoft;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * File with the renames planned for a folder, written when the new names are computed and read when they are applied.
+ * The targets were reserved when planning (RenameEngine.reserve), so no two renames of a plan have the same target, nor
+ * a target that existed when planning: the renames of a plan can be applied in any order.
+ * The file is a sequence of binary records: (FOLDER, folder) before the renames of each folder, then
+ * (RENAME, source name, target name) or, if the target is in another folder, (RENAME_PATH, source name, target path),
+ * preceded by (EXIF_TIMESTAMP, old value, new value, last modified time) if the EXIF DateTimeOriginal of the file is
+ * also rewritten (the last modified time of the file when planned, which is restored when the rename is undone);
+ * it is ended by END. The entries of a plan are numbered from 0, in the order they were added.
+ */
+class RenamePlan {
+    private static final int MAGIC = 0x4D43504C;    // "MCPL"
+    private static final int VERSION = 2;
+    private static final int VERSION_1 = 1;         // Without the last modified time in EXIF_TIMESTAMP (still read)
+    private static final byte END = 0;
+    private static final byte FOLDER = 1;
+    private static final byte RENAME = 2;
+    private static final byte RENAME_PATH = 3;
+    private static final byte EXIF_TIMESTAMP = 4;
+
+    /**
+     * Planned rename
+     */
+    static final class Entry {
+        final int index;        // Position in the plan
+        final Path source;
+        final Path target;
+        final String exifTimestamp;     // EXIF DateTimeOriginal of the file before the rename (null if it is not rewritten)
+        final String newExifTimestamp;  // EXIF DateTimeOriginal after the rename (see ExifTimestampWriter)
+        final long lastModified;        // Last modified time of the file before the rename, in ms (-1 if unknown)
+
+        Entry(int aIndex, Path aSource, Path aTarget, String aExifTimestamp, String aNewExifTimestamp, long aLastModified) {
+            index = aIndex;
+            source = aSource;
+            target = aTarget;
+            exifTimestamp = aExifTimestamp;
+            newExifTimestamp = aNewExifTimestamp;
+            lastModified = aLastModified;
+        }
+    }
+
+    /**
+     * Writes a plan. The plan file is only replaced when the plan is committed, so an interrupted planning never leaves
+     * a partial plan to be applied; the plan is written to a temporary file meanwhile, which can be checkpointed and
+     * resumed (see PlanCheckpoint).
+     */
+    static final class Writer implements Closeable {
+        private final Path fPlanFile;
+        private final Path fTempFile;
+        private final FileChannel fChannel;
+        private final DataOutputStream fOutput;
+        private Path fFolder;       // Folder of the last entry
+        private int fSize;
+        private boolean fCommitted;
+        private boolean fCheckpointed;  // Whether the temporary file must be kept, to resume the plan
+
+        /**
+         * Starts a plan
+         * @param aPlanFile the plan file
+         * @param aFolder the folder being converted
+         * @param aRecursive whether its subfolders are also being converted
+         * @throws IOException if the plan cannot be written
+         */
+        Writer(Path aPlanFile, String aFolder, boolean aRecursive) throws IOException {
+            fPlanFile = aPlanFile.toAbsolutePath();
+            fTempFile = getTempFile(fPlanFile);
+            Files.createDirectories(fPlanFile.getParent());
+            fChannel = FileChannel.open(fTempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            fOutput = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(fChannel)));
+            fOutput.writeInt(MAGIC);
+            fOutput.writeInt(VERSION);
+            fOutput.writeUTF(Paths.get(aFolder).toAbsolutePath().toString());
+            fOutput.writeBoolean(aRecursive);
+        }
+
+        /**
+         * Resumes a plan from a checkpoint of its temporary file
+         * @param aPlanFile the plan file
+         * @param aLength the length of the temporary file at the checkpoint (what follows it is discarded)
+         * @param aSize the number of renames in the temporary file at the checkpoint
+         * @throws IOException if the temporary file cannot be written, or is shorter than the checkpoint
+         */
+        Writer(Path aPlanFile, long aLength, int aSize) throws IOException {
+            fPlanFile = aPlanFile.toAbsolutePath();
+            fTempFile = getTempFile(fPlanFile);
+            fChannel = FileChannel.open(fTempFile, StandardOpenOption.WRITE);
+            if (fChannel.size() < aLength) {
+                fChannel.close();
+                throw new IOException("Rename plan is truncated: " + fTempFile);
+            }
+            fChannel.truncate(aLength);
+            fChannel.position(aLength);
+            fOutput = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(fChannel)));
+            fSize = aSize;
+            fCheckpointed = true;
+        }
+
+        /**
+         * @param aPlanFile the plan file
+         * @return the temporary file where it is written until it is committed
+         */
+        static Path getTempFile(Path aPlanFile) {
+            return Paths.get(aPlanFile.toAbsolutePath() + ".tmp");
+        }
+
+        /**
+         * Adds a rename to the plan
+         * @param aSource the file to be renamed (absolute)
+         * @param aTarget its reserved new name (absolute)
+         * @throws IOException if the plan cannot be written
+         */
+        void add(Path aSource, Path aTarget) throws IOException {
+            add(aSource, aTarget, null, null, -1);
+        }
+
+        /**
+         * Adds a rename to the plan, which also rewrites the EXIF DateTimeOriginal of the file
+         * @param aSource the file to be renamed (absolute)
+         * @param aTarget its reserved new name (absolute)
+         * @param aExifTimestamp its EXIF DateTimeOriginal (null if it is not rewritten)
+         * @param aNewExifTimestamp the new EXIF DateTimeOriginal
+         * @param aLastModified the last modified time of the file, in ms (restored when the rename is undone)
+         * @throws IOException if the plan cannot be written
+         */
+        void add(Path aSource, Path aTarget, String aExifTimestamp, String aNewExifTimestamp, long aLastModified) throws IOException {
+            if (!aSource.getParent().equals(fFolder)) {
+                fFolder = aSource.getParent();
+                fOutput.writeByte(FOLDER);
+                fOutput.writeUTF(fFolder.toString());
+            }
+            if (null != aExifTimestamp) {
+                fOutput.writeByte(EXIF_TIMESTAMP);
+                fOutput.writeUTF(aExifTimestamp);
+                fOutput.writeUTF(aNewExifTimestamp);
+                fOutput.writeLong(aLastModified);
+            }
+            boolean lSameFolder = fFolder.equals(aTarget.getParent());
+            fOutput.writeByte(lSameFolder ? RENAME : RENAME_PATH);
+            fOutput.writeUTF(aSource.getFileName().toString());
+            fOutput.writeUTF(lSameFolder ? aTarget.getFileName().toString() : aTarget.toString());
+            ++fSize;
+        }
+
+        /**
+         * @return the number of renames added so far
+         */
+        int size() {
+            return fSize;
+        }
+
+        /**
+         * Forces the renames added so far to disk, so that the plan can be resumed after them; the temporary file is kept
+         * from now on, even if the plan is not committed
+         * @return the length of the temporary file
+         * @throws IOException if the plan cannot be written
+         */
+        long checkpoint() throws IOException {
+            fOutput.flush();
+            fChannel.force(false);
+            fCheckpointed = true;
+            return fChannel.size();
+        }
+
+        /**
+         * Ends the plan and replaces the plan file with it
+         * @throws IOException if the plan cannot be written
+         */
+        void commit() throws IOException {
+            fOutput.writeByte(END);
+            fOutput.close();
+            Files.move(fTempFile, fPlanFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            fCommitted = true;
+        }
+
+        /**
+         * Discards the plan, if it was not committed (unless it can be resumed from a checkpoint)
+         * @throws IOException if the temporary plan cannot be deleted
+         */
+        @Override
+        public void close() throws IOException {
+            if (!fCommitted) {
+                fOutput.close();
+                if (!fCheckpointed) {
+                    Files.deleteIfExists(fTempFile);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a plan, entry by entry
+     */
+    static final class Reader implements Closeable {
+        private final DataInputStream fInput;
+        private final String fFolder;
+        private final boolean fRecursive;
+        private final int fVersion;
+        private Path fEntryFolder;  // Folder of the next entries
+        private int fNextIndex;
+
+        /**
+         * Opens a plan
+         * @param aPlanFile the plan file
+         * @throws IOException if the plan cannot be read or is not valid
+         */
+        Reader(Path aPlanFile) throws IOException {
+            fInput = new DataInputStream(new BufferedInputStream(Files.newInputStream(aPlanFile)));
+            try {
+                if (fInput.readInt() != MAGIC) {
+                    throw new IOException("Not a rename plan: " + aPlanFile);
+                }
+                fVersion = fInput.readInt();
+                if (VERSION != fVersion && VERSION_1 != fVersion) {
+                    throw new IOException("Not a rename plan: " + aPlanFile);
+                }
+                fFolder = fInput.readUTF();
+                fRecursive = fInput.readBoolean();
+            } catch (IOException e) {
+                fInput.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return the folder that was converted
+         */
+        String getFolder() {
+            return fFolder;
+        }
+
+        /**
+         * @return whether its subfolders were also converted
+         */
+        boolean isRecursive() {
+            return fRecursive;
+        }
+
+        /**
+         * Reads the next entry
+         * @return the entry, or null at the end of the plan
+         * @throws IOException if the plan cannot be read or is truncated
+         */
+        Entry next() throws IOException {
+            try {
+                String lExifTimestamp = null;
+                String lNewExifTimestamp = null;
+                long lLastModified = -1;
+                for (;;) {
+                    byte lRecord = fInput.readByte();
+                    if (END == lRecord) {
+                        return null;
+                    } else if (FOLDER == lRecord) {
+                        fEntryFolder = Paths.get(fInput.readUTF());
+                    } else if (EXIF_TIMESTAMP == lRecord) {
+                        lExifTimestamp = fInput.readUTF();
+                        lNewExifTimestamp = fInput.readUTF();
+                        lLastModified = VERSION_1 == fVersion ? -1 : fInput.readLong();
+                    } else if (RENAME == lRecord || RENAME_PATH == lRecord) {
+                        Path lSource = fEntryFolder.resolve(fInput.readUTF());
+                        String lTarget = fInput.readUTF();
+                        return new Entry(fNextIndex++, lSource, RENAME == lRecord ? fEntryFolder.resolve(lTarget) : Paths.get(lTarget),
+                                lExifTimestamp, lNewExifTimestamp, lLastModified);
+                    } else {
+                        throw new IOException("Rename plan is not valid: unknown record " + lRecord);
+                    }
+                }
+            } catch (EOFException e) {
+                throw new IOException("Rename plan is truncated", e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            fInput.close();
+        }
+    }
+}
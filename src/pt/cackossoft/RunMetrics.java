@@ -0,0 +1,408 @@
+package pt.cackossoft;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and per-stage latency histograms of a run, updated by all the workers. Recording is cheap (two
+ * System.nanoTime calls and a few uncontended adds per operation, no locks), so it is always on.
+ * While the run is in progress the metrics are registered in JMX; at the end a JSON summary is written.
+ */
+class RunMetrics implements RunMetricsMXBean {
+    static final String OBJECT_NAME = "pt.cackossoft:type=RunMetrics";
+
+    /**
+     * Timed stages of a run. NAME includes the METADATA of the file, if it was read to compute its new name.
+     */
+    enum Stage {
+        LIST,       // Folder walk, per file listed (directory read and file attributes)
+        METADATA,   // Metadata read from a file (EXIF header, full EXIF parse or movie headers)
+        NAME,       // New name of a file, by the converter (getNewFilePath)
+        RENAME      // Rename of a file of the plan (or its undo)
+    }
+
+    /**
+     * Latencies of a stage, in buckets by power of 2 nanoseconds
+     */
+    private static final class Histogram {
+        final AtomicLongArray fBuckets = new AtomicLongArray(64);  // Bucket i: latencies from 2^i to 2^(i+1)-1 ns
+        final LongAdder fCount = new LongAdder();
+        final LongAdder fTotalNanos = new LongAdder();
+        final AtomicLong fMaxNanos = new AtomicLong();
+
+        void record(long aNanos) {
+            long lNanos = Math.max(1, aNanos);
+            fBuckets.incrementAndGet(63 - Long.numberOfLeadingZeros(lNanos));
+            fCount.increment();
+            fTotalNanos.add(lNanos);
+            for (long lMax = fMaxNanos.get(); lNanos > lMax && !fMaxNanos.compareAndSet(lMax, lNanos); lMax = fMaxNanos.get()) {
+                // Another thread changed the maximum: try again
+            }
+        }
+
+        /**
+         * @param aPercentile the percentile (0-100)
+         * @return the upper bound of the bucket of the percentile, in nanoseconds (0 if nothing was recorded)
+         */
+        long percentile(double aPercentile) {
+            long lCount = fCount.sum();
+            long lRank = (long) Math.ceil(lCount * aPercentile / 100);
+            long lSeen = 0;
+            for (int i = 0; i < 64 && lCount > 0; ++i) {
+                lSeen += fBuckets.get(i);
+                if (lSeen >= lRank) {
+                    return Math.min(i < 62 ? (2L << i) - 1 : Long.MAX_VALUE, fMaxNanos.get());
+                }
+            }
+            return fMaxNanos.get();
+        }
+    }
+
+    private final String fAction;
+    private final String fFolder;
+    private final String fPlan;
+    private final long fStartNanos = System.nanoTime();
+    private final long fStartBytesRead = MediaChannels.getBytesRead();
+    private volatile long endNanos;             // 0 while the run is in progress
+    private volatile long endBytesRead;
+    private final Map<Stage, Histogram> fStages = new LinkedHashMap<>();
+    private final LongAdder fFilesListed = new LongAdder();
+    private final LongAdder fFilesAnalysed = new LongAdder();
+    private final LongAdder fMetadataCacheHits = new LongAdder();
+    private final LongAdder fNameTimestamps = new LongAdder();
+    private final LongAdder fFullExifBytes = new LongAdder();   // Files fully read by the EXIF library (not through MediaChannels)
+    private final LongAdder fExifFailures = new LongAdder();
+    private final LongAdder fRenamesPlanned = new LongAdder();
+    private final LongAdder fCollisionSuffixes = new LongAdder();
+    private final LongAdder fDuplicates = new LongAdder();
+    private final LongAdder fRenamed = new LongAdder();
+    private final LongAdder fRenameFailures = new LongAdder();
+
+    /**
+     * Starts the metrics of a run
+     * @param aAction what is done: run, plan, apply or undo
+     * @param aFolder the folder being converted (null when a plan is applied/undone)
+     * @param aPlan the rename plan file
+     */
+    RunMetrics(String aAction, String aFolder, String aPlan) {
+        fAction = aAction;
+        fFolder = aFolder;
+        fPlan = aPlan;
+        for (Stage lStage : Stage.values()) {
+            fStages.put(lStage, new Histogram());
+        }
+    }
+
+    /**
+     * Records the latency of an operation that ends now
+     * @param aStage the stage of the operation
+     * @param aStartNanos System.nanoTime() when the operation started
+     */
+    void record(Stage aStage, long aStartNanos) {
+        fStages.get(aStage).record(System.nanoTime() - aStartNanos);
+    }
+
+    void fileListed() {
+        fFilesListed.increment();
+    }
+
+    /**
+     * Counts a file whose metadata was read from the file
+     * @param aFullExifBytes the bytes read by the full EXIF parse (the whole file), or 0 if only headers were read
+     */
+    void fileAnalysed(long aFullExifBytes) {
+        fFilesAnalysed.increment();
+        fFullExifBytes.add(aFullExifBytes);
+    }
+
+    void metadataCacheHit() {
+        fMetadataCacheHits.increment();
+    }
+
+    void nameTimestamp() {
+        fNameTimestamps.increment();
+    }
+
+    void exifFailure() {
+        fExifFailures.increment();
+    }
+
+    /**
+     * Counts a rename added to the plan
+     * @param aCollision whether its new name got a number appended
+     */
+    void renamePlanned(boolean aCollision) {
+        fRenamesPlanned.increment();
+        if (aCollision) {
+            fCollisionSuffixes.increment();
+        }
+    }
+
+    void duplicateFound() {
+        fDuplicates.increment();
+    }
+
+    /**
+     * Counts a rename of the plan (or its undo)
+     * @param aStatus the status of the rename
+     */
+    void renamed(RenameEngine.Status aStatus) {
+        if (RenameEngine.Status.RENAMED == aStatus) {
+            fRenamed.increment();
+        } else {
+            fRenameFailures.increment();
+        }
+    }
+
+    /**
+     * @return the counters of the planning (files listed, analysed, cache hits, EXIF failures, renames planned,
+     *         collision suffixes, duplicates, name timestamps), to be saved in a plan checkpoint
+     */
+    long[] getPlanningCounters() {
+        return new long[] { fFilesListed.sum(), fFilesAnalysed.sum(), fMetadataCacheHits.sum(), fExifFailures.sum(),
+                fRenamesPlanned.sum(), fCollisionSuffixes.sum(), fDuplicates.sum(), fNameTimestamps.sum() };
+    }
+
+    /**
+     * Adds the counters of the planning already done by an interrupted run, when it is resumed
+     * @param aCounters the counters, as returned by getPlanningCounters (missing ones are ignored)
+     */
+    void addPlanningCounters(long[] aCounters) {
+        LongAdder[] lAdders = { fFilesListed, fFilesAnalysed, fMetadataCacheHits, fExifFailures, fRenamesPlanned, fCollisionSuffixes, fDuplicates, fNameTimestamps };
+        for (int i = 0; i < lAdders.length && i < aCounters.length; ++i) {
+            lAdders[i].add(aCounters[i]);
+        }
+    }
+
+    /**
+     * Registers the metrics in the platform MBean server (replacing those of a previous run)
+     */
+    void register() {
+        try {
+            MBeanServer lServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName lName = new ObjectName(OBJECT_NAME);
+            if (lServer.isRegistered(lName)) {
+                lServer.unregisterMBean(lName);
+            }
+            lServer.registerMBean(this, lName);
+        } catch (JMException e) {
+            System.out.println("Run metrics: Error in JMX registration (" + e + ")");
+        }
+    }
+
+    /**
+     * Ends the run: the elapsed time and bytes read stop counting, and the metrics are unregistered from the platform
+     * MBean server
+     */
+    void end() {
+        endBytesRead = MediaChannels.getBytesRead();
+        endNanos = System.nanoTime();
+        try {
+            ObjectName lName = new ObjectName(OBJECT_NAME);
+            MBeanServer lServer = ManagementFactory.getPlatformMBeanServer();
+            if (lServer.isRegistered(lName)) {
+                lServer.unregisterMBean(lName);
+            }
+        } catch (JMException e) {
+            System.out.println("Run metrics: Error in JMX registration (" + e + ")");
+        }
+    }
+
+    /**
+     * @return a one-line summary of the run, for the console
+     */
+    String getSummary() {
+        return String.format(Locale.ROOT, "%d files in %.1f s (%.0f files/s), %.1f MB read, %d EXIF failures, %d renames (%d with collision suffix), %d duplicates, %d renamed, %d failed",
+                getFilesListed(), getElapsedSeconds(), getFilesPerSecond(), getBytesRead() / 1e6, getExifFailures(),
+                getRenamesPlanned(), getCollisionSuffixes(), getDuplicates(), getRenamed(), getRenameFailures());
+    }
+
+    /**
+     * Writes the JSON summary of the run
+     * @param aFile the summary file (replaced if it exists)
+     * @throws IOException if the file cannot be written
+     */
+    void writeJson(Path aFile) throws IOException {
+        Path lParent = aFile.toAbsolutePath().getParent();
+        if (null != lParent) {
+            Files.createDirectories(lParent);
+        }
+        try (Writer lWriter = Files.newBufferedWriter(aFile, StandardCharsets.UTF_8)) {
+            lWriter.write(String.format(Locale.ROOT, "{\n  \"action\": %s,\n  \"folder\": %s,\n  \"plan\": %s,\n  \"elapsedSeconds\": %.3f,\n"
+                    + "  \"filesListed\": %d,\n  \"filesPerSecond\": %.1f,\n  \"filesAnalysed\": %d,\n  \"metadataCacheHits\": %d,\n"
+                    + "  \"nameTimestamps\": %d,\n  \"bytesRead\": %d,\n  \"exifFailures\": %d,\n  \"renamesPlanned\": %d,\n  \"collisionSuffixes\": %d,\n  \"duplicates\": %d,\n"
+                    + "  \"renamed\": %d,\n  \"renameFailures\": %d,\n  \"stages\": {",
+                    toJson(fAction), toJson(fFolder), toJson(fPlan), getElapsedSeconds(), getFilesListed(), getFilesPerSecond(), getFilesAnalysed(),
+                    getMetadataCacheHits(), getNameTimestamps(), getBytesRead(), getExifFailures(), getRenamesPlanned(), getCollisionSuffixes(),
+                    getDuplicates(), getRenamed(), getRenameFailures()));
+            String lSeparator = "\n";
+            for (Map.Entry<Stage, Histogram> lStage : fStages.entrySet()) {
+                Histogram lHistogram = lStage.getValue();
+                long lCount = lHistogram.fCount.sum();
+                lWriter.write(String.format(Locale.ROOT, "%s    \"%s\": { \"count\": %d, \"totalMicros\": %d, \"meanMicros\": %.1f, "
+                        + "\"p50Micros\": %d, \"p90Micros\": %d, \"p99Micros\": %d, \"maxMicros\": %d }",
+                        lSeparator, getStageName(lStage.getKey()), lCount, lHistogram.fTotalNanos.sum() / 1000,
+                        0 == lCount ? 0.0 : lHistogram.fTotalNanos.sum() / 1000.0 / lCount, lHistogram.percentile(50) / 1000,
+                        lHistogram.percentile(90) / 1000, lHistogram.percentile(99) / 1000, lHistogram.fMaxNanos.get() / 1000));
+                lSeparator = ",\n";
+            }
+            lWriter.write("\n  }\n}\n");
+        }
+    }
+
+    @Override
+    public String getAction() {
+        return fAction;
+    }
+
+    @Override
+    public double getElapsedSeconds() {
+        long lEnd = endNanos;
+        return ((0 == lEnd ? System.nanoTime() : lEnd) - fStartNanos) / 1e9;
+    }
+
+    @Override
+    public long getFilesListed() {
+        return fFilesListed.sum();
+    }
+
+    @Override
+    public double getFilesPerSecond() {
+        double lElapsedSeconds = getElapsedSeconds();
+        return lElapsedSeconds > 0 ? getFilesListed() / lElapsedSeconds : 0;
+    }
+
+    @Override
+    public long getFilesAnalysed() {
+        return fFilesAnalysed.sum();
+    }
+
+    @Override
+    public long getMetadataCacheHits() {
+        return fMetadataCacheHits.sum();
+    }
+
+    @Override
+    public long getNameTimestamps() {
+        return fNameTimestamps.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        long lEnd = endNanos;
+        return (0 == lEnd ? MediaChannels.getBytesRead() : endBytesRead) - fStartBytesRead + fFullExifBytes.sum();
+    }
+
+    @Override
+    public long getExifFailures() {
+        return fExifFailures.sum();
+    }
+
+    @Override
+    public long getRenamesPlanned() {
+        return fRenamesPlanned.sum();
+    }
+
+    @Override
+    public long getCollisionSuffixes() {
+        return fCollisionSuffixes.sum();
+    }
+
+    @Override
+    public long getDuplicates() {
+        return fDuplicates.sum();
+    }
+
+    @Override
+    public long getRenamed() {
+        return fRenamed.sum();
+    }
+
+    @Override
+    public long getRenameFailures() {
+        return fRenameFailures.sum();
+    }
+
+    @Override
+    public Map<String, Long> getStageCounts() {
+        Map<String, Long> lCounts = new LinkedHashMap<>();
+        for (Map.Entry<Stage, Histogram> lStage : fStages.entrySet()) {
+            lCounts.put(getStageName(lStage.getKey()), lStage.getValue().fCount.sum());
+        }
+        return lCounts;
+    }
+
+    @Override
+    public Map<String, Long> getStageTotalMicros() {
+        Map<String, Long> lTotals = new LinkedHashMap<>();
+        for (Map.Entry<Stage, Histogram> lStage : fStages.entrySet()) {
+            lTotals.put(getStageName(lStage.getKey()), lStage.getValue().fTotalNanos.sum() / 1000);
+        }
+        return lTotals;
+    }
+
+    @Override
+    public Map<String, Long> getStageP50Micros() {
+        return getStagePercentiles(50);
+    }
+
+    @Override
+    public Map<String, Long> getStageP99Micros() {
+        return getStagePercentiles(99);
+    }
+
+    @Override
+    public Map<String, Long> getStageMaxMicros() {
+        Map<String, Long> lMaximums = new LinkedHashMap<>();
+        for (Map.Entry<Stage, Histogram> lStage : fStages.entrySet()) {
+            lMaximums.put(getStageName(lStage.getKey()), lStage.getValue().fMaxNanos.get() / 1000);
+        }
+        return lMaximums;
+    }
+
+    private Map<String, Long> getStagePercentiles(double aPercentile) {
+        Map<String, Long> lPercentiles = new LinkedHashMap<>();
+        for (Map.Entry<Stage, Histogram> lStage : fStages.entrySet()) {
+            lPercentiles.put(getStageName(lStage.getKey()), lStage.getValue().percentile(aPercentile) / 1000);
+        }
+        return lPercentiles;
+    }
+
+    private static String getStageName(Stage aStage) {
+        return aStage.name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @param aText a text (or null)
+     * @return the text as a JSON string
+     */
+    private static String toJson(String aText) {
+        if (null == aText) {
+            return "null";
+        }
+        StringBuilder lJson = new StringBuilder("\"");
+        for (char c : aText.toCharArray()) {
+            if ('"' == c || '\\' == c) {
+                lJson.append('\\').append(c);
+            } else if (c < 0x20 || c > 0x7E) {
+                lJson.append(String.format("\\u%04x", (int) c));
+            } else {
+                lJson.append(c);
+            }
+        }
+        return lJson.append('"').toString();
+    }
+}
@@ -0,0 +1,105 @@
+package pt.cackossoft;
+
+import java.util.Map;
+
+/**
+ * Metrics of the run in progress, as shown by JMX clients (jconsole, VisualVM, ...) under RunMetrics.OBJECT_NAME.
+ * The latencies are by stage name (list, metadata, name, rename), in microseconds; the percentiles are upper bounds
+ * (to a power of 2 nanoseconds).
+ */
+public interface RunMetricsMXBean {
+    /**
+     * @return what is being done: run, plan, apply or undo
+     */
+    String getAction();
+
+    /**
+     * @return the seconds since the run started (until it ended, if it already did)
+     */
+    double getElapsedSeconds();
+
+    /**
+     * @return the number of files listed in the folder walk
+     */
+    long getFilesListed();
+
+    /**
+     * @return the files listed per second of run
+     */
+    double getFilesPerSecond();
+
+    /**
+     * @return the number of files whose metadata was read from the file itself
+     */
+    long getFilesAnalysed();
+
+    /**
+     * @return the number of files whose metadata was found in the metadata cache
+     */
+    long getMetadataCacheHits();
+
+    /**
+     * @return the number of files whose timestamp was taken from their name, without reading the file
+     */
+    long getNameTimestamps();
+
+    /**
+     * @return the number of bytes read from the media files by the metadata readers
+     */
+    long getBytesRead();
+
+    /**
+     * @return the number of photos whose EXIF could not be read, or has no timestamp/camera model
+     */
+    long getExifFailures();
+
+    /**
+     * @return the number of renames added to the plan
+     */
+    long getRenamesPlanned();
+
+    /**
+     * @return the number of planned renames whose new name got a number appended, because it was already in use
+     */
+    long getCollisionSuffixes();
+
+    /**
+     * @return the number of files found to be copies of the file with their new name
+     */
+    long getDuplicates();
+
+    /**
+     * @return the number of files renamed (or moved back, when undoing)
+     */
+    long getRenamed();
+
+    /**
+     * @return the number of renames that failed
+     */
+    long getRenameFailures();
+
+    /**
+     * @return the number of timed operations, by stage
+     */
+    Map<String, Long> getStageCounts();
+
+    /**
+     * @return the total time of the operations, by stage
+     */
+    Map<String, Long> getStageTotalMicros();
+
+    /**
+     * @return the median latency, by stage
+     */
+    Map<String, Long> getStageP50Micros();
+
+    /**
+     * @return the 99th percentile latency, by stage
+     */
+    Map<String, Long> getStageP99Micros();
+
+    /**
+     * @return the maximum latency, by stage
+     */
+    Map<String, Long> getStageMaxMicros();
+}